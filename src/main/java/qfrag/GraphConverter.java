@@ -0,0 +1,73 @@
+package qfrag;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+import qfrag.graph.GraphSnapshotWriter;
+import qfrag.graph.MainGraph;
+import qfrag.graph.TextGraphLoader;
+
+import java.io.File;
+
+/**
+ * Converts a text graph into the binary {@link qfrag.graph.GraphSnapshot}
+ * format. The loader picks snapshots up automatically, so the output can be
+ * used directly as input_graph_path.
+ * <pre>
+ *   GraphConverter [-e] [-l] input output
+ * </pre>
+ */
+public class GraphConverter {
+    private static final Logger LOG = Logger.getLogger(GraphConverter.class);
+
+    private static final Options CMDLINE_OPTIONS;
+
+    static {
+        CMDLINE_OPTIONS = new Options();
+        CMDLINE_OPTIONS.addOption("e", "edge-labelled", false, "Input adjacency lists interleave neighbors and edge labels");
+        CMDLINE_OPTIONS.addOption("l", "local", false, "Input and output are on the local file system instead of HDFS");
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLine cmd;
+
+        try {
+            cmd = new BasicParser().parse(CMDLINE_OPTIONS, args);
+        } catch (ParseException e) {
+            throw new RuntimeException("Unable to parse command line parameters", e);
+        }
+
+        if (cmd.getArgs().length != 2) {
+            new HelpFormatter().printHelp("GraphConverter [options] input output", CMDLINE_OPTIONS);
+            System.exit(1);
+        }
+
+        Configuration conf = new Configuration();
+        Path inputPath = new Path(cmd.getArgs()[0]);
+        Path outputPath = new Path(cmd.getArgs()[1]);
+        FileSystem inputFs = cmd.hasOption("l") ? FileSystem.getLocal(conf) : inputPath.getFileSystem(conf);
+        FileSystem outputFs = cmd.hasOption("l") ? FileSystem.getLocal(conf) : outputPath.getFileSystem(conf);
+
+        File storeFile = File.createTempFile("qfrag-convert", ".csr");
+
+        try {
+            MainGraph graph = TextGraphLoader.load(inputFs, inputPath, cmd.hasOption("e"), storeFile,
+                    Runtime.getRuntime().availableProcessors());
+
+            try (FSDataOutputStream out = outputFs.create(outputPath, true)) {
+                new GraphSnapshotWriter(out).write(graph);
+            }
+
+            LOG.info("Wrote snapshot of " + graph + " to " + outputPath);
+        } finally {
+            storeFile.delete();
+        }
+    }
+}
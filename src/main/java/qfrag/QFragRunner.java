@@ -65,6 +65,12 @@ public class QFragRunner extends Logging implements Tool {
 
         QFragMasterEngine masterEngine = new QFragMasterEngine(sc, config);
 
+        if (config.isQueryExplain()) {
+            System.out.println(masterEngine.explain());
+            sc.stop();
+            return 0;
+        }
+
         masterEngine.compute();
         masterEngine.finalizeComputation();
         return 0;
@@ -0,0 +1,167 @@
+package qfrag.aggregation;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.log4j.Logger;
+import qfrag.aggregation.reductions.LongSumReduction;
+import qfrag.conf.SparkConfiguration;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how merging aggregations scales with the number of compute
+ * threads of one executor. For 1, 2, 4, ... maxThreads threads it reports
+ * the merges per second of
+ * <ul>
+ *   <li>sync: local storages merged into one {@link AggregationStorage}
+ *   through its synchronized finalLocalAggregate,</li>
+ *   <li>concurrent: local storages merged into a
+ *   {@link ConcurrentAggregationStorage},</li>
+ *   <li>direct: every update aggregated straight into a
+ *   {@link ConcurrentAggregationStorage}, with no local storage.</li>
+ * </ul>
+ * <pre>
+ *   AggregationBenchmark [maxThreads] [updatesPerThread] [numKeys]
+ * </pre>
+ */
+public class AggregationBenchmark {
+    private static final Logger LOG = Logger.getLogger(AggregationBenchmark.class);
+
+    private static final String SYNC_AGGREGATION = "benchmark_sync";
+    private static final String CONCURRENT_AGGREGATION = "benchmark_concurrent";
+
+    private interface Worker {
+        void run(int threadId);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final int updatesPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        final int numKeys = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+        SparkConfiguration config = new SparkConfiguration();
+        config.initialize();
+        config.registerAggregation(SYNC_AGGREGATION, AggregationStorage.class,
+                LongWritable.class, LongWritable.class, false, new LongSumReduction(), null, 1);
+        config.registerAggregation(CONCURRENT_AGGREGATION, ConcurrentAggregationStorage.class,
+                LongWritable.class, LongWritable.class, false, new LongSumReduction(), null, 1);
+
+        LOG.info("threads\tsync Mmerges/s\tconcurrent Mmerges/s\tdirect Mupdates/s");
+
+        for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+            double sync = benchmarkMerge(new AggregationStorage<LongWritable, LongWritable>(SYNC_AGGREGATION),
+                    numThreads, updatesPerThread, numKeys);
+            double concurrent = benchmarkMerge(
+                    new ConcurrentAggregationStorage<LongWritable, LongWritable>(CONCURRENT_AGGREGATION),
+                    numThreads, updatesPerThread, numKeys);
+            double direct = benchmarkDirect(numThreads, updatesPerThread, numKeys);
+
+            LOG.info(String.format("%d\t%.2f\t%.2f\t%.2f", numThreads, sync, concurrent, direct));
+        }
+    }
+
+    /**
+     * @return millions of mappings merged into shared per second
+     */
+    private static double benchmarkMerge(final AggregationStorage<LongWritable, LongWritable> shared,
+                                         int numThreads, int updatesPerThread, int numKeys) throws Exception {
+        final AggregationStorage<LongWritable, LongWritable>[] locals = new AggregationStorage[numThreads];
+        long numMerged = 0;
+
+        for (int i = 0; i < numThreads; ++i) {
+            locals[i] = new AggregationStorage<>(shared.getName());
+            fill(locals[i], new Random(i), updatesPerThread, numKeys);
+            numMerged += locals[i].getNumberMappings();
+        }
+
+        long nanos = run(numThreads, new Worker() {
+            @Override
+            public void run(int threadId) {
+                shared.finalLocalAggregate(locals[threadId]);
+            }
+        });
+
+        check(shared, (long) numThreads * updatesPerThread);
+
+        return numMerged * 1e3 / nanos;
+    }
+
+    /**
+     * @return millions of updates aggregated into a shared concurrent storage per second
+     */
+    private static double benchmarkDirect(int numThreads, final int updatesPerThread, final int numKeys)
+            throws Exception {
+        final ConcurrentAggregationStorage<LongWritable, LongWritable> shared =
+                new ConcurrentAggregationStorage<>(CONCURRENT_AGGREGATION);
+
+        long nanos = run(numThreads, new Worker() {
+            @Override
+            public void run(int threadId) {
+                Random random = new Random(threadId);
+                LongWritable key = new LongWritable();
+                LongWritable one = new LongWritable(1);
+
+                for (int i = 0; i < updatesPerThread; ++i) {
+                    key.set(random.nextInt(numKeys));
+                    shared.aggregateWithReusables(key, one);
+                }
+            }
+        });
+
+        check(shared, (long) numThreads * updatesPerThread);
+
+        return (double) numThreads * updatesPerThread * 1e3 / nanos;
+    }
+
+    private static void fill(AggregationStorage<LongWritable, LongWritable> storage, Random random,
+                             int numUpdates, int numKeys) {
+        LongWritable key = new LongWritable();
+        LongWritable one = new LongWritable(1);
+
+        for (int i = 0; i < numUpdates; ++i) {
+            key.set(random.nextInt(numKeys));
+            storage.aggregateWithReusables(key, one);
+        }
+    }
+
+    private static long run(int numThreads, final Worker worker) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(numThreads);
+
+        for (int i = 0; i < numThreads; ++i) {
+            final int threadId = i;
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        worker.run(threadId);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        done.await();
+
+        return System.nanoTime() - startNanos;
+    }
+
+    private static void check(AggregationStorage<LongWritable, LongWritable> storage, long expectedTotal) {
+        long total = 0;
+
+        for (LongWritable value : storage.getMapping().values()) {
+            total += value.get();
+        }
+
+        if (total != expectedTotal) {
+            throw new IllegalStateException(storage.getName() + " lost updates: " + total + " != " + expectedTotal);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package qfrag.aggregation;
+
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+import net.jpountz.lz4.LZ4Factory;
+import org.apache.giraph.utils.UnsafeByteArrayInputStream;
+import org.apache.giraph.utils.UnsafeByteArrayOutputStream;
+import org.apache.hadoop.io.Writable;
+import qfrag.conf.Configuration;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serialized form in which aggregation storages travel between engines,
+ * reducers and the master. A chunk is a header (format byte, uncompressed
+ * length) followed by the storage's Writable bytes, which start with the
+ * aggregation name, so the receiving side can create the registered storage
+ * class without any other envelope.
+ * <p/>
+ * With compressed caches enabled, storages serializing to more than the
+ * cache threshold size are LZ4 block-compressed, unless that does not make
+ * them smaller.
+ */
+public class AggregationChunks {
+    private static final byte FORMAT_RAW = 0;
+    private static final byte FORMAT_LZ4 = 1;
+    private static final int HEADER_SIZE = 5;
+    private static final int LZ4_BLOCK_SIZE = 1 << 16;
+
+    private AggregationChunks() {
+    }
+
+    public static byte[] toBytes(AggregationStorage<?, ?> storage) throws IOException {
+        UnsafeByteArrayOutputStream out = new UnsafeByteArrayOutputStream();
+        out.writeByte(FORMAT_RAW);
+        out.writeInt(0);
+        storage.write(out);
+
+        byte[] raw = out.getByteArray();
+        int rawLength = out.getPos() - HEADER_SIZE;
+        Configuration config = Configuration.get();
+
+        if (config.isUseCompressedCaches() && rawLength > config.getCacheThresholdSize()) {
+            UnsafeByteArrayOutputStream compressedOut = new UnsafeByteArrayOutputStream(rawLength / 2);
+            compressedOut.writeByte(FORMAT_LZ4);
+            compressedOut.writeInt(rawLength);
+
+            LZ4BlockOutputStream lz4Out = new LZ4BlockOutputStream(compressedOut, LZ4_BLOCK_SIZE,
+                    LZ4Factory.fastestInstance().fastCompressor());
+            lz4Out.write(raw, HEADER_SIZE, rawLength);
+            lz4Out.close();
+
+            if (compressedOut.getPos() < out.getPos()) {
+                return compressedOut.toByteArray();
+            }
+        }
+
+        out.writeInt(1, rawLength);
+
+        return out.toByteArray();
+    }
+
+    public static <K extends Writable, V extends Writable> AggregationStorage<K, V> fromBytes(byte[] chunk)
+            throws IOException {
+        byte[] bytes = chunk;
+        int offset = HEADER_SIZE;
+
+        if (chunk[0] == FORMAT_LZ4) {
+            bytes = new byte[rawLength(chunk)];
+            offset = 0;
+
+            DataInputStream lz4In = new DataInputStream(new LZ4BlockInputStream(
+                    new ByteArrayInputStream(chunk, HEADER_SIZE, chunk.length - HEADER_SIZE),
+                    LZ4Factory.fastestInstance().fastDecompressor()));
+            lz4In.readFully(bytes);
+            lz4In.close();
+        } else if (chunk[0] != FORMAT_RAW) {
+            throw new IOException("Unknown aggregation chunk format " + chunk[0]);
+        }
+
+        UnsafeByteArrayInputStream in = new UnsafeByteArrayInputStream(bytes, offset, bytes.length);
+        String name = in.readUTF();
+        AggregationStorage<K, V> storage = Configuration.get().createAggregationStorage(name);
+
+        storage.readFields(new UnsafeByteArrayInputStream(bytes, offset, bytes.length));
+
+        return storage;
+    }
+
+    /**
+     * @return length of the storage's serialized form in chunk, before any
+     * compression
+     */
+    public static int rawLength(byte[] chunk) {
+        try {
+            return new UnsafeByteArrayInputStream(chunk, 1, HEADER_SIZE).readInt();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Truncated aggregation chunk", e);
+        }
+    }
+
+    /**
+     * Cuts storage into numSplits storages with disjoint keys, key k going to
+     * split (k.hashCode() mod numSplits). The mappings are copied, storage is
+     * left as it was; with a single split, storage itself is returned.
+     */
+    public static <K extends Writable, V extends Writable> List<AggregationStorage<K, V>> split(
+            AggregationStorage<K, V> storage, int numSplits) {
+        List<AggregationStorage<K, V>> splits = new ArrayList<>(numSplits);
+
+        if (numSplits <= 1) {
+            splits.add(storage);
+            return splits;
+        }
+
+        Configuration config = Configuration.get();
+
+        for (int i = 0; i < numSplits; ++i) {
+            splits.add(config.<K, V>createAggregationStorage(storage.getName()));
+        }
+
+        storage.splitInto(splits);
+
+        return splits;
+    }
+
+    public static int splitOf(Writable key, int numSplits) {
+        return (key.hashCode() & Integer.MAX_VALUE) % numSplits;
+    }
+}
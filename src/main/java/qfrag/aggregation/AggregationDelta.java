@@ -0,0 +1,193 @@
+package qfrag.aggregation;
+
+import org.apache.giraph.utils.UnsafeByteArrayInputStream;
+import org.apache.giraph.utils.UnsafeByteArrayOutputStream;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import qfrag.conf.Configuration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serialized change between two versions of an aggregation, so a copy kept
+ * elsewhere (the engines' resident aggregations) can be brought up to date
+ * by shipping only what changed. A delta is the aggregation name and one of
+ * <ul>
+ *   <li>UPDATE: keys to remove, then a chunk with the mappings to set;</li>
+ *   <li>REPLACE: a chunk with the whole new aggregation;</li>
+ *   <li>REMOVE: the aggregation is gone.</li>
+ * </ul>
+ * Storages whose mappings are not independent per key (see
+ * {@link AggregationStorage#isKeyed()}) are always replaced.
+ */
+public class AggregationDelta {
+    private static final byte UPDATE = 0;
+    private static final byte REPLACE = 1;
+    private static final byte REMOVE = 2;
+
+    private AggregationDelta() {
+    }
+
+    /**
+     * @return delta turning previous into current (either may be null), or
+     * null if nothing changed
+     */
+    public static <K extends Writable, V extends Writable> byte[] diff(
+            AggregationStorage<K, V> previous, AggregationStorage<K, V> current) throws IOException {
+        if (current == null) {
+            return previous == null ? null : remove(previous.getName());
+        }
+
+        if (previous == null || !current.isKeyed()) {
+            return replace(current);
+        }
+
+        List<K> removedKeys = new ArrayList<>();
+
+        for (K key : previous.getKeys()) {
+            if (!current.containsKey(key)) {
+                removedKeys.add(key);
+            }
+        }
+
+        AggregationStorage<K, V> updates = Configuration.get().createAggregationStorage(current.getName());
+        UnsafeByteArrayOutputStream previousOut = new UnsafeByteArrayOutputStream();
+        UnsafeByteArrayOutputStream currentOut = new UnsafeByteArrayOutputStream();
+
+        for (K key : current.getKeys()) {
+            V value = current.getValue(key);
+            V previousValue = previous.getValue(key);
+
+            if (previousValue == null || !sameBytes(previousValue, value, previousOut, currentOut)) {
+                updates.aggregate(key, value);
+            }
+        }
+
+        if (removedKeys.isEmpty() && updates.getNumberMappings() == 0) {
+            return null;
+        }
+
+        return update(current.getName(), removedKeys, updates);
+    }
+
+    /**
+     * @return delta setting the mappings of keys to their values in storage,
+     * for aggregations that only grow
+     */
+    public static <K extends Writable, V extends Writable> byte[] updates(
+            AggregationStorage<K, V> storage, Collection<K> keys) throws IOException {
+        if (!storage.isKeyed()) {
+            return replace(storage);
+        }
+
+        AggregationStorage<K, V> updates = Configuration.get().createAggregationStorage(storage.getName());
+
+        for (K key : keys) {
+            V value = storage.getValue(key);
+
+            if (value != null) {
+                updates.aggregate(key, value);
+            }
+        }
+
+        return update(storage.getName(), new ArrayList<K>(), updates);
+    }
+
+    /**
+     * Applies delta to the aggregations, by name, it was computed for.
+     */
+    public static void apply(byte[] delta, Map<String, AggregationStorage> aggregations) throws IOException {
+        UnsafeByteArrayInputStream in = new UnsafeByteArrayInputStream(delta);
+        String name = in.readUTF();
+        byte type = in.readByte();
+
+        if (type == REMOVE) {
+            aggregations.remove(name);
+            return;
+        }
+
+        if (type == REPLACE) {
+            aggregations.put(name, AggregationChunks.fromBytes(readChunk(in)));
+            return;
+        }
+
+        Configuration config = Configuration.get();
+        AggregationStorage storage = aggregations.get(name);
+
+        if (storage == null) {
+            storage = config.createAggregationStorage(name);
+            aggregations.put(name, storage);
+        }
+
+        int numRemoved = in.readInt();
+
+        for (int i = 0; i < numRemoved; ++i) {
+            Writable key = config.getAggregationMetadata(name).createKey();
+            key.readFields(in);
+            storage.removeKey(key);
+        }
+
+        AggregationStorage updates = AggregationChunks.fromBytes(readChunk(in));
+
+        for (Object key : updates.getKeys()) {
+            storage.removeKey((Writable) key);
+            storage.aggregate((Writable) key, updates.getValue((Writable) key));
+        }
+    }
+
+    private static boolean sameBytes(Writable w1, Writable w2, UnsafeByteArrayOutputStream out1,
+                                     UnsafeByteArrayOutputStream out2) throws IOException {
+        out1.reset();
+        w1.write(out1);
+        out2.reset();
+        w2.write(out2);
+
+        return WritableComparator.compareBytes(out1.getByteArray(), 0, out1.getPos(),
+                out2.getByteArray(), 0, out2.getPos()) == 0;
+    }
+
+    private static byte[] remove(String name) throws IOException {
+        UnsafeByteArrayOutputStream out = new UnsafeByteArrayOutputStream();
+        out.writeUTF(name);
+        out.writeByte(REMOVE);
+        return out.toByteArray();
+    }
+
+    private static byte[] replace(AggregationStorage<?, ?> storage) throws IOException {
+        UnsafeByteArrayOutputStream out = new UnsafeByteArrayOutputStream();
+        out.writeUTF(storage.getName());
+        out.writeByte(REPLACE);
+        writeChunk(out, AggregationChunks.toBytes(storage));
+        return out.toByteArray();
+    }
+
+    private static <K extends Writable> byte[] update(String name, List<K> removedKeys,
+                                                      AggregationStorage<K, ?> updates) throws IOException {
+        UnsafeByteArrayOutputStream out = new UnsafeByteArrayOutputStream();
+        out.writeUTF(name);
+        out.writeByte(UPDATE);
+        out.writeInt(removedKeys.size());
+
+        for (K key : removedKeys) {
+            key.write(out);
+        }
+
+        writeChunk(out, AggregationChunks.toBytes(updates));
+        return out.toByteArray();
+    }
+
+    private static void writeChunk(UnsafeByteArrayOutputStream out, byte[] chunk) throws IOException {
+        out.writeInt(chunk.length);
+        out.write(chunk);
+    }
+
+    private static byte[] readChunk(UnsafeByteArrayInputStream in) throws IOException {
+        byte[] chunk = new byte[in.readInt()];
+        in.readFully(chunk);
+        return chunk;
+    }
+}
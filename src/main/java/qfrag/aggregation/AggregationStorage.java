@@ -9,7 +9,6 @@ import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableComparable;
 
 import java.io.*;
-import java.lang.reflect.Constructor;
 import java.util.*;
 
 public class AggregationStorage<K extends Writable, V extends Writable> implements Writable, Externalizable {
@@ -19,6 +18,7 @@ public class AggregationStorage<K extends Writable, V extends Writable> implemen
     protected Class<V> valueClass;
     protected ReductionFunction<V> reductionFunction;
     protected EndAggregationFunction<K, V> endAggregationFunction;
+    protected AggregationStorageMetadata<K, V> metadata;
 
     private UnsafeByteArrayOutputStream reusedOut;
     private UnsafeReusableByteArrayInput reusedIn;
@@ -37,14 +37,14 @@ public class AggregationStorage<K extends Writable, V extends Writable> implemen
 
     protected void init(String name) {
         if (keyValueMap == null) {
-            keyValueMap = new HashMap<>();
+            keyValueMap = createMap();
         }
 
         reset();
 
         this.name = name;
 
-        AggregationStorageMetadata<K, V> metadata = Configuration.get().getAggregationMetadata(name);
+        metadata = Configuration.get().getAggregationMetadata(name);
 
         if (metadata == null) {
             return;
@@ -56,6 +56,18 @@ public class AggregationStorage<K extends Writable, V extends Writable> implemen
         endAggregationFunction = metadata.getEndAggregationFunction();
     }
 
+    protected K newKey() {
+        return metadata.createKey();
+    }
+
+    protected V newValue() {
+        return metadata.createValue();
+    }
+
+    protected Map<K, V> createMap() {
+        return new HashMap<>();
+    }
+
     public void reset() {
         if (keyValueMap != null) {
             keyValueMap.clear();
@@ -70,6 +82,15 @@ public class AggregationStorage<K extends Writable, V extends Writable> implemen
         return keyValueMap.size();
     }
 
+    /**
+     * @return whether mappings are independent per key, so they can be
+     * listed, updated and removed one by one (not the case of summaries such
+     * as sketches)
+     */
+    public boolean isKeyed() {
+        return true;
+    }
+
     public Set<K> getKeys() {
         return Collections.unmodifiableSet(keyValueMap.keySet());
     }
@@ -77,6 +98,19 @@ public class AggregationStorage<K extends Writable, V extends Writable> implemen
     public Map<K, V> getMapping() {
         return Collections.unmodifiableMap(keyValueMap);
     }
+
+    /**
+     * Passes every mapping to consumer. Storages that do not keep Writables
+     * override it to stream their mappings without building a map of them;
+     * the key and value passed may then be reused between calls, so
+     * consumer must copy them to keep them. Consumer must not update this
+     * storage.
+     */
+    public void forEachMapping(MappingConsumer<K, V> consumer) throws IOException {
+        for (Map.Entry<K, V> entry : getMapping().entrySet()) {
+            consumer.accept(entry.getKey(), entry.getValue());
+        }
+    }
     
     public K getKey(K key) {
         if (keyValueMap.containsKey(key)) {
@@ -134,6 +168,17 @@ public class AggregationStorage<K extends Writable, V extends Writable> implemen
         return WritableUtils.createCopy(reusedOut, reusedIn, writable, null);
     }
 
+    /**
+     * Copies every mapping into the split of its key, as given by
+     * {@link AggregationChunks#splitOf(Writable, int)}. Storages keeping
+     * more than the value for a key override this to carry it along.
+     */
+    protected void splitInto(List<? extends AggregationStorage<K, V>> splits) {
+        for (K key : getKeys()) {
+            splits.get(AggregationChunks.splitOf(key, splits.size())).aggregate(key, getValue(key));
+        }
+    }
+
     // Thread-safe
     public void finalLocalAggregate(AggregationStorage<K, V> otherStorage) {
         synchronized (this) {
@@ -147,7 +192,7 @@ public class AggregationStorage<K extends Writable, V extends Writable> implemen
             throw new RuntimeException("Aggregating storages with different names");
         }
 
-        for (Map.Entry<K, V> otherStorageEntry : otherStorage.keyValueMap.entrySet()) {
+        for (Map.Entry<K, V> otherStorageEntry : otherStorage.getMapping().entrySet()) {
             K otherKey = otherStorageEntry.getKey();
             V otherValue = otherStorageEntry.getValue();
 
@@ -155,71 +200,67 @@ public class AggregationStorage<K extends Writable, V extends Writable> implemen
         }
     }
 
+    /**
+     * Joins otherStorage, another split of this aggregation (see
+     * {@link AggregationChunks#split(AggregationStorage, int)}), whose keys
+     * are disjoint from this storage's. Storages whose merge assumes the two
+     * summarize overlapping streams override this.
+     */
+    // Not thread-safe
+    public void aggregateSplit(AggregationStorage<K, V> otherStorage) {
+        aggregate(otherStorage);
+    }
+
     @Override
     public void write(DataOutput dataOutput) throws IOException {
         dataOutput.writeUTF(name);
 
+        writeEntries(dataOutput);
+    }
+
+    /**
+     * Writes the number of mappings followed by every key and value.
+     * Storages that keep their mappings outside keyValueMap override this
+     * and {@link #readEntries(DataInput)} together.
+     */
+    protected void writeEntries(DataOutput dataOutput) throws IOException {
         dataOutput.writeInt(keyValueMap.size());
 
         for (Map.Entry<K, V> entry : keyValueMap.entrySet()) {
             entry.getKey().write(dataOutput);
             entry.getValue().write(dataOutput);
         }
-
     }
 
-    @Override
-    public void writeExternal(ObjectOutput objOutput) throws IOException {
-        objOutput.writeUTF(name);
-
-        objOutput.writeObject (keyClass);
-        objOutput.writeObject (valueClass);
-        objOutput.writeObject (reductionFunction);
-        objOutput.writeObject (endAggregationFunction);
+    protected void readEntries(DataInput dataInput) throws IOException {
+        int numEntries = dataInput.readInt();
 
-        objOutput.writeInt(keyValueMap.size());
-        for (Map.Entry<K, V> entry : keyValueMap.entrySet()) {
-            entry.getKey().write(objOutput);
-            entry.getValue().write(objOutput);
-        }
+        for (int i = 0; i < numEntries; ++i) {
+            K key = newKey();
 
-    }
-
-    @Override
-    public void readExternal(ObjectInput objInput) throws IOException, ClassNotFoundException {
+            key.readFields(dataInput);
 
-        name = objInput.readUTF();
+            V value = newValue();
 
-        keyClass = (Class<K>) objInput.readObject();
-        valueClass = (Class<V>) objInput.readObject();
-        reductionFunction = (ReductionFunction<V>) objInput.readObject();
-        endAggregationFunction = (EndAggregationFunction<K,V>) objInput.readObject();
+            value.readFields(dataInput);
 
-        if (keyValueMap == null) {
-            keyValueMap = new HashMap<>();
+            keyValueMap.put(key, value);
         }
+    }
 
-        try {
-
-            Constructor<K> keyClassConstructor = keyClass.getConstructor();
-            Constructor<V> valueClassConstructor = valueClass.getConstructor();
-
-            int numEntries = objInput.readInt();
-
-            for (int i = 0; i < numEntries; ++i) {
-                K key = keyClassConstructor.newInstance();
-
-                key.readFields(objInput);
-
-                V value = valueClassConstructor.newInstance();
-
-                value.readFields(objInput);
+    /**
+     * Java serialization uses the same format as {@link #write(DataOutput)}:
+     * classes and functions are not shipped but looked up by name in the
+     * aggregations registered in the receiving JVM's configuration.
+     */
+    @Override
+    public void writeExternal(ObjectOutput objOutput) throws IOException {
+        write(objOutput);
+    }
 
-                keyValueMap.put(key, value);
-            }
-        } catch (Exception e) {
-            throw new RuntimeException("Error reading aggregation storage", e);
-        }
+    @Override
+    public void readExternal(ObjectInput objInput) throws IOException, ClassNotFoundException {
+        readFields(objInput);
     }
 
     @Override
@@ -230,31 +271,9 @@ public class AggregationStorage<K extends Writable, V extends Writable> implemen
 
         init(name);
 
-        try {
-            Constructor<K> keyClassConstructor = keyClass.getConstructor();
-            Constructor<V> valueClassConstructor = valueClass.getConstructor();
-
-            int numEntries = dataInput.readInt();
-
-            for (int i = 0; i < numEntries; ++i) {
-                K key = keyClassConstructor.newInstance();
-
-                key.readFields(dataInput);
-
-                V value = valueClassConstructor.newInstance();
-
-                value.readFields(dataInput);
-
-                keyValueMap.put(key, value);
-            }
-        } catch (Exception e) {
-            throw new RuntimeException("Error reading aggregation storage", e);
-        }
-
+        readEntries(dataInput);
     }
 
-    
-
     public void endedAggregation() {
         if (endAggregationFunction != null) {
             endAggregationFunction.endAggregation(this);
@@ -274,6 +293,11 @@ public class AggregationStorage<K extends Writable, V extends Writable> implemen
                 '}';
     }
 
+    /**
+     * Whole output built in memory, fine for small aggregations only; large
+     * ones are streamed with
+     * {@link qfrag.aggregation.external.AggregationOutputWriter}.
+     */
     public String toOutputString() {
         StringBuilder strBuilder = new StringBuilder();
 
@@ -297,4 +321,8 @@ public class AggregationStorage<K extends Writable, V extends Writable> implemen
     public boolean containsKey(K key) {
         return keyValueMap.containsKey(key);
     }
+
+    public interface MappingConsumer<K, V> {
+        void accept(K key, V value) throws IOException;
+    }
 }
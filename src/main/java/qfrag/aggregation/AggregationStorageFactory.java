@@ -15,8 +15,6 @@ public class AggregationStorageFactory {
             throw new RuntimeException("Attempted to create unregistered aggregation storage");
         }
 
-        Class<?> keyClass = metadata.getKeyClass();
-
-        return null;
+        return metadata.createStorage(name);
     }
 }
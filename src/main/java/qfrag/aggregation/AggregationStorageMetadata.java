@@ -2,8 +2,11 @@ package qfrag.aggregation;
 
 import qfrag.aggregation.reductions.ReductionFunction;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableFactories;
+import org.apache.hadoop.io.WritableFactory;
 
 import java.io.Serializable;
+import java.lang.reflect.Constructor;
 
 public class AggregationStorageMetadata<K extends Writable, V extends Writable> implements Serializable {
     private Class<? extends AggregationStorage> aggStorageClass;
@@ -13,6 +16,12 @@ public class AggregationStorageMetadata<K extends Writable, V extends Writable>
     private ReductionFunction<V> reductionFunction;
     private EndAggregationFunction<K, V> endAggregationFunction;
     private int numSplits;
+    private int capacity;
+
+    // resolved once per JVM, the first time an instance is created
+    private transient Constructor<? extends AggregationStorage> storageConstructor;
+    private transient WritableFactory keyFactory;
+    private transient WritableFactory valueFactory;
 
     public AggregationStorageMetadata(Class<? extends AggregationStorage> aggStorageClass,
                                       Class<K> keyClass, Class<V> valueClass,
@@ -29,6 +38,17 @@ public class AggregationStorageMetadata<K extends Writable, V extends Writable>
         this.numSplits = numSplits;
     }
 
+    public AggregationStorageMetadata(Class<? extends AggregationStorage> aggStorageClass,
+                                      Class<K> keyClass, Class<V> valueClass,
+                                      boolean persistent,
+                                      ReductionFunction<V> reductionFunction,
+                                      EndAggregationFunction<K, V> endAggregationFunction,
+                                      int numSplits, int capacity) {
+        this(aggStorageClass, keyClass, valueClass, persistent, reductionFunction, endAggregationFunction,
+                numSplits);
+        this.capacity = capacity;
+    }
+
     public Class<? extends AggregationStorage> getAggregationStorageClass() {
         return aggStorageClass;
     }
@@ -57,6 +77,82 @@ public class AggregationStorageMetadata<K extends Writable, V extends Writable>
         return numSplits;
     }
 
+    /**
+     * @return maximum number of mappings kept by bounded storages, such as
+     * {@link TopKAggregationStorage}, or 0 for the configured default
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Creates a storage of the registered class through its cached
+     * (String) constructor.
+     */
+    public <S extends AggregationStorage<K, V>> S createStorage(String name) {
+        if (storageConstructor == null) {
+            try {
+                storageConstructor = aggStorageClass.getConstructor(String.class);
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException("No (String) constructor in " + aggStorageClass, e);
+            }
+        }
+
+        try {
+            return (S) storageConstructor.newInstance(name);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Unable to create aggregation storage " + name + " of " + aggStorageClass, e);
+        }
+    }
+
+    public K createKey() {
+        if (keyFactory == null) {
+            keyFactory = factoryOf(keyClass);
+        }
+
+        return (K) keyFactory.newInstance();
+    }
+
+    public V createValue() {
+        if (valueFactory == null) {
+            valueFactory = factoryOf(valueClass);
+        }
+
+        return (V) valueFactory.newInstance();
+    }
+
+    /**
+     * @return the factory registered in Hadoop's WritableFactories for
+     * writableClass, or one calling its cached no-argument constructor
+     */
+    private static WritableFactory factoryOf(final Class<? extends Writable> writableClass) {
+        WritableFactory factory = WritableFactories.getFactory(writableClass);
+
+        if (factory != null) {
+            return factory;
+        }
+
+        final Constructor<? extends Writable> constructor;
+
+        try {
+            constructor = writableClass.getDeclaredConstructor();
+            constructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException("No default constructor in " + writableClass, e);
+        }
+
+        return new WritableFactory() {
+            @Override
+            public Writable newInstance() {
+                try {
+                    return constructor.newInstance();
+                } catch (ReflectiveOperationException e) {
+                    throw new RuntimeException("Unable to create instance of " + writableClass, e);
+                }
+            }
+        };
+    }
+
     @Override
     public String toString() {
         return "AggregationStorageMetadata{" +
@@ -66,6 +162,7 @@ public class AggregationStorageMetadata<K extends Writable, V extends Writable>
                 ", reductionFunction=" + reductionFunction +
                 ", endAggregationFunction=" + endAggregationFunction +
                 ", numSplits=" + numSplits +
+                ", capacity=" + capacity +
                 '}';
     }
 }
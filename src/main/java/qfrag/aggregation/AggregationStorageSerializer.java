@@ -0,0 +1,58 @@
+package qfrag.aggregation;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import qfrag.conf.Configuration;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Kryo serializer for every {@link AggregationStorage} class, writing the
+ * storage's Writable form: the aggregation name followed by its mappings.
+ * Reading creates the storage registered under that name in the JVM's
+ * configuration, so classes and functions never travel with the storage.
+ * <p/>
+ * The {@link AggregationsContext} of the writing JVM (broadcast handles,
+ * written once per stream with reference tracking) precedes the storage and
+ * is installed before reading it, so the reading JVM does not need to have
+ * run any task of the computation.
+ */
+public class AggregationStorageSerializer extends Serializer<AggregationStorage> {
+    @Override
+    public void write(Kryo kryo, Output output, AggregationStorage storage) {
+        kryo.writeClassAndObject(output, AggregationsContext.get());
+
+        try {
+            storage.write(new DataOutputStream(output));
+        } catch (IOException e) {
+            throw new KryoException("Unable to write aggregation storage " + storage.getName(), e);
+        }
+    }
+
+    @Override
+    public AggregationStorage read(Kryo kryo, Input input, Class<AggregationStorage> type) {
+        AggregationsContext context = (AggregationsContext) kryo.readClassAndObject(input);
+
+        if (context != null) {
+            context.install();
+        }
+
+        DataInputStream dataInput = new DataInputStream(input);
+
+        try {
+            String name = dataInput.readUTF();
+            AggregationStorage storage = Configuration.get().createAggregationStorage(name);
+
+            storage.readEntries(dataInput);
+
+            return storage;
+        } catch (IOException e) {
+            throw new KryoException("Unable to read aggregation storage", e);
+        }
+    }
+}
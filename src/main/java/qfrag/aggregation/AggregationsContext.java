@@ -0,0 +1,52 @@
+package qfrag.aggregation;
+
+import org.apache.spark.broadcast.Broadcast;
+import qfrag.conf.Configuration;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * Broadcast configuration and registered aggregations of the computation
+ * this JVM last took part in. Installing it makes them known to the JVM's
+ * {@link Configuration}, so aggregation storages can be created there.
+ * <p/>
+ * Only the broadcast handles are serialized, so {@link AggregationStorageSerializer}
+ * ships the context with every storage and installs it when reading, in
+ * JVMs that may not have run any task of the computation yet.
+ */
+public class AggregationsContext implements Serializable {
+    private static volatile AggregationsContext current = null;
+
+    private final Broadcast<? extends Configuration> configBc;
+    private final Broadcast<HashMap<String, AggregationStorageMetadata>> metadataBc;
+
+    public AggregationsContext(Broadcast<? extends Configuration> configBc,
+                               Broadcast<HashMap<String, AggregationStorageMetadata>> metadataBc) {
+        this.configBc = configBc;
+        this.metadataBc = metadataBc;
+    }
+
+    /**
+     * @return context last installed in this JVM, or null
+     */
+    public static AggregationsContext get() {
+        return current;
+    }
+
+    /**
+     * Sets the broadcast configuration as this JVM's, if it is not already,
+     * and adds the aggregations registered on the driver to it.
+     */
+    public void install() {
+        configBc.value().initialize();
+
+        Configuration config = Configuration.get();
+
+        if (metadataBc != null && config.getAggregationsMetadata().size() < metadataBc.value().size()) {
+            config.setAggregationsMetadata(new HashMap<>(metadataBc.value()));
+        }
+
+        current = this;
+    }
+}
@@ -0,0 +1,95 @@
+package qfrag.aggregation;
+
+import org.apache.giraph.utils.UnsafeByteArrayOutputStream;
+import org.apache.giraph.utils.UnsafeReusableByteArrayInput;
+import org.apache.giraph.utils.WritableUtils;
+import org.apache.hadoop.io.Writable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * {@link AggregationStorage} that many threads can update at once.
+ * <p/>
+ * Mappings live in a ConcurrentHashMap and every update goes through
+ * ConcurrentHashMap.merge, so the reduction of a key runs under the lock of
+ * that key's bin only (inserts into empty bins are a CAS). Compute threads of
+ * an executor can therefore aggregate directly into a shared storage, or
+ * merge their local storages with {@link #finalLocalAggregate} without
+ * serializing on one monitor. Reductions may keep mutating and returning
+ * their first argument as usual. Removing keys while other threads aggregate
+ * them is not supported.
+ */
+public class ConcurrentAggregationStorage<K extends Writable, V extends Writable> extends AggregationStorage<K, V> {
+    private BiFunction<V, V, V> reducer;
+
+    private final ThreadLocal<UnsafeByteArrayOutputStream> reusedOut = new ThreadLocal<UnsafeByteArrayOutputStream>() {
+        @Override
+        protected UnsafeByteArrayOutputStream initialValue() {
+            return new UnsafeByteArrayOutputStream();
+        }
+    };
+
+    private final ThreadLocal<UnsafeReusableByteArrayInput> reusedIn = new ThreadLocal<UnsafeReusableByteArrayInput>() {
+        @Override
+        protected UnsafeReusableByteArrayInput initialValue() {
+            return new UnsafeReusableByteArrayInput();
+        }
+    };
+
+    public ConcurrentAggregationStorage() {
+    }
+
+    public ConcurrentAggregationStorage(String name) {
+        super(name);
+    }
+
+    @Override
+    protected Map<K, V> createMap() {
+        return new ConcurrentHashMap<>();
+    }
+
+    private BiFunction<V, V, V> getReducer() {
+        if (reducer == null) {
+            reducer = reductionFunction::reduce;
+        }
+
+        return reducer;
+    }
+
+    // Thread-safe
+    // Watch out if reusing either Key or Value. Copies ARE NOT MADE!!!
+    @Override
+    public void aggregate(K key, V value) {
+        keyValueMap.merge(key, value, getReducer());
+    }
+
+    // Thread-safe, copies key and value only when the key is new
+    @Override
+    public void aggregateWithReusables(K key, V value) {
+        if (!keyValueMap.containsKey(key) && keyValueMap.putIfAbsent(copyWritable(key), copyWritable(value)) == null) {
+            return;
+        }
+
+        keyValueMap.merge(key, value, getReducer());
+    }
+
+    // Thread-safe, without locking the whole storage
+    @Override
+    public void finalLocalAggregate(AggregationStorage<K, V> otherStorage) {
+        aggregate(otherStorage);
+    }
+
+    private <W extends Writable> W copyWritable(W writable) {
+        return WritableUtils.createCopy(reusedOut.get(), reusedIn.get(), writable, null);
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrentAggregationStorage{" +
+                "name='" + getName() + '\'' +
+                ", numberMappings=" + keyValueMap.size() +
+                '}';
+    }
+}
@@ -0,0 +1,112 @@
+package qfrag.aggregation;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Writable;
+import qfrag.aggregation.sketches.CountMinSketchWritable;
+import qfrag.conf.Configuration;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Estimates the summed weight of every key over huge key spaces in a
+ * {@link CountMinSketchWritable} of the configured dimensions. getValue
+ * returns the estimate, an upper bound on the true sum (null if 0), and the
+ * number of mappings is a lower bound on the distinct keys aggregated.
+ * Weights must not be negative.
+ */
+public class CountMinAggregationStorage<K extends Writable> extends SketchAggregationStorage<K> {
+    private CountMinSketchWritable sketch;
+    private CountMinSketchWritable reusedSketch;
+
+    public CountMinAggregationStorage() {
+    }
+
+    public CountMinAggregationStorage(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void init(String name) {
+        super.init(name);
+
+        Configuration config = Configuration.get();
+        sketch = new CountMinSketchWritable(config.getCountMinWidth(), config.getCountMinDepth());
+    }
+
+    @Override
+    public void reset() {
+        if (sketch != null) {
+            sketch.clear();
+        }
+    }
+
+    public CountMinSketchWritable getSketch() {
+        return sketch;
+    }
+
+    /**
+     * @return upper bound on the summed weight of key
+     */
+    public long getEstimate(K key) {
+        return sketch.estimate(hashKey(key));
+    }
+
+    @Override
+    protected void offer(long keyHash, long weight) {
+        sketch.add(keyHash, weight);
+    }
+
+    @Override
+    protected void merge(SketchAggregationStorage<K> other) {
+        sketch.merge(((CountMinAggregationStorage<K>) other).sketch);
+    }
+
+    @Override
+    public int getNumberMappings() {
+        return sketch.getNumberNonZero();
+    }
+
+    @Override
+    public LongWritable getValue(K key) {
+        long estimate = getEstimate(key);
+
+        return estimate == 0 ? null : new LongWritable(estimate);
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return getEstimate(key) != 0;
+    }
+
+    @Override
+    protected void writeEntries(DataOutput dataOutput) throws IOException {
+        sketch.write(dataOutput);
+    }
+
+    @Override
+    protected void readEntries(DataInput dataInput) throws IOException {
+        if (reusedSketch == null) {
+            reusedSketch = new CountMinSketchWritable(sketch.getWidth(), sketch.getDepth());
+        }
+
+        reusedSketch.readFields(dataInput);
+        sketch.merge(reusedSketch);
+    }
+
+    @Override
+    public String toString() {
+        return "CountMinAggregationStorage{" +
+                "name='" + getName() + '\'' +
+                ", width=" + sketch.getWidth() +
+                ", depth=" + sketch.getDepth() +
+                ", totalWeight=" + sketch.getTotalWeight() +
+                '}';
+    }
+
+    @Override
+    public String toOutputString() {
+        return "total weight: " + sketch.getTotalWeight() + ", error bound: " + sketch.getErrorBound() + '\n';
+    }
+}
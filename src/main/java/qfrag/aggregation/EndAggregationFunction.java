@@ -6,4 +6,15 @@ import java.io.Serializable;
 
 public interface EndAggregationFunction<K extends Writable, V extends Writable> extends Serializable {
     void endAggregation(AggregationStorage<K, V> aggregationStorage);
+
+    /**
+     * Whether the function may run on each split of an aggregation where the
+     * split is reduced, instead of once on the master over the whole
+     * aggregation. It must then only depend on the entries it is given, as
+     * filtering by a minimum support does; only the entries the splits keep
+     * reach the master.
+     */
+    default boolean isSplitParallel() {
+        return false;
+    }
 }
@@ -0,0 +1,107 @@
+package qfrag.aggregation;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Writable;
+import qfrag.aggregation.sketches.HyperLogLogWritable;
+import qfrag.conf.Configuration;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Counts the distinct keys aggregated, e.g. the data vertices taking part in
+ * matches, in a {@link HyperLogLogWritable} of the configured precision.
+ * Values are ignored. The number of mappings is the estimated number of
+ * distinct keys.
+ */
+public class HyperLogLogAggregationStorage<K extends Writable> extends SketchAggregationStorage<K> {
+    private HyperLogLogWritable sketch;
+    private HyperLogLogWritable reusedSketch;
+
+    public HyperLogLogAggregationStorage() {
+    }
+
+    public HyperLogLogAggregationStorage(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void init(String name) {
+        super.init(name);
+
+        sketch = new HyperLogLogWritable(Configuration.get().getHllPrecision());
+    }
+
+    @Override
+    public void reset() {
+        if (sketch != null) {
+            sketch.clear();
+        }
+    }
+
+    public HyperLogLogWritable getSketch() {
+        return sketch;
+    }
+
+    /**
+     * @return estimated number of distinct keys aggregated
+     */
+    public long getCardinality() {
+        return sketch.estimate();
+    }
+
+    @Override
+    protected void offer(long keyHash, long weight) {
+        sketch.offer(keyHash);
+    }
+
+    @Override
+    protected void merge(SketchAggregationStorage<K> other) {
+        sketch.merge(((HyperLogLogAggregationStorage<K>) other).sketch);
+    }
+
+    @Override
+    public int getNumberMappings() {
+        return (int) Math.min(Integer.MAX_VALUE, getCardinality());
+    }
+
+    @Override
+    public LongWritable getValue(K key) {
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return false;
+    }
+
+    @Override
+    protected void writeEntries(DataOutput dataOutput) throws IOException {
+        sketch.write(dataOutput);
+    }
+
+    @Override
+    protected void readEntries(DataInput dataInput) throws IOException {
+        if (reusedSketch == null) {
+            reusedSketch = new HyperLogLogWritable(sketch.getPrecision());
+        }
+
+        reusedSketch.readFields(dataInput);
+        sketch.merge(reusedSketch);
+    }
+
+    @Override
+    public String toString() {
+        return "HyperLogLogAggregationStorage{" +
+                "name='" + getName() + '\'' +
+                ", precision=" + sketch.getPrecision() +
+                ", cardinality=" + getCardinality() +
+                '}';
+    }
+
+    @Override
+    public String toOutputString() {
+        return "distinct keys: " + getCardinality() + '\n';
+    }
+}
@@ -0,0 +1,145 @@
+package qfrag.aggregation;
+
+import com.koloboke.collect.map.IntLongCursor;
+import com.koloboke.collect.map.hash.HashIntLongMap;
+import com.koloboke.collect.map.hash.HashIntLongMaps;
+import com.koloboke.function.LongBinaryOperator;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * {@link PrimitiveAggregationStorage} for int keys and long values.
+ */
+public class IntLongAggregationStorage extends PrimitiveAggregationStorage<IntWritable, LongWritable> {
+    private HashIntLongMap primitiveMap;
+    private LongBinaryOperator reduction;
+
+    public IntLongAggregationStorage() {
+    }
+
+    public IntLongAggregationStorage(String name) {
+        super(name);
+    }
+
+    @Override
+    public void reset() {
+        if (primitiveMap == null) {
+            primitiveMap = HashIntLongMaps.newMutableMap();
+        } else {
+            primitiveMap.clear();
+        }
+
+        reduction = null;
+    }
+
+    @Override
+    public int getNumberMappings() {
+        return primitiveMap.size();
+    }
+
+    @Override
+    protected void forEachMapping(MappingConsumer<IntWritable, LongWritable> consumer, boolean reuse)
+            throws IOException {
+        IntWritable key = new IntWritable();
+        LongWritable value = new LongWritable();
+        IntLongCursor cursor = primitiveMap.cursor();
+
+        while (cursor.moveNext()) {
+            if (!reuse) {
+                key = new IntWritable();
+                value = new LongWritable();
+            }
+
+            key.set(cursor.key());
+            value.set(cursor.value());
+            consumer.accept(key, value);
+        }
+    }
+
+    @Override
+    public LongWritable getValue(IntWritable key) {
+        return primitiveMap.containsKey(key.get()) ? new LongWritable(primitiveMap.get(key.get())) : null;
+    }
+
+    public long getValue(int key, long defaultValue) {
+        return primitiveMap.getOrDefault(key, defaultValue);
+    }
+
+    @Override
+    public boolean containsKey(IntWritable key) {
+        return primitiveMap.containsKey(key.get());
+    }
+
+    @Override
+    public void removeKey(IntWritable key) {
+        primitiveMap.remove(key.get());
+    }
+
+    @Override
+    public void aggregate(IntWritable key, LongWritable value) {
+        aggregate(key.get(), value.get());
+    }
+
+    public void aggregate(int key, long value) {
+        if (reduction == null) {
+            reduction = longReduction();
+        }
+
+        primitiveMap.merge(key, value, reduction);
+    }
+
+    @Override
+    protected void merge(PrimitiveAggregationStorage<IntWritable, LongWritable> other) {
+        IntLongCursor cursor = ((IntLongAggregationStorage) other).primitiveMap.cursor();
+
+        while (cursor.moveNext()) {
+            aggregate(cursor.key(), cursor.value());
+        }
+    }
+
+    @Override
+    protected void writeEntries(DataOutput dataOutput) throws IOException {
+        dataOutput.writeInt(primitiveMap.size());
+
+        IntLongCursor cursor = primitiveMap.cursor();
+
+        while (cursor.moveNext()) {
+            dataOutput.writeInt(cursor.key());
+            dataOutput.writeLong(cursor.value());
+        }
+    }
+
+    @Override
+    protected void readEntries(DataInput dataInput) throws IOException {
+        int numEntries = dataInput.readInt();
+
+        primitiveMap.ensureCapacity(numEntries);
+
+        for (int i = 0; i < numEntries; ++i) {
+            int key = dataInput.readInt();
+            primitiveMap.put(key, dataInput.readLong());
+        }
+    }
+
+    @Override
+    public String toOutputString() {
+        int[] keys = primitiveMap.keySet().toArray(new int[primitiveMap.size()]);
+        Arrays.sort(keys);
+
+        StringBuilder strBuilder = new StringBuilder();
+
+        for (int key : keys) {
+            strBuilder.append(key);
+            strBuilder.append(": ");
+            strBuilder.append(primitiveMap.get(key));
+            strBuilder.append('\n');
+        }
+
+        return strBuilder.toString();
+    }
+}
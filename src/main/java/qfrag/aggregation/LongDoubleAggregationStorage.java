@@ -0,0 +1,145 @@
+package qfrag.aggregation;
+
+import com.koloboke.collect.map.LongDoubleCursor;
+import com.koloboke.collect.map.hash.HashLongDoubleMap;
+import com.koloboke.collect.map.hash.HashLongDoubleMaps;
+import com.koloboke.function.DoubleBinaryOperator;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.LongWritable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * {@link PrimitiveAggregationStorage} for long keys and double values.
+ */
+public class LongDoubleAggregationStorage extends PrimitiveAggregationStorage<LongWritable, DoubleWritable> {
+    private HashLongDoubleMap primitiveMap;
+    private DoubleBinaryOperator reduction;
+
+    public LongDoubleAggregationStorage() {
+    }
+
+    public LongDoubleAggregationStorage(String name) {
+        super(name);
+    }
+
+    @Override
+    public void reset() {
+        if (primitiveMap == null) {
+            primitiveMap = HashLongDoubleMaps.newMutableMap();
+        } else {
+            primitiveMap.clear();
+        }
+
+        reduction = null;
+    }
+
+    @Override
+    public int getNumberMappings() {
+        return primitiveMap.size();
+    }
+
+    @Override
+    protected void forEachMapping(MappingConsumer<LongWritable, DoubleWritable> consumer, boolean reuse)
+            throws IOException {
+        LongWritable key = new LongWritable();
+        DoubleWritable value = new DoubleWritable();
+        LongDoubleCursor cursor = primitiveMap.cursor();
+
+        while (cursor.moveNext()) {
+            if (!reuse) {
+                key = new LongWritable();
+                value = new DoubleWritable();
+            }
+
+            key.set(cursor.key());
+            value.set(cursor.value());
+            consumer.accept(key, value);
+        }
+    }
+
+    @Override
+    public DoubleWritable getValue(LongWritable key) {
+        return primitiveMap.containsKey(key.get()) ? new DoubleWritable(primitiveMap.get(key.get())) : null;
+    }
+
+    public double getValue(long key, double defaultValue) {
+        return primitiveMap.getOrDefault(key, defaultValue);
+    }
+
+    @Override
+    public boolean containsKey(LongWritable key) {
+        return primitiveMap.containsKey(key.get());
+    }
+
+    @Override
+    public void removeKey(LongWritable key) {
+        primitiveMap.remove(key.get());
+    }
+
+    @Override
+    public void aggregate(LongWritable key, DoubleWritable value) {
+        aggregate(key.get(), value.get());
+    }
+
+    public void aggregate(long key, double value) {
+        if (reduction == null) {
+            reduction = doubleReduction();
+        }
+
+        primitiveMap.merge(key, value, reduction);
+    }
+
+    @Override
+    protected void merge(PrimitiveAggregationStorage<LongWritable, DoubleWritable> other) {
+        LongDoubleCursor cursor = ((LongDoubleAggregationStorage) other).primitiveMap.cursor();
+
+        while (cursor.moveNext()) {
+            aggregate(cursor.key(), cursor.value());
+        }
+    }
+
+    @Override
+    protected void writeEntries(DataOutput dataOutput) throws IOException {
+        dataOutput.writeInt(primitiveMap.size());
+
+        LongDoubleCursor cursor = primitiveMap.cursor();
+
+        while (cursor.moveNext()) {
+            dataOutput.writeLong(cursor.key());
+            dataOutput.writeDouble(cursor.value());
+        }
+    }
+
+    @Override
+    protected void readEntries(DataInput dataInput) throws IOException {
+        int numEntries = dataInput.readInt();
+
+        primitiveMap.ensureCapacity(numEntries);
+
+        for (int i = 0; i < numEntries; ++i) {
+            long key = dataInput.readLong();
+            primitiveMap.put(key, dataInput.readDouble());
+        }
+    }
+
+    @Override
+    public String toOutputString() {
+        long[] keys = primitiveMap.keySet().toArray(new long[primitiveMap.size()]);
+        Arrays.sort(keys);
+
+        StringBuilder strBuilder = new StringBuilder();
+
+        for (long key : keys) {
+            strBuilder.append(key);
+            strBuilder.append(": ");
+            strBuilder.append(primitiveMap.get(key));
+            strBuilder.append('\n');
+        }
+
+        return strBuilder.toString();
+    }
+}
@@ -0,0 +1,144 @@
+package qfrag.aggregation;
+
+import com.koloboke.collect.map.LongLongCursor;
+import com.koloboke.collect.map.hash.HashLongLongMap;
+import com.koloboke.collect.map.hash.HashLongLongMaps;
+import com.koloboke.function.LongBinaryOperator;
+import org.apache.hadoop.io.LongWritable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * {@link PrimitiveAggregationStorage} for long keys and long values.
+ */
+public class LongLongAggregationStorage extends PrimitiveAggregationStorage<LongWritable, LongWritable> {
+    private HashLongLongMap primitiveMap;
+    private LongBinaryOperator reduction;
+
+    public LongLongAggregationStorage() {
+    }
+
+    public LongLongAggregationStorage(String name) {
+        super(name);
+    }
+
+    @Override
+    public void reset() {
+        if (primitiveMap == null) {
+            primitiveMap = HashLongLongMaps.newMutableMap();
+        } else {
+            primitiveMap.clear();
+        }
+
+        reduction = null;
+    }
+
+    @Override
+    public int getNumberMappings() {
+        return primitiveMap.size();
+    }
+
+    @Override
+    protected void forEachMapping(MappingConsumer<LongWritable, LongWritable> consumer, boolean reuse)
+            throws IOException {
+        LongWritable key = new LongWritable();
+        LongWritable value = new LongWritable();
+        LongLongCursor cursor = primitiveMap.cursor();
+
+        while (cursor.moveNext()) {
+            if (!reuse) {
+                key = new LongWritable();
+                value = new LongWritable();
+            }
+
+            key.set(cursor.key());
+            value.set(cursor.value());
+            consumer.accept(key, value);
+        }
+    }
+
+    @Override
+    public LongWritable getValue(LongWritable key) {
+        return primitiveMap.containsKey(key.get()) ? new LongWritable(primitiveMap.get(key.get())) : null;
+    }
+
+    public long getValue(long key, long defaultValue) {
+        return primitiveMap.getOrDefault(key, defaultValue);
+    }
+
+    @Override
+    public boolean containsKey(LongWritable key) {
+        return primitiveMap.containsKey(key.get());
+    }
+
+    @Override
+    public void removeKey(LongWritable key) {
+        primitiveMap.remove(key.get());
+    }
+
+    @Override
+    public void aggregate(LongWritable key, LongWritable value) {
+        aggregate(key.get(), value.get());
+    }
+
+    public void aggregate(long key, long value) {
+        if (reduction == null) {
+            reduction = longReduction();
+        }
+
+        primitiveMap.merge(key, value, reduction);
+    }
+
+    @Override
+    protected void merge(PrimitiveAggregationStorage<LongWritable, LongWritable> other) {
+        LongLongCursor cursor = ((LongLongAggregationStorage) other).primitiveMap.cursor();
+
+        while (cursor.moveNext()) {
+            aggregate(cursor.key(), cursor.value());
+        }
+    }
+
+    @Override
+    protected void writeEntries(DataOutput dataOutput) throws IOException {
+        dataOutput.writeInt(primitiveMap.size());
+
+        LongLongCursor cursor = primitiveMap.cursor();
+
+        while (cursor.moveNext()) {
+            dataOutput.writeLong(cursor.key());
+            dataOutput.writeLong(cursor.value());
+        }
+    }
+
+    @Override
+    protected void readEntries(DataInput dataInput) throws IOException {
+        int numEntries = dataInput.readInt();
+
+        primitiveMap.ensureCapacity(numEntries);
+
+        for (int i = 0; i < numEntries; ++i) {
+            long key = dataInput.readLong();
+            primitiveMap.put(key, dataInput.readLong());
+        }
+    }
+
+    @Override
+    public String toOutputString() {
+        long[] keys = primitiveMap.keySet().toArray(new long[primitiveMap.size()]);
+        Arrays.sort(keys);
+
+        StringBuilder strBuilder = new StringBuilder();
+
+        for (long key : keys) {
+            strBuilder.append(key);
+            strBuilder.append(": ");
+            strBuilder.append(primitiveMap.get(key));
+            strBuilder.append('\n');
+        }
+
+        return strBuilder.toString();
+    }
+}
@@ -0,0 +1,59 @@
+package qfrag.aggregation;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * {@link AggregationStorage} that keeps its mappings outside the Java heap,
+ * for aggregations with more keys than the executors' heaps (or GC) can take.
+ * <p/>
+ * The records and the index of its {@link SerializedRecordTable} live in
+ * direct buffers: record slabs grow geometrically up to
+ * {@link #SLAB_SIZE}, and the index is split in pages of
+ * {@link #INDEX_PAGE_SLOTS} slots. All native memory is released in
+ * {@link #reset()}.
+ * <p/>
+ * Not thread-safe. Like the generic storage, serialized mappings are the
+ * keys' and values' Writable bytes, so both formats are interchangeable.
+ */
+public class OffHeapAggregationStorage<K extends Writable, V extends Writable>
+        extends SerializedAggregationStorage<K, V> {
+    public static final int SLAB_SIZE = SerializedRecordTable.SLAB_SIZE;
+    public static final int INDEX_PAGE_SLOTS = SerializedRecordTable.INDEX_PAGE_SLOTS;
+
+    public OffHeapAggregationStorage() {
+    }
+
+    public OffHeapAggregationStorage(String name) {
+        super(name);
+    }
+
+    @Override
+    protected boolean isOffHeap() {
+        return true;
+    }
+
+    /**
+     * @return native memory held by the slabs and the index, in bytes
+     */
+    public long getOffHeapBytes() {
+        return table.getAllocatedBytes();
+    }
+
+    /**
+     * @return bytes of slab space taken by superseded records
+     */
+    public long getWastedBytes() {
+        return table.getWastedBytes();
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapAggregationStorage{" +
+                "name='" + getName() + '\'' +
+                ", numberMappings=" + table.size() +
+                ", numberSlabs=" + table.getNumSlabs() +
+                ", offHeapBytes=" + getOffHeapBytes() +
+                ", wastedBytes=" + getWastedBytes() +
+                '}';
+    }
+}
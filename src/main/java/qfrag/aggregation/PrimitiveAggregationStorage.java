@@ -0,0 +1,154 @@
+package qfrag.aggregation;
+
+import com.koloboke.function.DoubleBinaryOperator;
+import com.koloboke.function.LongBinaryOperator;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Writable;
+import qfrag.aggregation.reductions.DoubleReduction;
+import qfrag.aggregation.reductions.LongReduction;
+import qfrag.aggregation.reductions.ReductionFunction;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Base of the storages that keep keys and values of primitive types in a
+ * Koloboke open-addressing map instead of a HashMap of Writables.
+ * <p/>
+ * Aggregating allocates nothing: keys and values are unwrapped and reduced
+ * in a single probe of the map (its merge), through the primitive form of
+ * the reduction ({@link LongReduction}, {@link DoubleReduction}) or, for any
+ * other {@link ReductionFunction}, through two reused Writables. Serialized
+ * mappings have the same layout as the generic storage's. Views returning
+ * Writables (getKeys, getMapping, getValue) materialize them on every call
+ * and are meant for output, not hot loops; forEachMapping streams the
+ * mappings through two reused Writables.
+ */
+public abstract class PrimitiveAggregationStorage<K extends Writable, V extends Writable>
+        extends AggregationStorage<K, V> {
+    public PrimitiveAggregationStorage() {
+    }
+
+    public PrimitiveAggregationStorage(String name) {
+        super(name);
+    }
+
+    /**
+     * Feeds every mapping to consumer, as new Writables, or as the same two
+     * Writables set to each mapping in turn if reuse is set.
+     */
+    protected abstract void forEachMapping(MappingConsumer<K, V> consumer, boolean reuse) throws IOException;
+
+    /**
+     * Aggregates the map of other, a storage of the same class, into this
+     * storage's.
+     */
+    protected abstract void merge(PrimitiveAggregationStorage<K, V> other);
+
+    @Override
+    public Set<K> getKeys() {
+        Set<K> keys = new HashSet<>(getNumberMappings());
+
+        forEachNewMapping((key, value) -> keys.add(key));
+
+        return Collections.unmodifiableSet(keys);
+    }
+
+    @Override
+    public Map<K, V> getMapping() {
+        Map<K, V> mapping = new HashMap<>(getNumberMappings());
+
+        forEachNewMapping(mapping::put);
+
+        return Collections.unmodifiableMap(mapping);
+    }
+
+    @Override
+    public void forEachMapping(MappingConsumer<K, V> consumer) throws IOException {
+        forEachMapping(consumer, true);
+    }
+
+    @Override
+    public K getKey(K key) {
+        return containsKey(key) ? key : null;
+    }
+
+    // Keys and values are unwrapped right away, so reusing them is safe here
+    @Override
+    public void aggregateWithReusables(K key, V value) {
+        aggregate(key, value);
+    }
+
+    @Override
+    public void aggregate(AggregationStorage<K, V> otherStorage) {
+        if (otherStorage.getClass() != getClass()) {
+            super.aggregate(otherStorage);
+            return;
+        }
+
+        if (!getName().equals(otherStorage.getName())) {
+            throw new RuntimeException("Aggregating storages with different names");
+        }
+
+        merge((PrimitiveAggregationStorage<K, V>) otherStorage);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+                "name='" + getName() + '\'' +
+                ", numberMappings=" + getNumberMappings() +
+                '}';
+    }
+
+    /**
+     * @return the reduction of a storage with LongWritable values, as an
+     * operator on longs
+     */
+    protected LongBinaryOperator longReduction() {
+        if (reductionFunction instanceof LongReduction) {
+            return ((LongReduction) reductionFunction)::reduce;
+        }
+
+        ReductionFunction<LongWritable> function = (ReductionFunction<LongWritable>) reductionFunction;
+        LongWritable current = new LongWritable();
+        LongWritable other = new LongWritable();
+
+        return (v1, v2) -> {
+            current.set(v1);
+            other.set(v2);
+
+            return function.reduce(current, other).get();
+        };
+    }
+
+    /**
+     * @return the reduction of a storage with DoubleWritable values, as an
+     * operator on doubles
+     */
+    protected DoubleBinaryOperator doubleReduction() {
+        if (reductionFunction instanceof DoubleReduction) {
+            return ((DoubleReduction) reductionFunction)::reduce;
+        }
+
+        ReductionFunction<DoubleWritable> function = (ReductionFunction<DoubleWritable>) reductionFunction;
+        DoubleWritable current = new DoubleWritable();
+        DoubleWritable other = new DoubleWritable();
+
+        return (v1, v2) -> {
+            current.set(v1);
+            other.set(v2);
+
+            return function.reduce(current, other).get();
+        };
+    }
+
+    private void forEachNewMapping(MappingConsumer<K, V> consumer) {
+        try {
+            forEachMapping(consumer, false);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read mappings of " + getName(), e);
+        }
+    }
+}
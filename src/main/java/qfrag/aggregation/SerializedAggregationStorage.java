@@ -0,0 +1,328 @@
+package qfrag.aggregation;
+
+import org.apache.giraph.utils.UnsafeByteArrayOutputStream;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import qfrag.utils.HashUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Base of the storages that keep their mappings serialized in a
+ * {@link SerializedRecordTable} instead of as Writable objects.
+ * <p/>
+ * Keys are hashed and compared as raw bytes, so a first-seen key costs one
+ * serialization into a reused buffer and a byte copy, instead of the
+ * serialize-and-deserialize copyWritable of the generic storage, and no
+ * object is created. Only reducing an existing key deserializes its value,
+ * into a reused Writable, with the
+ * {@link qfrag.aggregation.reductions.ReductionFunction}. Merging another
+ * serialized storage and writing move record bytes without creating
+ * objects. The serialized form is the same as the generic storage's, so both
+ * formats are interchangeable. Not thread-safe.
+ */
+public abstract class SerializedAggregationStorage<K extends Writable, V extends Writable>
+        extends AggregationStorage<K, V> {
+    protected SerializedRecordTable table;
+
+    private UnsafeByteArrayOutputStream keyOut;
+    private UnsafeByteArrayOutputStream valueOut;
+    private V currentValue;
+    private V otherValue;
+    private K reusedKey;
+    private V reusedValue;
+
+    public SerializedAggregationStorage() {
+    }
+
+    public SerializedAggregationStorage(String name) {
+        super(name);
+    }
+
+    /**
+     * @return whether the table is kept in direct buffers, outside the Java
+     * heap
+     */
+    protected abstract boolean isOffHeap();
+
+    /**
+     * Frees the table, then starts over with an empty one.
+     */
+    @Override
+    public void reset() {
+        if (table != null) {
+            table.free();
+        }
+
+        table = new SerializedRecordTable(isOffHeap());
+    }
+
+    @Override
+    public int getNumberMappings() {
+        return table.size();
+    }
+
+    @Override
+    public Set<K> getKeys() {
+        Set<K> keys = new HashSet<>(table.size());
+
+        for (int slot = 0; slot < table.capacity(); ++slot) {
+            long address = table.getAddress(slot);
+
+            if (address >= 0) {
+                keys.add(table.readKey(address, newKey()));
+            }
+        }
+
+        return Collections.unmodifiableSet(keys);
+    }
+
+    @Override
+    public Map<K, V> getMapping() {
+        Map<K, V> mapping = new HashMap<>(table.size());
+
+        for (int slot = 0; slot < table.capacity(); ++slot) {
+            long address = table.getAddress(slot);
+
+            if (address >= 0) {
+                mapping.put(table.readKey(address, newKey()), table.readValue(address, newValue()));
+            }
+        }
+
+        return Collections.unmodifiableMap(mapping);
+    }
+
+    @Override
+    public void forEachMapping(MappingConsumer<K, V> consumer) throws IOException {
+        K key = newKey();
+        V value = newValue();
+
+        for (int slot = 0; slot < table.capacity(); ++slot) {
+            long address = table.getAddress(slot);
+
+            if (address >= 0) {
+                consumer.accept(table.readKey(address, key), table.readValue(address, value));
+            }
+        }
+    }
+
+    @Override
+    public K getKey(K key) {
+        return containsKey(key) ? key : null;
+    }
+
+    @Override
+    public V getValue(K key) {
+        int slot = findKey(key);
+
+        return slot < 0 ? null : table.readValue(table.getAddress(slot), newValue());
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return findKey(key) >= 0;
+    }
+
+    @Override
+    public void removeKey(K key) {
+        int slot = findKey(key);
+
+        if (slot >= 0) {
+            table.remove(slot);
+        }
+    }
+
+    @Override
+    public void aggregate(K key, V value) {
+        int hash = serializeKey(key);
+        int slot = table.find(keyOut.getByteArray(), 0, keyOut.getPos(), hash);
+
+        if (slot < 0) {
+            serializeValue(value);
+            table.insert(keyOut.getByteArray(), 0, keyOut.getPos(), hash,
+                    valueOut.getByteArray(), 0, valueOut.getPos());
+        } else {
+            reduceInto(slot, value);
+        }
+    }
+
+    // Mappings are serialized right away, so reusing key or value is safe here
+    @Override
+    public void aggregateWithReusables(K key, V value) {
+        aggregate(key, value);
+    }
+
+    @Override
+    public void aggregate(AggregationStorage<K, V> otherStorage) {
+        if (!(otherStorage instanceof SerializedAggregationStorage)) {
+            super.aggregate(otherStorage);
+            return;
+        }
+
+        if (!getName().equals(otherStorage.getName())) {
+            throw new RuntimeException("Aggregating storages with different names");
+        }
+
+        SerializedRecordTable otherTable = ((SerializedAggregationStorage<K, V>) otherStorage).table;
+
+        for (int otherSlot = 0; otherSlot < otherTable.capacity(); ++otherSlot) {
+            long address = otherTable.getAddress(otherSlot);
+
+            if (address < 0) {
+                continue;
+            }
+
+            int keyLength = otherTable.getKeyLength(address);
+            int hash = otherTable.getHash(otherSlot);
+            byte[] record = otherTable.copyRecord(address);
+            int slot = table.find(record, 0, keyLength, hash);
+
+            if (slot < 0) {
+                table.insert(record, 0, keyLength, hash, record, keyLength, otherTable.getValueLength(address));
+            } else {
+                if (otherValue == null) {
+                    otherValue = newValue();
+                }
+
+                reduceInto(slot, otherTable.readValue(address, otherValue));
+            }
+        }
+    }
+
+    /**
+     * Reduces the value of the record in slot with value.
+     */
+    private void reduceInto(int slot, V value) {
+        if (currentValue == null) {
+            currentValue = newValue();
+        }
+
+        serializeValue(reductionFunction.reduce(table.readValue(table.getAddress(slot), currentValue), value));
+        table.setValue(slot, valueOut.getByteArray(), 0, valueOut.getPos());
+    }
+
+    @Override
+    protected void writeEntries(DataOutput dataOutput) throws IOException {
+        dataOutput.writeInt(table.size());
+
+        for (int slot = 0; slot < table.capacity(); ++slot) {
+            long address = table.getAddress(slot);
+
+            if (address >= 0) {
+                table.writeRecord(address, dataOutput);
+            }
+        }
+    }
+
+    @Override
+    protected void readEntries(DataInput dataInput) throws IOException {
+        if (reusedKey == null) {
+            reusedKey = newKey();
+            reusedValue = newValue();
+        }
+
+        int numEntries = dataInput.readInt();
+
+        for (int i = 0; i < numEntries; ++i) {
+            reusedKey.readFields(dataInput);
+            reusedValue.readFields(dataInput);
+
+            aggregate(reusedKey, reusedValue);
+        }
+    }
+
+    /**
+     * Lists the mappings ordered by the raw comparator registered for the key
+     * class, if it is a WritableComparable, without deserializing keys to
+     * sort them.
+     */
+    @Override
+    public String toOutputString() {
+        Long[] addresses = new Long[table.size()];
+        int numLive = 0;
+
+        for (int slot = 0; slot < table.capacity(); ++slot) {
+            long address = table.getAddress(slot);
+
+            if (address >= 0) {
+                addresses[numLive++] = address;
+            }
+        }
+
+        if (WritableComparable.class.isAssignableFrom(keyClass)) {
+            final WritableComparator comparator =
+                    WritableComparator.get(keyClass.asSubclass(WritableComparable.class));
+
+            Arrays.sort(addresses, new Comparator<Long>() {
+                @Override
+                public int compare(Long a1, Long a2) {
+                    return table.compareKeys(a1, a2, comparator);
+                }
+            });
+        }
+
+        K key = newKey();
+        V value = newValue();
+        StringBuilder strBuilder = new StringBuilder();
+
+        for (Long address : addresses) {
+            strBuilder.append(table.readKey(address, key));
+            strBuilder.append(": ");
+            strBuilder.append(table.readValue(address, value));
+            strBuilder.append('\n');
+        }
+
+        return strBuilder.toString();
+    }
+
+    /**
+     * @return slot of key, serialized into keyOut, or -1
+     */
+    private int findKey(K key) {
+        int hash = serializeKey(key);
+
+        return table.find(keyOut.getByteArray(), 0, keyOut.getPos(), hash);
+    }
+
+    /**
+     * Serializes key into keyOut.
+     *
+     * @return hash of the serialized key
+     */
+    private int serializeKey(K key) {
+        if (keyOut == null) {
+            keyOut = new UnsafeByteArrayOutputStream();
+        }
+
+        keyOut.reset();
+
+        try {
+            key.write(keyOut);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to serialize key " + key, e);
+        }
+
+        return HashUtils.hash(keyOut.getByteArray(), 0, keyOut.getPos());
+    }
+
+    /**
+     * Serializes value into valueOut.
+     */
+    private void serializeValue(V value) {
+        if (valueOut == null) {
+            valueOut = new UnsafeByteArrayOutputStream();
+        }
+
+        valueOut.reset();
+
+        try {
+            value.write(valueOut);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to serialize value " + value, e);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package qfrag.aggregation;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * {@link AggregationStorage} that keeps keys and values in serialized form
+ * in heap buffers, indexed by an open-addressing table over the key bytes
+ * (see {@link SerializedAggregationStorage}).
+ * <p/>
+ * Not thread-safe.
+ */
+public class SerializedKeyAggregationStorage<K extends Writable, V extends Writable>
+        extends SerializedAggregationStorage<K, V> {
+    public SerializedKeyAggregationStorage() {
+    }
+
+    public SerializedKeyAggregationStorage(String name) {
+        super(name);
+    }
+
+    @Override
+    protected boolean isOffHeap() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "SerializedKeyAggregationStorage{" +
+                "name='" + getName() + '\'' +
+                ", numberMappings=" + table.size() +
+                ", bytes=" + table.getAllocatedBytes() +
+                ", wastedBytes=" + table.getWastedBytes() +
+                '}';
+    }
+}
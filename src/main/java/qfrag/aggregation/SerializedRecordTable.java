@@ -0,0 +1,452 @@
+package qfrag.aggregation;
+
+import org.apache.giraph.utils.UnsafeReusableByteArrayInput;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import qfrag.utils.DirectBuffers;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Open-addressing hash table (linear probing) of serialized mappings, the
+ * memory behind {@link SerializedAggregationStorage}.
+ * <p/>
+ * Every mapping is a record [key length, value length, key bytes, value
+ * bytes] appended to ByteBuffer slabs, each twice the size of the previous
+ * one up to {@link #SLAB_SIZE}, so small tables stay small. The index holds,
+ * per slot, the record address and the hash of the serialized key; it is
+ * split in pages of {@link #INDEX_PAGE_SLOTS} slots, so no single buffer
+ * limits the number of keys. Slabs and index pages are either heap buffers
+ * or direct buffers, which keep the whole table outside the Java heap; both
+ * are released in {@link #free()}.
+ * <p/>
+ * A value keeping its serialized size is overwritten in place; otherwise the
+ * record is appended again and the old bytes are counted as wasted. Not
+ * thread-safe.
+ */
+final class SerializedRecordTable {
+    static final int SLAB_SIZE = 64 * 1024 * 1024;
+    static final int INDEX_PAGE_SLOTS = 1 << 20;
+    private static final int INITIAL_SLAB_SIZE = 16 * 1024;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int SLOT_SIZE = 12;
+    private static final int INDEX_PAGE_SHIFT = Integer.numberOfTrailingZeros(INDEX_PAGE_SLOTS);
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final long EMPTY = 0;
+    private static final long REMOVED = -1;
+
+    private final boolean direct;
+
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private int lastSlabPosition;
+    private long wastedBytes;
+
+    // slot i, at 12 * (i % INDEX_PAGE_SLOTS) of page i / INDEX_PAGE_SLOTS: address + 1 of its record
+    // (0 = empty, -1 = removed), then the key hash
+    private ByteBuffer[] index;
+    private int capacity;
+    private int numRecords;
+    private int numRemoved;
+
+    private UnsafeReusableByteArrayInput reusedIn;
+    private byte[] readBuffer;
+    private byte[] compareBuffer;
+
+    /**
+     * @param direct whether to allocate slabs and index in direct buffers,
+     *               outside the Java heap
+     */
+    SerializedRecordTable(boolean direct) {
+        this.direct = direct;
+
+        capacity = INITIAL_CAPACITY;
+        index = allocateIndex(capacity);
+    }
+
+    /**
+     * Releases every slab and the index. The table must not be used
+     * afterwards.
+     */
+    void free() {
+        for (ByteBuffer slab : slabs) {
+            DirectBuffers.free(slab);
+        }
+
+        slabs.clear();
+        freeIndex(index);
+        index = null;
+    }
+
+    int size() {
+        return numRecords;
+    }
+
+    /**
+     * @return number of slots, records being at slots 0 to capacity - 1
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    int getNumSlabs() {
+        return slabs.size();
+    }
+
+    /**
+     * @return memory held by the slabs and the index, in bytes
+     */
+    long getAllocatedBytes() {
+        long bytes = 0;
+
+        for (ByteBuffer page : index) {
+            bytes += page.capacity();
+        }
+
+        for (ByteBuffer slab : slabs) {
+            bytes += slab.capacity();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * @return bytes of slab space taken by superseded records
+     */
+    long getWastedBytes() {
+        return wastedBytes;
+    }
+
+    /**
+     * @return slot of the record whose key is keyBytes[keyOffset..keyOffset+keyLength),
+     * hashing to hash, or -1
+     */
+    int find(byte[] keyBytes, int keyOffset, int keyLength, int hash) {
+        int mask = capacity - 1;
+
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long entry = getEntry(index, slot);
+
+            if (entry == EMPTY) {
+                return -1;
+            }
+
+            if (entry != REMOVED && getHash(index, slot) == hash &&
+                    keyEquals(entry - 1, keyBytes, keyOffset, keyLength)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Adds a record for a key that is not in the table.
+     */
+    void insert(byte[] keyBytes, int keyOffset, int keyLength, int hash,
+                byte[] valueBytes, int valueOffset, int valueLength) {
+        if (4L * (numRecords + numRemoved + 1) > 3L * capacity) {
+            // only double if removals are not what filled the table
+            boolean grow = 2L * (numRecords + 1) > capacity;
+
+            if (grow && capacity == MAX_CAPACITY) {
+                throw new IllegalStateException("Serialized aggregation exceeds " + (3L * MAX_CAPACITY / 4) +
+                        " mappings");
+            }
+
+            rehash(grow ? capacity * 2 : capacity);
+        }
+
+        putSlot(hash, appendRecord(keyBytes, keyOffset, keyLength, valueBytes, valueOffset, valueLength));
+        ++numRecords;
+    }
+
+    /**
+     * Replaces the value of the record in slot, in place if its serialized
+     * size did not change.
+     */
+    void setValue(int slot, byte[] valueBytes, int valueOffset, int valueLength) {
+        long address = getAddress(slot);
+        int keyLength = getKeyLength(address);
+
+        if (valueLength == getValueLength(address)) {
+            ByteBuffer slab = slabs.get(slabIndex(address));
+            slab.position(slabOffset(address) + RECORD_HEADER_SIZE + keyLength);
+            slab.put(valueBytes, valueOffset, valueLength);
+            return;
+        }
+
+        wastedBytes += RECORD_HEADER_SIZE + keyLength + getValueLength(address);
+
+        ByteBuffer slab = slabs.get(slabIndex(address));
+        byte[] keyBytes = copy(slab, slabOffset(address) + RECORD_HEADER_SIZE, keyLength, false);
+
+        setEntry(slot, appendRecord(keyBytes, 0, keyLength, valueBytes, valueOffset, valueLength) + 1);
+    }
+
+    void remove(int slot) {
+        long address = getAddress(slot);
+        wastedBytes += RECORD_HEADER_SIZE + getKeyLength(address) + getValueLength(address);
+
+        setEntry(slot, REMOVED);
+        --numRecords;
+        ++numRemoved;
+    }
+
+    /**
+     * @return address of the record in slot, or -1 if the slot holds none
+     */
+    long getAddress(int slot) {
+        long entry = getEntry(index, slot);
+
+        return entry == EMPTY || entry == REMOVED ? -1 : entry - 1;
+    }
+
+    /**
+     * @return hash of the key of the record in slot
+     */
+    int getHash(int slot) {
+        return getHash(index, slot);
+    }
+
+    int getKeyLength(long address) {
+        return slabs.get(slabIndex(address)).getInt(slabOffset(address));
+    }
+
+    int getValueLength(long address) {
+        return slabs.get(slabIndex(address)).getInt(slabOffset(address) + 4);
+    }
+
+    <W extends Writable> W readKey(long address, W key) {
+        return readWritable(address, RECORD_HEADER_SIZE, getKeyLength(address), key);
+    }
+
+    <W extends Writable> W readValue(long address, W value) {
+        return readWritable(address, RECORD_HEADER_SIZE + getKeyLength(address), getValueLength(address), value);
+    }
+
+    /**
+     * @return the key bytes of the record followed by its value bytes, in a
+     * buffer reused by the next read from this table
+     */
+    byte[] copyRecord(long address) {
+        int length = getKeyLength(address) + getValueLength(address);
+
+        return copy(slabs.get(slabIndex(address)), slabOffset(address) + RECORD_HEADER_SIZE, length, false);
+    }
+
+    /**
+     * Writes the key bytes of the record followed by its value bytes.
+     */
+    void writeRecord(long address, DataOutput dataOutput) throws IOException {
+        int length = getKeyLength(address) + getValueLength(address);
+        ByteBuffer slab = slabs.get(slabIndex(address));
+        int offset = slabOffset(address) + RECORD_HEADER_SIZE;
+
+        if (slab.hasArray()) {
+            dataOutput.write(slab.array(), slab.arrayOffset() + offset, length);
+        } else {
+            dataOutput.write(copy(slab, offset, length, false), 0, length);
+        }
+    }
+
+    /**
+     * Compares the serialized keys of two records with comparator.
+     */
+    int compareKeys(long address1, long address2, RawComparator<?> comparator) {
+        int length1 = getKeyLength(address1);
+        int length2 = getKeyLength(address2);
+        ByteBuffer slab1 = slabs.get(slabIndex(address1));
+        ByteBuffer slab2 = slabs.get(slabIndex(address2));
+        int offset1 = slabOffset(address1) + RECORD_HEADER_SIZE;
+        int offset2 = slabOffset(address2) + RECORD_HEADER_SIZE;
+
+        if (slab1.hasArray() && slab2.hasArray()) {
+            return comparator.compare(slab1.array(), slab1.arrayOffset() + offset1, length1,
+                    slab2.array(), slab2.arrayOffset() + offset2, length2);
+        }
+
+        return comparator.compare(copy(slab1, offset1, length1, false), 0, length1,
+                copy(slab2, offset2, length2, true), 0, length2);
+    }
+
+    private boolean keyEquals(long address, byte[] keyBytes, int keyOffset, int keyLength) {
+        if (getKeyLength(address) != keyLength) {
+            return false;
+        }
+
+        ByteBuffer slab = slabs.get(slabIndex(address));
+        int offset = slabOffset(address) + RECORD_HEADER_SIZE;
+
+        if (slab.hasArray()) {
+            return WritableComparator.compareBytes(slab.array(), slab.arrayOffset() + offset, keyLength,
+                    keyBytes, keyOffset, keyLength) == 0;
+        }
+
+        for (int i = 0; i < keyLength; ++i) {
+            if (slab.get(offset + i) != keyBytes[keyOffset + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void putSlot(int hash, long address) {
+        int mask = capacity - 1;
+        int slot = hash & mask;
+
+        while (getEntry(index, slot) != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+
+        setEntry(slot, address + 1);
+        index[slot >>> INDEX_PAGE_SHIFT].putInt(slotOffset(slot) + 8, hash);
+    }
+
+    private void rehash(int newCapacity) {
+        ByteBuffer[] oldIndex = index;
+        int oldCapacity = capacity;
+
+        index = allocateIndex(newCapacity);
+        capacity = newCapacity;
+        numRemoved = 0;
+
+        for (int slot = 0; slot < oldCapacity; ++slot) {
+            long entry = getEntry(oldIndex, slot);
+
+            if (entry != EMPTY && entry != REMOVED) {
+                putSlot(getHash(oldIndex, slot), entry - 1);
+            }
+        }
+
+        freeIndex(oldIndex);
+    }
+
+    private ByteBuffer[] allocateIndex(int capacity) {
+        int pageSlots = Math.min(capacity, INDEX_PAGE_SLOTS);
+        ByteBuffer[] pages = new ByteBuffer[capacity / pageSlots];
+
+        for (int i = 0; i < pages.length; ++i) {
+            pages[i] = allocate(SLOT_SIZE * pageSlots);
+        }
+
+        return pages;
+    }
+
+    private static void freeIndex(ByteBuffer[] pages) {
+        if (pages != null) {
+            for (ByteBuffer page : pages) {
+                DirectBuffers.free(page);
+            }
+        }
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? DirectBuffers.allocate(size) : ByteBuffer.allocate(size);
+    }
+
+    private static int slotOffset(int slot) {
+        return SLOT_SIZE * (slot & (INDEX_PAGE_SLOTS - 1));
+    }
+
+    private static long getEntry(ByteBuffer[] pages, int slot) {
+        return pages[slot >>> INDEX_PAGE_SHIFT].getLong(slotOffset(slot));
+    }
+
+    private static int getHash(ByteBuffer[] pages, int slot) {
+        return pages[slot >>> INDEX_PAGE_SHIFT].getInt(slotOffset(slot) + 8);
+    }
+
+    private void setEntry(int slot, long entry) {
+        index[slot >>> INDEX_PAGE_SHIFT].putLong(slotOffset(slot), entry);
+    }
+
+    /**
+     * @return address of the new record
+     */
+    private long appendRecord(byte[] keyBytes, int keyOffset, int keyLength,
+                              byte[] valueBytes, int valueOffset, int valueLength) {
+        int recordLength = RECORD_HEADER_SIZE + keyLength + valueLength;
+
+        if (slabs.isEmpty() || lastSlabPosition + recordLength > slabs.get(slabs.size() - 1).capacity()) {
+            int slabSize = slabs.isEmpty() ? INITIAL_SLAB_SIZE :
+                    Math.min(SLAB_SIZE, 2 * slabs.get(slabs.size() - 1).capacity());
+            slabs.add(allocate(Math.max(slabSize, recordLength)));
+            lastSlabPosition = 0;
+        }
+
+        int slabIndex = slabs.size() - 1;
+        int offset = lastSlabPosition;
+        ByteBuffer slab = slabs.get(slabIndex);
+
+        slab.putInt(offset, keyLength);
+        slab.putInt(offset + 4, valueLength);
+        slab.position(offset + RECORD_HEADER_SIZE);
+        slab.put(keyBytes, keyOffset, keyLength);
+        slab.put(valueBytes, valueOffset, valueLength);
+
+        lastSlabPosition += recordLength;
+
+        return ((long) slabIndex << 32) | offset;
+    }
+
+    private static int slabIndex(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int slabOffset(long address) {
+        return (int) address;
+    }
+
+    /**
+     * Copies length bytes of slab into readBuffer, or compareBuffer if
+     * second is set, growing it as needed.
+     */
+    private byte[] copy(ByteBuffer slab, int offset, int length, boolean second) {
+        byte[] buffer = second ? compareBuffer : readBuffer;
+
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[Math.max(length, 64)];
+
+            if (second) {
+                compareBuffer = buffer;
+            } else {
+                readBuffer = buffer;
+            }
+        }
+
+        slab.position(offset);
+        slab.get(buffer, 0, length);
+
+        return buffer;
+    }
+
+    private <W extends Writable> W readWritable(long address, int from, int length, W writable) {
+        if (reusedIn == null) {
+            reusedIn = new UnsafeReusableByteArrayInput();
+        }
+
+        ByteBuffer slab = slabs.get(slabIndex(address));
+        int offset = slabOffset(address) + from;
+
+        // the third argument is the end position, not a length
+        if (slab.hasArray()) {
+            int start = slab.arrayOffset() + offset;
+            reusedIn.initialize(slab.array(), start, start + length);
+        } else {
+            reusedIn.initialize(copy(slab, offset, length, false), 0, length);
+        }
+
+        try {
+            writable.readFields(reusedIn);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to deserialize " + writable.getClass(), e);
+        }
+
+        return writable;
+    }
+}
@@ -0,0 +1,115 @@
+package qfrag.aggregation;
+
+import org.apache.giraph.utils.UnsafeByteArrayOutputStream;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Writable;
+import qfrag.utils.HashUtils;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Base of the storages that summarize an aggregation in a fixed-size sketch
+ * instead of keeping its keys. Every (key, weight) update is offered to the
+ * sketch as the 64 bit hash of the key's serialized bytes, so merging and
+ * shipping cost the sketch's size however many keys were aggregated.
+ * <p/>
+ * Keys are not kept: getKeys and getMapping are empty and keys cannot be
+ * removed. Sketches are not split by key; splitting moves the whole sketch
+ * to the first split. Not thread-safe.
+ */
+public abstract class SketchAggregationStorage<K extends Writable> extends AggregationStorage<K, LongWritable> {
+    private UnsafeByteArrayOutputStream keyOut;
+
+    public SketchAggregationStorage() {
+    }
+
+    public SketchAggregationStorage(String name) {
+        super(name);
+    }
+
+    /**
+     * Adds weight to the key hashing to keyHash.
+     */
+    protected abstract void offer(long keyHash, long weight);
+
+    /**
+     * Merges the sketch of other, a storage of the same class, into this
+     * storage's.
+     */
+    protected abstract void merge(SketchAggregationStorage<K> other);
+
+    @Override
+    public void aggregate(K key, LongWritable value) {
+        offer(hashKey(key), value.get());
+    }
+
+    // Keys are hashed right away, so reusing key or value is safe here
+    @Override
+    public void aggregateWithReusables(K key, LongWritable value) {
+        aggregate(key, value);
+    }
+
+    @Override
+    public void aggregate(AggregationStorage<K, LongWritable> otherStorage) {
+        if (otherStorage.getClass() != getClass()) {
+            super.aggregate(otherStorage);
+            return;
+        }
+
+        if (!getName().equals(otherStorage.getName())) {
+            throw new RuntimeException("Aggregating storages with different names");
+        }
+
+        merge((SketchAggregationStorage<K>) otherStorage);
+    }
+
+    @Override
+    protected void splitInto(List<? extends AggregationStorage<K, LongWritable>> splits) {
+        splits.get(0).aggregate(this);
+    }
+
+    @Override
+    public boolean isKeyed() {
+        return false;
+    }
+
+    @Override
+    public Set<K> getKeys() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public Map<K, LongWritable> getMapping() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public K getKey(K key) {
+        return containsKey(key) ? key : null;
+    }
+
+    @Override
+    public void removeKey(K key) {
+        throw new UnsupportedOperationException("Keys cannot be removed from sketch aggregation " + getName());
+    }
+
+    protected long hashKey(K key) {
+        if (keyOut == null) {
+            keyOut = new UnsafeByteArrayOutputStream();
+        }
+
+        keyOut.reset();
+
+        try {
+            key.write(keyOut);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to serialize key " + key, e);
+        }
+
+        return HashUtils.hash64(keyOut.getByteArray(), 0, keyOut.getPos());
+    }
+}
@@ -0,0 +1,414 @@
+package qfrag.aggregation;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.log4j.Logger;
+import qfrag.aggregation.external.ExternalSorter;
+import qfrag.aggregation.external.SortedRecords;
+import qfrag.conf.Configuration;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link AggregationStorage} that spills to local disk instead of running out
+ * of memory. Mappings are kept in memory as usual while their estimated size
+ * (serialized bytes of a sampled mapping plus map overhead, times the number
+ * of mappings) stays under {@link Configuration#getAggregationSpillThreshold()};
+ * above it they are moved to a sorted, serialized run in
+ * {@link Configuration#getSpillDir()} and the map starts over.
+ * <p/>
+ * Runs may hold several values for a key. Shipping (write), splitting and
+ * aggregating into another storage stream a merge of the runs and the map,
+ * reducing the values of each key with the registered reduction function,
+ * so none of them needs the whole aggregation in memory, and so does
+ * forEachMapping. Any other read (getKeys, getValue, endedAggregation, ...) merges everything back into
+ * memory first, as the master does with the final aggregation.
+ * <p/>
+ * Keys are equal iff their serialized bytes are. Reset deletes the runs.
+ * Not thread-safe.
+ */
+public class SpillingAggregationStorage<K extends Writable, V extends Writable> extends AggregationStorage<K, V> {
+    private static final Logger LOG = Logger.getLogger(SpillingAggregationStorage.class);
+
+    // updates between two checks of the estimated size
+    private static final int CHECK_PERIOD = 1024;
+    // HashMap entry, table slot and key/value object headers, roughly
+    private static final int MAPPING_OVERHEAD = 64;
+
+    private long spillThreshold;
+    private File spillDir;
+
+    private ExternalSorter sorter;
+    private int numSpills;
+    // distinct keys of the merge, -1 if it must be recounted
+    private int numMergedMappings = -1;
+
+    private int updatesSinceCheck;
+    private long sampledBytes;
+    private int numSamples;
+    private DataOutputBuffer sampleOut;
+
+    public SpillingAggregationStorage() {
+    }
+
+    public SpillingAggregationStorage(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void init(String name) {
+        super.init(name);
+
+        Configuration config = Configuration.get();
+        spillThreshold = config.getAggregationSpillThreshold();
+        spillDir = new File(config.getSpillDir());
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+
+        if (sorter != null) {
+            sorter.close();
+            sorter = null;
+        }
+
+        numSpills = 0;
+        numMergedMappings = -1;
+        updatesSinceCheck = 0;
+    }
+
+    public boolean isSpilled() {
+        return sorter != null;
+    }
+
+    public int getNumberSpills() {
+        return numSpills;
+    }
+
+    @Override
+    public void aggregate(K key, V value) {
+        super.aggregate(key, value);
+        updated(key, value);
+    }
+
+    @Override
+    public void aggregateWithReusables(K key, V value) {
+        super.aggregateWithReusables(key, value);
+        updated(key, value);
+    }
+
+    @Override
+    public void aggregate(AggregationStorage<K, V> otherStorage) {
+        if (!(otherStorage instanceof SpillingAggregationStorage) ||
+                !((SpillingAggregationStorage<K, V>) otherStorage).isSpilled()) {
+            super.aggregate(otherStorage);
+            return;
+        }
+
+        if (!getName().equals(otherStorage.getName())) {
+            throw new RuntimeException("Aggregating storages with different names");
+        }
+
+        try {
+            ((SpillingAggregationStorage<K, V>) otherStorage).forEachMerged(this::aggregate);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to merge spilled aggregation " + getName(), e);
+        }
+    }
+
+    @Override
+    protected void splitInto(List<? extends AggregationStorage<K, V>> splits) {
+        if (!isSpilled()) {
+            super.splitInto(splits);
+            return;
+        }
+
+        try {
+            forEachMerged((key, value) ->
+                    splits.get(AggregationChunks.splitOf(key, splits.size())).aggregate(key, value));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to split spilled aggregation " + getName(), e);
+        }
+    }
+
+    @Override
+    public int getNumberMappings() {
+        if (!isSpilled()) {
+            return super.getNumberMappings();
+        }
+
+        if (numMergedMappings < 0) {
+            try {
+                numMergedMappings = countMerged();
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to count spilled aggregation " + getName(), e);
+            }
+        }
+
+        return numMergedMappings;
+    }
+
+    @Override
+    public Set<K> getKeys() {
+        load();
+        return super.getKeys();
+    }
+
+    @Override
+    public Map<K, V> getMapping() {
+        load();
+        return super.getMapping();
+    }
+
+    // Streams the merge if spilled, passing new objects for every mapping
+    @Override
+    public void forEachMapping(MappingConsumer<K, V> consumer) throws IOException {
+        if (isSpilled()) {
+            forEachMerged(consumer);
+        } else {
+            super.forEachMapping(consumer);
+        }
+    }
+
+    @Override
+    public K getKey(K key) {
+        load();
+        return super.getKey(key);
+    }
+
+    @Override
+    public V getValue(K key) {
+        load();
+        return super.getValue(key);
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        load();
+        return super.containsKey(key);
+    }
+
+    @Override
+    public void removeKey(K key) {
+        load();
+        super.removeKey(key);
+    }
+
+    @Override
+    public void endedAggregation() {
+        load();
+        super.endedAggregation();
+    }
+
+    @Override
+    public String toOutputString() {
+        load();
+        return super.toOutputString();
+    }
+
+    // Same layout as AggregationStorage, written from the merge if spilled
+    @Override
+    protected void writeEntries(DataOutput dataOutput) throws IOException {
+        if (!isSpilled()) {
+            super.writeEntries(dataOutput);
+            return;
+        }
+
+        dataOutput.writeInt(getNumberMappings());
+
+        forEachMerged((key, value) -> {
+            key.write(dataOutput);
+            value.write(dataOutput);
+        });
+    }
+
+    // Aggregated one by one, so reading a large chunk spills as well
+    @Override
+    protected void readEntries(DataInput dataInput) throws IOException {
+        int numEntries = dataInput.readInt();
+
+        for (int i = 0; i < numEntries; ++i) {
+            K key = newKey();
+            key.readFields(dataInput);
+
+            V value = newValue();
+            value.readFields(dataInput);
+
+            aggregate(key, value);
+        }
+    }
+
+    private void updated(K key, V value) {
+        numMergedMappings = -1;
+
+        if (++updatesSinceCheck < CHECK_PERIOD) {
+            return;
+        }
+
+        updatesSinceCheck = 0;
+
+        try {
+            if (estimateSize(key, value) > spillThreshold) {
+                spill();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to spill aggregation " + getName(), e);
+        }
+    }
+
+    /**
+     * @return estimated bytes taken by the mappings in memory, from a running
+     * average of the serialized size of the mappings updated at each check
+     */
+    private long estimateSize(K sampleKey, V sampleValue) throws IOException {
+        if (sampleOut == null) {
+            sampleOut = new DataOutputBuffer();
+        }
+
+        sampleOut.reset();
+        sampleKey.write(sampleOut);
+        sampleValue.write(sampleOut);
+
+        sampledBytes += sampleOut.getLength();
+        ++numSamples;
+
+        return (sampledBytes / numSamples + MAPPING_OVERHEAD) * keyValueMap.size();
+    }
+
+    private void spill() throws IOException {
+        int numMappings = keyValueMap.size();
+
+        moveMappings();
+        sorter.spill();
+        ++numSpills;
+
+        LOG.info("Spilled " + numMappings + " mappings of " + getName() + " (spill " + numSpills + ", " +
+                sorter.getSpilledBytes() + " bytes on disk)");
+    }
+
+    /**
+     * Moves the mappings in memory to the sorter, freeing them as it goes.
+     */
+    private void moveMappings() throws IOException {
+        if (sorter == null) {
+            sorter = new ExternalSorter(null, (int) Math.min(spillThreshold, Integer.MAX_VALUE), spillDir);
+        }
+
+        Iterator<Map.Entry<K, V>> iterator = keyValueMap.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<K, V> entry = iterator.next();
+            sorter.add(entry.getKey(), entry.getValue());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Brings the spilled mappings back into memory.
+     */
+    private void load() {
+        if (!isSpilled()) {
+            return;
+        }
+
+        try {
+            forEachMerged(keyValueMap::put);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to load spilled aggregation " + getName(), e);
+        }
+
+        sorter.close();
+        sorter = null;
+
+        LOG.info("Loaded " + keyValueMap.size() + " mappings of " + getName() + " from " + numSpills + " spills");
+    }
+
+    private int countMerged() throws IOException {
+        moveMappings();
+
+        DataOutputBuffer groupKey = new DataOutputBuffer();
+        int count = 0;
+
+        try (SortedRecords records = sorter.sorted()) {
+            while (records.next()) {
+                if (count == 0 || !sameKey(groupKey, records)) {
+                    groupKey.reset();
+                    groupKey.write(records.getKeyBytes(), records.getKeyOffset(), records.getKeyLength());
+                    ++count;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Passes every key with its reduced value, the map and the runs merged,
+     * to consumer. The mappings in memory are moved to the sorter first, so
+     * consumer must not update this storage.
+     */
+    private void forEachMerged(MappingConsumer<K, V> consumer) throws IOException {
+        moveMappings();
+
+        DataInputBuffer in = new DataInputBuffer();
+        DataOutputBuffer groupKey = new DataOutputBuffer();
+        K key = null;
+        V value = null;
+
+        try (SortedRecords records = sorter.sorted()) {
+            while (records.next()) {
+                if (key != null && sameKey(groupKey, records)) {
+                    value = reductionFunction.reduce(value, readValue(records, in));
+                    continue;
+                }
+
+                if (key != null) {
+                    consumer.accept(key, value);
+                }
+
+                groupKey.reset();
+                groupKey.write(records.getKeyBytes(), records.getKeyOffset(), records.getKeyLength());
+
+                key = newKey();
+                in.reset(records.getKeyBytes(), records.getKeyOffset(), records.getKeyLength());
+                key.readFields(in);
+                value = readValue(records, in);
+            }
+        }
+
+        if (key != null) {
+            consumer.accept(key, value);
+        }
+    }
+
+    private V readValue(SortedRecords records, DataInputBuffer in) throws IOException {
+        V value = newValue();
+        in.reset(records.getValueBytes(), records.getValueOffset(), records.getValueLength());
+        value.readFields(in);
+        return value;
+    }
+
+    private static boolean sameKey(DataOutputBuffer groupKey, SortedRecords records) {
+        return WritableComparator.compareBytes(groupKey.getData(), 0, groupKey.getLength(),
+                records.getKeyBytes(), records.getKeyOffset(), records.getKeyLength()) == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "SpillingAggregationStorage{" +
+                "name='" + getName() + '\'' +
+                ", inMemory=" + keyValueMap.size() +
+                ", spills=" + numSpills +
+                '}';
+    }
+}
@@ -0,0 +1,509 @@
+package qfrag.aggregation;
+
+import com.koloboke.collect.map.hash.HashObjIntMap;
+import com.koloboke.collect.map.hash.HashObjIntMaps;
+import org.apache.giraph.utils.UnsafeByteArrayOutputStream;
+import org.apache.giraph.utils.UnsafeReusableByteArrayInput;
+import org.apache.giraph.utils.WritableUtils;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Writable;
+import qfrag.conf.Configuration;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Bounded {@link AggregationStorage} keeping the heaviest keys of a stream of
+ * (key, weight) updates in at most capacity counters, with the Space-Saving
+ * algorithm (Metwally et al.). Weights are summed, whatever the registered
+ * reduction, so memory stays bounded however many matches a query produces.
+ * <p/>
+ * When a new key arrives and every counter is taken, the counter with the
+ * lowest count is given to the new key, which inherits that count as its
+ * possible error. The guarantees are:
+ * <ul>
+ *   <li>for a kept key, count - error &lt;= true weight &lt;= count;</li>
+ *   <li>a key that is not kept weighs at most {@link #getErrorBound()}, so
+ *   every key heavier than the bound is kept;</li>
+ *   <li>for a single stream of total weight N, the bound is at most
+ *   N / capacity.</li>
+ * </ul>
+ * Merging two summaries (parallel Space-Saving, Cafaro et al.) charges the
+ * keys missing from one summary with that summary's bound, sums the bounds
+ * and keeps the capacity heaviest counters, so the merged summary keeps the
+ * same guarantees over the combined streams. Splits inherit the bound of the
+ * storage they are cut from, and are joined back without charging anything,
+ * see {@link #aggregateSplit(AggregationStorage)}.
+ * <p/>
+ * Capacity is the one given to
+ * {@link Configuration#registerAggregation(String, Class, Class, Class, boolean,
+ * qfrag.aggregation.reductions.ReductionFunction, EndAggregationFunction, int, int)},
+ * or {@link Configuration#getAggregationCapacity()}. Not thread-safe.
+ */
+public class TopKAggregationStorage<K extends Writable> extends AggregationStorage<K, LongWritable> {
+    private int capacity;
+
+    // min-heap of counters by count, positions maps a key to its heap index
+    private HashObjIntMap<K> positions;
+    private Object[] keys;
+    private long[] counts;
+    private long[] errors;
+    private int size;
+    // upper bound on the weight of any key without a counter
+    private long missingBound;
+
+    private UnsafeByteArrayOutputStream reusedOut;
+    private UnsafeReusableByteArrayInput reusedIn;
+
+    public TopKAggregationStorage() {
+    }
+
+    public TopKAggregationStorage(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void init(String name) {
+        super.init(name);
+
+        capacity = Math.max(1, metadata != null && metadata.getCapacity() > 0 ?
+                metadata.getCapacity() : Configuration.get().getAggregationCapacity());
+    }
+
+    @Override
+    public void reset() {
+        positions = HashObjIntMaps.newMutableMap();
+        keys = new Object[16];
+        counts = new long[16];
+        errors = new long[16];
+        size = 0;
+        missingBound = 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return upper bound on the weight of any key that is not kept
+     */
+    public long getErrorBound() {
+        return missingBound;
+    }
+
+    /**
+     * @return how much the count of key may exceed its true weight, or the
+     * error bound if key is not kept
+     */
+    public long getError(K key) {
+        int position = positions.getOrDefault(key, -1);
+
+        return position < 0 ? missingBound : errors[position];
+    }
+
+    /**
+     * @return the (at most) n keys with the highest counts, highest first
+     */
+    public List<K> getTopKeys(int n) {
+        Integer[] order = orderByCount();
+        List<K> topKeys = new ArrayList<>(Math.min(n, size));
+
+        for (int i = 0; i < order.length && i < n; ++i) {
+            topKeys.add(key(order[i]));
+        }
+
+        return topKeys;
+    }
+
+    @Override
+    public int getNumberMappings() {
+        return size;
+    }
+
+    // a key's count depends on the keys evicted before it
+    @Override
+    public boolean isKeyed() {
+        return false;
+    }
+
+    @Override
+    public Set<K> getKeys() {
+        Set<K> keySet = new HashSet<>(size);
+
+        for (int i = 0; i < size; ++i) {
+            keySet.add(key(i));
+        }
+
+        return Collections.unmodifiableSet(keySet);
+    }
+
+    @Override
+    public Map<K, LongWritable> getMapping() {
+        Map<K, LongWritable> mapping = new HashMap<>(size);
+
+        for (int i = 0; i < size; ++i) {
+            mapping.put(key(i), new LongWritable(counts[i]));
+        }
+
+        return Collections.unmodifiableMap(mapping);
+    }
+
+    @Override
+    public K getKey(K key) {
+        return containsKey(key) ? key : null;
+    }
+
+    @Override
+    public LongWritable getValue(K key) {
+        int position = positions.getOrDefault(key, -1);
+
+        return position < 0 ? null : new LongWritable(counts[position]);
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return positions.containsKey(key);
+    }
+
+    @Override
+    public void removeKey(K key) {
+        int position = positions.getOrDefault(key, -1);
+
+        if (position < 0) {
+            return;
+        }
+
+        positions.removeAsInt(key);
+
+        int last = --size;
+
+        if (position != last) {
+            place(position, key(last), counts[last], errors[last]);
+            siftDown(position);
+            siftUp(position);
+        }
+
+        keys[last] = null;
+    }
+
+    @Override
+    public void aggregate(K key, LongWritable value) {
+        add(key, value.get(), false);
+    }
+
+    @Override
+    public void aggregateWithReusables(K key, LongWritable value) {
+        add(key, value.get(), true);
+    }
+
+    private void add(K key, long weight, boolean copyKey) {
+        int position = positions.getOrDefault(key, -1);
+
+        if (position >= 0) {
+            counts[position] += weight;
+            siftDown(position);
+            return;
+        }
+
+        K newKey = copyKey ? copyKey(key) : key;
+
+        if (size < capacity) {
+            put(newKey, missingBound + weight, missingBound);
+            return;
+        }
+
+        // the evicted key weighs at most its count
+        positions.removeAsInt(key(0));
+        missingBound = Math.max(missingBound, counts[0]);
+        place(0, newKey, missingBound + weight, missingBound);
+        siftDown(0);
+    }
+
+    @Override
+    public void aggregate(AggregationStorage<K, LongWritable> otherStorage) {
+        if (!(otherStorage instanceof TopKAggregationStorage)) {
+            super.aggregate(otherStorage);
+            return;
+        }
+
+        if (!getName().equals(otherStorage.getName())) {
+            throw new RuntimeException("Aggregating storages with different names");
+        }
+
+        merge((TopKAggregationStorage<K>) otherStorage);
+    }
+
+    private void merge(TopKAggregationStorage<K> other) {
+        long bound = missingBound;
+
+        // keys kept here only may weigh up to other's bound in other's stream
+        if (other.missingBound > 0) {
+            for (int i = 0; i < size; ++i) {
+                if (!other.positions.containsKey(keys[i])) {
+                    counts[i] += other.missingBound;
+                    errors[i] += other.missingBound;
+                }
+            }
+        }
+
+        for (int j = 0; j < other.size; ++j) {
+            K key = other.key(j);
+            int position = positions.getOrDefault(key, -1);
+
+            if (position >= 0) {
+                counts[position] += other.counts[j];
+                errors[position] += other.errors[j];
+            } else {
+                ensureSize(size + 1);
+                place(size++, key, other.counts[j] + bound, other.errors[j] + bound);
+            }
+        }
+
+        missingBound = bound + other.missingBound;
+
+        for (int i = size / 2 - 1; i >= 0; --i) {
+            siftDown(i);
+        }
+
+        evictToCapacity();
+    }
+
+    /**
+     * Joins a split with keys disjoint from this storage's. A key kept by
+     * one split has no weight in the other's stream, so unlike
+     * {@link #aggregate(AggregationStorage)} no count is charged, and a key
+     * kept by neither weighs at most the larger of the two bounds.
+     */
+    @Override
+    public void aggregateSplit(AggregationStorage<K, LongWritable> otherStorage) {
+        if (!(otherStorage instanceof TopKAggregationStorage)) {
+            super.aggregateSplit(otherStorage);
+            return;
+        }
+
+        if (!getName().equals(otherStorage.getName())) {
+            throw new RuntimeException("Aggregating storages with different names");
+        }
+
+        TopKAggregationStorage<K> other = (TopKAggregationStorage<K>) otherStorage;
+
+        for (int j = 0; j < other.size; ++j) {
+            K key = other.key(j);
+            int position = positions.getOrDefault(key, -1);
+
+            if (position >= 0) {
+                counts[position] += other.counts[j];
+                errors[position] += other.errors[j];
+                siftDown(position);
+            } else {
+                put(key, other.counts[j], other.errors[j]);
+            }
+        }
+
+        missingBound = Math.max(missingBound, other.missingBound);
+
+        evictToCapacity();
+    }
+
+    /**
+     * Drops the lowest counters until at most capacity are left, raising
+     * the error bound to the highest count dropped.
+     */
+    private void evictToCapacity() {
+        while (size > capacity) {
+            positions.removeAsInt(key(0));
+            missingBound = Math.max(missingBound, counts[0]);
+
+            int last = --size;
+
+            if (last > 0) {
+                place(0, key(last), counts[last], errors[last]);
+                siftDown(0);
+            }
+
+            keys[last] = null;
+        }
+    }
+
+    @Override
+    protected void splitInto(List<? extends AggregationStorage<K, LongWritable>> splits) {
+        for (AggregationStorage<K, LongWritable> split : splits) {
+            ((TopKAggregationStorage<K>) split).missingBound = missingBound;
+        }
+
+        for (int i = 0; i < size; ++i) {
+            TopKAggregationStorage<K> split =
+                    (TopKAggregationStorage<K>) splits.get(AggregationChunks.splitOf(key(i), splits.size()));
+
+            split.put(key(i), counts[i], errors[i]);
+        }
+    }
+
+    /**
+     * Writes the number of counters and the error bound, followed by every
+     * key, count and error.
+     */
+    @Override
+    protected void writeEntries(DataOutput dataOutput) throws IOException {
+        dataOutput.writeInt(size);
+        dataOutput.writeLong(missingBound);
+
+        for (int i = 0; i < size; ++i) {
+            key(i).write(dataOutput);
+            dataOutput.writeLong(counts[i]);
+            dataOutput.writeLong(errors[i]);
+        }
+    }
+
+    @Override
+    protected void readEntries(DataInput dataInput) throws IOException {
+        TopKAggregationStorage<K> other = new TopKAggregationStorage<>();
+        other.reset();
+        other.metadata = metadata;
+
+        int numEntries = dataInput.readInt();
+        other.capacity = Math.max(1, numEntries);
+        other.missingBound = dataInput.readLong();
+
+        for (int i = 0; i < numEntries; ++i) {
+            K key = newKey();
+
+            key.readFields(dataInput);
+
+            long count = dataInput.readLong();
+            long error = dataInput.readLong();
+
+            other.put(key, count, error);
+        }
+
+        merge(other);
+    }
+
+    @Override
+    public String toString() {
+        return "TopKAggregationStorage{" +
+                "name='" + getName() + '\'' +
+                ", capacity=" + capacity +
+                ", numberMappings=" + size +
+                ", errorBound=" + missingBound +
+                '}';
+    }
+
+    /**
+     * Lists the kept keys from the highest count down, with the error of
+     * each count.
+     */
+    @Override
+    public String toOutputString() {
+        StringBuilder strBuilder = new StringBuilder();
+
+        for (Integer i : orderByCount()) {
+            strBuilder.append(key(i));
+            strBuilder.append(": ");
+            strBuilder.append(counts[i]);
+            strBuilder.append(" (error ");
+            strBuilder.append(errors[i]);
+            strBuilder.append(")\n");
+        }
+
+        return strBuilder.toString();
+    }
+
+    private Integer[] orderByCount() {
+        Integer[] order = new Integer[size];
+
+        for (int i = 0; i < size; ++i) {
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Long.compare(counts[i2], counts[i1]);
+            }
+        });
+
+        return order;
+    }
+
+    private void put(K key, long count, long error) {
+        ensureSize(size + 1);
+        place(size, key, count, error);
+        siftUp(size++);
+    }
+
+    private void ensureSize(int minSize) {
+        if (minSize > keys.length) {
+            int newLength = Math.max(minSize, 2 * keys.length);
+
+            keys = Arrays.copyOf(keys, newLength);
+            counts = Arrays.copyOf(counts, newLength);
+            errors = Arrays.copyOf(errors, newLength);
+        }
+    }
+
+    private void place(int position, K key, long count, long error) {
+        keys[position] = key;
+        counts[position] = count;
+        errors[position] = error;
+        positions.put(key, position);
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+
+            if (counts[position] >= counts[parent]) {
+                break;
+            }
+
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int child = 2 * position + 1;
+
+            if (child >= size) {
+                break;
+            }
+
+            if (child + 1 < size && counts[child + 1] < counts[child]) {
+                ++child;
+            }
+
+            if (counts[child] >= counts[position]) {
+                break;
+            }
+
+            swap(position, child);
+            position = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        K key = key(i);
+        long count = counts[i];
+        long error = errors[i];
+
+        place(i, key(j), counts[j], errors[j]);
+        place(j, key, count, error);
+    }
+
+    private K key(int position) {
+        return (K) keys[position];
+    }
+
+    private K copyKey(K key) {
+        if (reusedOut == null) {
+            reusedOut = new UnsafeByteArrayOutputStream();
+            reusedIn = new UnsafeReusableByteArrayInput();
+        }
+
+        return WritableUtils.createCopy(reusedOut, reusedIn, key, null);
+    }
+}
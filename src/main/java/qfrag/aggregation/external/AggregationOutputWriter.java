@@ -0,0 +1,106 @@
+package qfrag.aggregation.external;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.log4j.Logger;
+import qfrag.aggregation.AggregationStorage;
+import qfrag.aggregation.AggregationStorageMetadata;
+import qfrag.conf.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams an aggregation (typically one split of it) to a text file, one
+ * "key: value" line per mapping like
+ * {@link AggregationStorage#toOutputString()}, without building the whole
+ * output in memory: mappings are streamed with
+ * {@link AggregationStorage#forEachMapping}.
+ * <p/>
+ * WritableComparable keys are written in order through an
+ * {@link ExternalSorter} bounded by {@link Configuration#getOutputBufferSize()},
+ * spilling to {@link Configuration#getSpillDir()}; other keys are written in
+ * storage order. Storages that are not keyed (sketches, top-k summaries) are
+ * small by design and written with toOutputString.
+ */
+public class AggregationOutputWriter {
+    private static final Logger LOG = Logger.getLogger(AggregationOutputWriter.class);
+
+    private static final byte[] SEPARATOR = ": ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NEWLINE = "\n".getBytes(StandardCharsets.UTF_8);
+
+    private AggregationOutputWriter() {
+    }
+
+    /**
+     * Writes storage to path, replacing any file there.
+     *
+     * @return bytes written
+     */
+    public static <K extends Writable, V extends Writable> long write(AggregationStorage<K, V> storage,
+                                                                      FileSystem fs, Path path) throws IOException {
+        long start = System.currentTimeMillis();
+        Configuration config = Configuration.get();
+        AggregationStorageMetadata<K, V> metadata = config.getAggregationMetadata(storage.getName());
+        long numBytes;
+
+        try (ChannelOutput out = new ChannelOutput(Channels.newChannel(fs.create(path, true)),
+                ExternalSorter.IO_BUFFER_SIZE)) {
+            if (!storage.isKeyed()) {
+                out.write(storage.toOutputString().getBytes(StandardCharsets.UTF_8));
+            } else if (WritableComparable.class.isAssignableFrom(metadata.getKeyClass())) {
+                writeSorted(storage, metadata, config, out);
+            } else {
+                storage.forEachMapping((key, value) -> writeLine(out, key, value));
+            }
+
+            out.flush();
+            numBytes = out.getBytesWritten();
+        }
+
+        LOG.info("Wrote " + storage.getNumberMappings() + " mappings of " + storage.getName() + " (" +
+                numBytes + " bytes) to " + path + " in " + (System.currentTimeMillis() - start) + " ms");
+
+        return numBytes;
+    }
+
+    private static <K extends Writable, V extends Writable> void writeSorted(
+            AggregationStorage<K, V> storage, AggregationStorageMetadata<K, V> metadata, Configuration config,
+            ChannelOutput out) throws IOException {
+        WritableComparator comparator = WritableComparator.get(
+                metadata.getKeyClass().asSubclass(WritableComparable.class));
+
+        try (ExternalSorter sorter = new ExternalSorter(comparator, config.getOutputBufferSize(),
+                new File(config.getSpillDir()))) {
+            storage.forEachMapping(sorter::add);
+
+            DataInputBuffer in = new DataInputBuffer();
+            K key = metadata.createKey();
+            V value = metadata.createValue();
+
+            try (SortedRecords records = sorter.sorted()) {
+                while (records.next()) {
+                    in.reset(records.getKeyBytes(), records.getKeyOffset(), records.getKeyLength());
+                    key.readFields(in);
+                    in.reset(records.getValueBytes(), records.getValueOffset(), records.getValueLength());
+                    value.readFields(in);
+
+                    writeLine(out, key, value);
+                }
+            }
+        }
+    }
+
+    private static void writeLine(ChannelOutput out, Writable key, Writable value) throws IOException {
+        out.write(String.valueOf(key).getBytes(StandardCharsets.UTF_8));
+        out.write(SEPARATOR);
+        out.write(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+        out.write(NEWLINE);
+    }
+}
@@ -0,0 +1,85 @@
+package qfrag.aggregation.external;
+
+import qfrag.utils.DirectBuffers;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Buffered reads from a channel through a direct buffer, the counterpart of
+ * {@link ChannelOutput}. Closing closes the channel. Not thread-safe.
+ */
+public class ChannelInput implements Closeable {
+    private final ReadableByteChannel channel;
+    private ByteBuffer buffer;
+
+    public ChannelInput(ReadableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = DirectBuffers.allocate(bufferSize);
+        buffer.flip();
+    }
+
+    /**
+     * @return false if the channel has no bytes left
+     */
+    public boolean hasRemaining() throws IOException {
+        return buffer.hasRemaining() || fill();
+    }
+
+    public int readInt() throws IOException {
+        if (buffer.remaining() < 4) {
+            byte[] bytes = new byte[4];
+            readFully(bytes, 0, 4);
+            return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) |
+                    (bytes[3] & 0xFF);
+        }
+
+        return buffer.getInt();
+    }
+
+    public void readFully(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining() && !fill()) {
+                throw new EOFException("Channel ended " + length + " bytes short");
+            }
+
+            int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Refills the buffer, which must have been drained.
+     *
+     * @return false at the end of the channel
+     */
+    private boolean fill() throws IOException {
+        buffer.clear();
+
+        int n = 0;
+
+        while (n == 0) {
+            n = channel.read(buffer);
+        }
+
+        buffer.flip();
+
+        return n > 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+
+        DirectBuffers.free(buffer);
+        buffer = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,85 @@
+package qfrag.aggregation.external;
+
+import qfrag.utils.DirectBuffers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Buffered writes to a channel through a direct buffer, flushed whenever it
+ * fills. Ints are written big-endian. Closing flushes and closes the channel.
+ * Not thread-safe.
+ */
+public class ChannelOutput implements Closeable {
+    private final WritableByteChannel channel;
+    private ByteBuffer buffer;
+    private long bytesWritten;
+
+    public ChannelOutput(WritableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = DirectBuffers.allocate(bufferSize);
+    }
+
+    public void writeInt(int value) throws IOException {
+        if (buffer.remaining() < 4) {
+            flush();
+        }
+
+        buffer.putInt(value);
+        bytesWritten += 4;
+    }
+
+    public void write(byte[] bytes) throws IOException {
+        write(bytes, 0, bytes.length);
+    }
+
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length > buffer.remaining()) {
+            flush();
+        }
+
+        if (length > buffer.remaining()) {
+            // too big to be worth buffering
+            ByteBuffer wrapped = ByteBuffer.wrap(bytes, offset, length);
+
+            while (wrapped.hasRemaining()) {
+                channel.write(wrapped);
+            }
+        } else {
+            buffer.put(bytes, offset, length);
+        }
+
+        bytesWritten += length;
+    }
+
+    public void flush() throws IOException {
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+
+        try {
+            flush();
+        } finally {
+            DirectBuffers.free(buffer);
+            buffer = null;
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package qfrag.aggregation.external;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts (key, value) records by key within roughly a fixed amount of memory.
+ * <p/>
+ * Records are kept serialized, in the Writables' own (big-endian) format so
+ * raw comparators apply, in a buffer growing up to the memory limit. When the
+ * buffer is full its records are sorted and spilled as a run to a temporary
+ * file of the spill directory. {@link #sorted()} then merges the runs and the
+ * records still in memory in a single pass, so memory stays bounded by the
+ * limit plus an I/O buffer per run.
+ * <p/>
+ * Records with equal keys come out in the order they were added. With no
+ * comparator keys are ordered by their serialized bytes, which still brings
+ * equal keys together. Closing deletes the runs. Not thread-safe.
+ */
+public class ExternalSorter implements Closeable {
+    private static final Logger LOG = Logger.getLogger(ExternalSorter.class);
+
+    public static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    // key length and value length
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final RawComparator<?> comparator;
+    private final int memoryLimit;
+    private final File spillDir;
+
+    private byte[] data;
+    private int dataSize;
+    private int[] offsets;
+    private int numRecords;
+
+    private final DataOutputBuffer recordOut = new DataOutputBuffer();
+
+    private final List<File> runs = new ArrayList<>();
+    private long spilledBytes;
+
+    public ExternalSorter(RawComparator<?> comparator, int memoryLimit, File spillDir) {
+        this.comparator = comparator;
+        this.memoryLimit = Math.max(memoryLimit, INITIAL_CAPACITY);
+        this.spillDir = spillDir;
+        this.data = new byte[INITIAL_CAPACITY];
+        this.offsets = new int[1024];
+    }
+
+    public void add(Writable key, Writable value) throws IOException {
+        recordOut.reset();
+        key.write(recordOut);
+        int keyLength = recordOut.getLength();
+        value.write(recordOut);
+
+        add(recordOut.getData(), 0, keyLength, recordOut.getData(), keyLength, recordOut.getLength() - keyLength);
+    }
+
+    public void add(byte[] keyBytes, int keyOffset, int keyLength,
+                    byte[] valueBytes, int valueOffset, int valueLength) throws IOException {
+        int recordLength = RECORD_HEADER_SIZE + keyLength + valueLength;
+
+        if (numRecords > 0 && (long) dataSize + recordLength + 4L * (numRecords + 1) > memoryLimit) {
+            spill();
+        }
+
+        ensureCapacity(recordLength);
+
+        offsets[numRecords++] = dataSize;
+        writeInt(data, dataSize, keyLength);
+        writeInt(data, dataSize + 4, valueLength);
+        System.arraycopy(keyBytes, keyOffset, data, dataSize + RECORD_HEADER_SIZE, keyLength);
+        System.arraycopy(valueBytes, valueOffset, data, dataSize + RECORD_HEADER_SIZE + keyLength, valueLength);
+        dataSize += recordLength;
+    }
+
+    /**
+     * @return cursor over every record added so far, in key order, to be
+     * closed by the caller. Records may be added again, and sorted called
+     * again, once the cursor is closed.
+     */
+    public SortedRecords sorted() throws IOException {
+        sortRecords();
+
+        SortedRecords records;
+
+        if (runs.isEmpty()) {
+            records = new MemoryRecords();
+        } else {
+            List<SortedRecords> sources = new ArrayList<>(runs.size() + 1);
+
+            for (File run : runs) {
+                sources.add(new RunRecords(run));
+            }
+
+            sources.add(new MemoryRecords());
+            records = new MergedRecords(sources);
+
+            LOG.info("Merging " + runs.size() + " runs (" + spilledBytes + " bytes) and " + numRecords +
+                    " records in memory");
+        }
+
+        return records;
+    }
+
+    public int getNumberRuns() {
+        return runs.size();
+    }
+
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Deletes the runs. Cursors still open must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        for (File run : runs) {
+            if (!run.delete()) {
+                LOG.warn("Unable to delete " + run + ", deleting it on exit");
+                run.deleteOnExit();
+            }
+        }
+
+        runs.clear();
+    }
+
+    /**
+     * Ends the current run: the records in memory are sorted and written to
+     * a new run file.
+     */
+    public void spill() throws IOException {
+        if (numRecords == 0) {
+            return;
+        }
+
+        sortRecords();
+
+        if (!spillDir.isDirectory() && !spillDir.mkdirs()) {
+            throw new IOException("Unable to create spill dir " + spillDir);
+        }
+
+        File run = File.createTempFile("qfrag-run-", ".sorted", spillDir);
+        runs.add(run);
+
+        try (ChannelOutput out = new ChannelOutput(
+                FileChannel.open(run.toPath(), StandardOpenOption.WRITE), IO_BUFFER_SIZE)) {
+            for (int i = 0; i < numRecords; ++i) {
+                int offset = offsets[i];
+                out.write(data, offset, recordLength(offset));
+            }
+
+            spilledBytes += out.getBytesWritten();
+        }
+
+        LOG.info("Spilled run of " + numRecords + " records (" + dataSize + " bytes) to " + run);
+
+        dataSize = 0;
+        numRecords = 0;
+    }
+
+    private void ensureCapacity(int recordLength) {
+        if (numRecords == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+
+        long needed = (long) dataSize + recordLength;
+
+        if (needed > data.length) {
+            // a record larger than the limit gets a buffer of its own size
+            long newLength = Math.max(needed, Math.min(memoryLimit, 2L * data.length));
+
+            if (newLength > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("Record of " + recordLength + " bytes does not fit in memory");
+            }
+
+            data = Arrays.copyOf(data, (int) newLength);
+        }
+    }
+
+    private int recordLength(int offset) {
+        return RECORD_HEADER_SIZE + readInt(data, offset) + readInt(data, offset + 4);
+    }
+
+    private int compareKeys(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+        if (comparator == null) {
+            return WritableComparator.compareBytes(b1, s1, l1, b2, s2, l2);
+        }
+
+        return comparator.compare(b1, s1, l1, b2, s2, l2);
+    }
+
+    private int compareRecords(int offset1, int offset2) {
+        return compareKeys(data, offset1 + RECORD_HEADER_SIZE, readInt(data, offset1),
+                data, offset2 + RECORD_HEADER_SIZE, readInt(data, offset2));
+    }
+
+    private int compareRecords(SortedRecords r1, SortedRecords r2) {
+        return compareKeys(r1.getKeyBytes(), r1.getKeyOffset(), r1.getKeyLength(),
+                r2.getKeyBytes(), r2.getKeyOffset(), r2.getKeyLength());
+    }
+
+    // Stable merge sort of the record offsets, records stay where they are
+    private void sortRecords() {
+        if (numRecords > 1) {
+            mergeSort(offsets, new int[numRecords], 0, numRecords);
+        }
+    }
+
+    private void mergeSort(int[] a, int[] tmp, int from, int to) {
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            for (int i = from + 1; i < to; ++i) {
+                int offset = a[i];
+                int j = i;
+
+                while (j > from && compareRecords(a[j - 1], offset) > 0) {
+                    a[j] = a[j - 1];
+                    --j;
+                }
+
+                a[j] = offset;
+            }
+
+            return;
+        }
+
+        int mid = (from + to) >>> 1;
+        mergeSort(a, tmp, from, mid);
+        mergeSort(a, tmp, mid, to);
+
+        if (compareRecords(a[mid - 1], a[mid]) <= 0) {
+            return;
+        }
+
+        System.arraycopy(a, from, tmp, from, to - from);
+
+        int i = from;
+        int j = mid;
+        int k = from;
+
+        while (i < mid && j < to) {
+            a[k++] = compareRecords(tmp[j], tmp[i]) < 0 ? tmp[j++] : tmp[i++];
+        }
+
+        while (i < mid) {
+            a[k++] = tmp[i++];
+        }
+
+        while (j < to) {
+            a[k++] = tmp[j++];
+        }
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) |
+                ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * The sorted records still in the buffer.
+     */
+    private class MemoryRecords implements SortedRecords {
+        private int index = -1;
+        private int offset;
+
+        @Override
+        public boolean next() {
+            if (index + 1 >= numRecords) {
+                index = numRecords;
+                return false;
+            }
+
+            offset = offsets[++index];
+            return true;
+        }
+
+        @Override
+        public byte[] getKeyBytes() {
+            return data;
+        }
+
+        @Override
+        public int getKeyOffset() {
+            return offset + RECORD_HEADER_SIZE;
+        }
+
+        @Override
+        public int getKeyLength() {
+            return readInt(data, offset);
+        }
+
+        @Override
+        public byte[] getValueBytes() {
+            return data;
+        }
+
+        @Override
+        public int getValueOffset() {
+            return getKeyOffset() + getKeyLength();
+        }
+
+        @Override
+        public int getValueLength() {
+            return readInt(data, offset + 4);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * The records of a spilled run, read back in order.
+     */
+    private static class RunRecords implements SortedRecords {
+        private final ChannelInput in;
+        private byte[] record = new byte[256];
+        private int keyLength;
+        private int valueLength;
+
+        RunRecords(File run) throws IOException {
+            in = new ChannelInput(FileChannel.open(run.toPath(), StandardOpenOption.READ), IO_BUFFER_SIZE);
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (!in.hasRemaining()) {
+                return false;
+            }
+
+            keyLength = in.readInt();
+            valueLength = in.readInt();
+
+            if (record.length < keyLength + valueLength) {
+                record = new byte[Math.max(keyLength + valueLength, 2 * record.length)];
+            }
+
+            in.readFully(record, 0, keyLength + valueLength);
+
+            return true;
+        }
+
+        @Override
+        public byte[] getKeyBytes() {
+            return record;
+        }
+
+        @Override
+        public int getKeyOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getKeyLength() {
+            return keyLength;
+        }
+
+        @Override
+        public byte[] getValueBytes() {
+            return record;
+        }
+
+        @Override
+        public int getValueOffset() {
+            return keyLength;
+        }
+
+        @Override
+        public int getValueLength() {
+            return valueLength;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * k-way merge of sorted sources; ties go to the earlier source, which
+     * holds the records added first.
+     */
+    private class MergedRecords implements SortedRecords {
+        private final List<SortedRecords> sources;
+        private final PriorityQueue<Integer> queue;
+        private SortedRecords current;
+        private int currentIndex = -1;
+
+        MergedRecords(List<SortedRecords> sources) throws IOException {
+            this.sources = sources;
+            this.queue = new PriorityQueue<>(sources.size(), (i, j) -> {
+                int cmp = compareRecords(sources.get(i), sources.get(j));
+                return cmp != 0 ? cmp : Integer.compare(i, j);
+            });
+
+            for (int i = 0; i < sources.size(); ++i) {
+                if (sources.get(i).next()) {
+                    queue.add(i);
+                }
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (currentIndex >= 0 && current.next()) {
+                queue.add(currentIndex);
+            }
+
+            Integer index = queue.poll();
+
+            if (index == null) {
+                currentIndex = -1;
+                current = null;
+                return false;
+            }
+
+            currentIndex = index;
+            current = sources.get(index);
+
+            return true;
+        }
+
+        @Override
+        public byte[] getKeyBytes() {
+            return current.getKeyBytes();
+        }
+
+        @Override
+        public int getKeyOffset() {
+            return current.getKeyOffset();
+        }
+
+        @Override
+        public int getKeyLength() {
+            return current.getKeyLength();
+        }
+
+        @Override
+        public byte[] getValueBytes() {
+            return current.getValueBytes();
+        }
+
+        @Override
+        public int getValueOffset() {
+            return current.getValueOffset();
+        }
+
+        @Override
+        public int getValueLength() {
+            return current.getValueLength();
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (SortedRecords source : sources) {
+                source.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package qfrag.aggregation.external;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Cursor over serialized (key, value) records in key order. The bytes of the
+ * current record are only valid until the next call to next.
+ */
+public interface SortedRecords extends Closeable {
+    /**
+     * Moves to the next record, before the first one initially.
+     *
+     * @return false if there are no records left
+     */
+    boolean next() throws IOException;
+
+    byte[] getKeyBytes();
+
+    int getKeyOffset();
+
+    int getKeyLength();
+
+    byte[] getValueBytes();
+
+    int getValueOffset();
+
+    int getValueLength();
+}
@@ -0,0 +1,15 @@
+package qfrag.aggregation.reductions;
+
+import qfrag.aggregation.sketches.CountMinSketchWritable;
+
+/**
+ * Sum of Count-Min sketches, for aggregations estimating frequencies per key
+ * in constant space.
+ */
+public class CountMinReduction extends ReductionFunction<CountMinSketchWritable> {
+    @Override
+    public CountMinSketchWritable reduce(CountMinSketchWritable v1, CountMinSketchWritable v2) {
+        v1.merge(v2);
+        return v1;
+    }
+}
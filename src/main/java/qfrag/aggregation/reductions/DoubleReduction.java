@@ -0,0 +1,9 @@
+package qfrag.aggregation.reductions;
+
+/**
+ * Primitive form of a {@link ReductionFunction} over double values, used by
+ * primitive-specialized storages to reduce without touching Writables.
+ */
+public interface DoubleReduction {
+    double reduce(double v1, double v2);
+}
@@ -0,0 +1,16 @@
+package qfrag.aggregation.reductions;
+
+import org.apache.hadoop.io.DoubleWritable;
+
+public class DoubleSumReduction extends ReductionFunction<DoubleWritable> implements DoubleReduction {
+    @Override
+    public DoubleWritable reduce(DoubleWritable v1, DoubleWritable v2) {
+        v1.set(reduce(v1.get(), v2.get()));
+        return v1;
+    }
+
+    @Override
+    public double reduce(double v1, double v2) {
+        return v1 + v2;
+    }
+}
@@ -0,0 +1,15 @@
+package qfrag.aggregation.reductions;
+
+import qfrag.aggregation.sketches.HyperLogLogWritable;
+
+/**
+ * Union of HyperLogLog sketches, for aggregations counting distinct items per
+ * key in constant space.
+ */
+public class HyperLogLogReduction extends ReductionFunction<HyperLogLogWritable> {
+    @Override
+    public HyperLogLogWritable reduce(HyperLogLogWritable v1, HyperLogLogWritable v2) {
+        v1.merge(v2);
+        return v1;
+    }
+}
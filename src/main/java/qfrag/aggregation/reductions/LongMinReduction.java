@@ -0,0 +1,16 @@
+package qfrag.aggregation.reductions;
+
+import org.apache.hadoop.io.LongWritable;
+
+public class LongMinReduction extends ReductionFunction<LongWritable> implements LongReduction {
+    @Override
+    public LongWritable reduce(LongWritable v1, LongWritable v2) {
+        v1.set(reduce(v1.get(), v2.get()));
+        return v1;
+    }
+
+    @Override
+    public long reduce(long v1, long v2) {
+        return Math.min(v1, v2);
+    }
+}
@@ -0,0 +1,9 @@
+package qfrag.aggregation.reductions;
+
+/**
+ * Primitive form of a {@link ReductionFunction} over long values, used by
+ * primitive-specialized storages to reduce without touching Writables.
+ */
+public interface LongReduction {
+    long reduce(long v1, long v2);
+}
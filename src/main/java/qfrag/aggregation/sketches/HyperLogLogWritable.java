@@ -0,0 +1,128 @@
+package qfrag.aggregation.sketches;
+
+import org.apache.hadoop.io.Writable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * HyperLogLog sketch (Flajolet et al.) estimating the number of distinct
+ * 64 bit hashes offered to it, in 2^precision one-byte registers.
+ * <p/>
+ * The relative standard error is 1.04 / sqrt(2^precision), 0.81% for the
+ * default precision of 14, whatever the cardinality. Small cardinalities
+ * fall back to linear counting; 64 bit hashes need no large range
+ * correction. Merging is a register-wise max, so merged sketches estimate
+ * the union, and the serialized size is fixed at 2^precision + 1 bytes.
+ */
+public class HyperLogLogWritable implements Writable {
+    public static final int DEFAULT_PRECISION = 14;
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 18;
+
+    private int precision;
+    private byte[] registers;
+
+    public HyperLogLogWritable() {
+        this(DEFAULT_PRECISION);
+    }
+
+    public HyperLogLogWritable(int precision) {
+        checkPrecision(precision);
+
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public void offer(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        // the sentinel bit caps the rank at 64 - precision + 1
+        long remaining = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(remaining) + 1);
+
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    public void merge(HyperLogLogWritable other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Merging HyperLogLog sketches of precision " +
+                    precision + " and " + other.precision);
+        }
+
+        for (int i = 0; i < registers.length; ++i) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /**
+     * @return estimated number of distinct hashes offered
+     */
+    public long estimate() {
+        int numRegisters = registers.length;
+        double sum = 0;
+        int numZeros = 0;
+
+        for (byte register : registers) {
+            sum += Math.scalb(1.0, -register);
+
+            if (register == 0) {
+                ++numZeros;
+            }
+        }
+
+        double alpha = 0.7213 / (1 + 1.079 / numRegisters);
+        double estimate = alpha * numRegisters * numRegisters / sum;
+
+        if (estimate <= 2.5 * numRegisters && numZeros > 0) {
+            estimate = numRegisters * Math.log((double) numRegisters / numZeros);
+        }
+
+        return Math.round(estimate);
+    }
+
+    public void clear() {
+        Arrays.fill(registers, (byte) 0);
+    }
+
+    @Override
+    public void write(DataOutput dataOutput) throws IOException {
+        dataOutput.writeByte(precision);
+        dataOutput.write(registers);
+    }
+
+    @Override
+    public void readFields(DataInput dataInput) throws IOException {
+        int newPrecision = dataInput.readByte();
+
+        checkPrecision(newPrecision);
+
+        if (newPrecision != precision) {
+            precision = newPrecision;
+            registers = new byte[1 << precision];
+        }
+
+        dataInput.readFully(registers);
+    }
+
+    private static void checkPrecision(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("HyperLogLog precision " + precision + " not in [" +
+                    MIN_PRECISION + ", " + MAX_PRECISION + "]");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(estimate());
+    }
+}
@@ -0,0 +1,89 @@
+package qfrag.computation;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.log4j.Logger;
+import qfrag.aggregation.AggregationStorage;
+import qfrag.conf.Configuration;
+import scala.Tuple2;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Two-level aggregation: the task flushing the engines cached by an executor
+ * (see ExecutorGroupedRDD) merges their aggregations into combined storages
+ * of its own before anything is serialized, so each executor ships one chunk
+ * per aggregation split instead of one per partition.
+ * <p/>
+ * The engines' storages are only read, and each partition is merged once,
+ * so a retried or recomputed task ships the same aggregations again. Nothing
+ * outlives the task.
+ */
+class ExecutorAggregations {
+    private static final Logger LOG = Logger.getLogger(ExecutorAggregations.class);
+
+    private final Map<String, AggregationStorage<? extends Writable, ? extends Writable>> storages = new HashMap<>();
+    private final Set<Integer> partitions = new HashSet<>();
+    private QFragEngine engine = null;
+
+    /**
+     * Merges a copy of the aggregations of engine into the combined ones,
+     * unless its partition was merged already.
+     */
+    void merge(QFragEngine engine) throws IOException {
+        if (!partitions.add(engine.getPartitionId())) {
+            return;
+        }
+
+        if (this.engine == null) {
+            this.engine = engine;
+        }
+
+        for (Map.Entry<String, AggregationStorage<? extends Writable, ? extends Writable>> entry :
+                engine.aggregationStorages.entrySet()) {
+            AggregationStorage<Writable, Writable> storage =
+                    (AggregationStorage<Writable, Writable>) storages.get(entry.getKey());
+
+            if (storage == null) {
+                storage = Configuration.get().createAggregationStorage(entry.getKey());
+                storages.put(entry.getKey(), storage);
+            }
+
+            AggregationStorage<Writable, Writable> engineStorage =
+                    (AggregationStorage<Writable, Writable>) entry.getValue();
+
+            if (engineStorage.isKeyed()) {
+                // copies new mappings, so reducing never updates the engine's values
+                engineStorage.forEachMapping(storage::aggregateWithReusables);
+            } else {
+                storage.aggregate(engineStorage);
+            }
+        }
+    }
+
+    /**
+     * Emits the combined aggregations like QFragEngine.flush and frees them.
+     */
+    Iterator<Tuple2<String, byte[]>> flush() {
+        if (engine == null) {
+            return Collections.emptyIterator();
+        }
+
+        LOG.info("Flushing executor aggregations merged from partitions " + partitions);
+
+        Iterator<Tuple2<String, byte[]>> chunks = engine.flush(storages);
+
+        for (AggregationStorage<? extends Writable, ? extends Writable> storage : storages.values()) {
+            storage.reset();
+        }
+
+        storages.clear();
+
+        return chunks;
+    }
+}
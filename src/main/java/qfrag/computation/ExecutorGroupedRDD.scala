@@ -0,0 +1,63 @@
+package qfrag.computation
+
+import org.apache.spark.{NarrowDependency, Partition, TaskContext}
+import org.apache.spark.api.java.JavaRDD
+import org.apache.spark.rdd.RDD
+import org.apache.spark.storage.RDDBlockId
+
+import scala.reflect.ClassTag
+
+/**
+ * Groups the partitions of a cached RDD by the executor caching them: each
+ * partition of this RDD iterates the parent partitions of one group and
+ * prefers to run on that group's executor, so its task reads them from the
+ * local block manager. Parent partitions are never shared between groups.
+ */
+class ExecutorGroupedRDD[T: ClassTag](
+    prev: RDD[T],
+    groups: Array[Array[Int]],
+    locations: Array[Seq[String]])
+  extends RDD[T](prev.context, Nil) {
+
+  override def getDependencies = Seq(new NarrowDependency(prev) {
+    override def getParents(partitionId: Int): Seq[Int] = groups(partitionId)
+  })
+
+  override def getPartitions: Array[Partition] = Array.tabulate[Partition](groups.length) { i =>
+    new ExecutorGroupPartition(i, groups(i).map(prev.partitions(_)))
+  }
+
+  override def compute(split: Partition, context: TaskContext): Iterator[T] =
+    split.asInstanceOf[ExecutorGroupPartition].parents.iterator.flatMap(
+      parent => firstParent[T].iterator(parent, context))
+
+  override def getPreferredLocations(split: Partition): Seq[String] = locations(split.index)
+}
+
+private class ExecutorGroupPartition(override val index: Int, val parents: Array[Partition])
+  extends Partition
+
+object ExecutorGroupedRDD {
+  /**
+   * Groups the partitions of rdd, which must be persisted and computed, by
+   * the executor caching them. Partitions cached nowhere (e.g. evicted) are
+   * recomputed in groups of their own.
+   */
+  def byExecutor[T](rdd: JavaRDD[T]): JavaRDD[T] = {
+    implicit val classTag: ClassTag[T] = rdd.classTag
+    val prev = rdd.rdd
+    val cachedBy = new Array[String](prev.partitions.length)
+
+    for (status <- prev.context.getExecutorStorageStatus;
+         RDDBlockId(_, splitIndex) <- status.rddBlocksById(prev.id).keys) {
+      val id = status.blockManagerId
+      cachedBy(splitIndex) = s"executor_${id.host}_${id.executorId}"
+    }
+
+    val (cached, uncached) = prev.partitions.indices.partition(cachedBy(_) != null)
+    val groups = cached.groupBy(cachedBy(_)).values.map(_.toArray).toArray ++ uncached.map(Array(_))
+    val locations = groups.map(group => Option(cachedBy(group.head)).toSeq)
+
+    new JavaRDD(new ExecutorGroupedRDD(prev, groups, locations))
+  }
+}
@@ -7,14 +7,25 @@ import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.broadcast.Broadcast;
 import org.apache.spark.util.AccumulatorV2;
 
+import qfrag.aggregation.AggregationChunks;
 import qfrag.aggregation.AggregationStorage;
+import qfrag.aggregation.AggregationStorageMetadata;
 import qfrag.conf.Configuration;
 import qfrag.conf.SparkConfiguration;
+import qfrag.graph.MainGraph;
+import qfrag.graph.MainGraphStore;
+import qfrag.query.QueryPlan;
+import qfrag.utils.IntArrayList;
 import qfrag.utils.Logging;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import scala.Tuple2;
 import scala.reflect.ClassTag;
@@ -34,9 +45,13 @@ public class QFragEngine extends Logging implements CommonExecutionEngine, Seria
     Broadcast previousAggregationsBc;
     public int numPartitionsPerWorker = configuration.numPartitionsPerWorker();
     //public AggregationStorageFactory aggregationStorageFactory = new AggregationStorageFactory();
-    //public Map<String,AggregationStorage<? extends Writable, ? extends Writable>> aggregationStorages = null;
+    public Map<String,AggregationStorage<? extends Writable, ? extends Writable>> aggregationStorages = new HashMap<>();
     public long filesLength = 0;
     private String inputFilePath = null;
+    // shared read-only by every engine in this JVM, see MainGraphStore
+    private transient MainGraph mainGraph = null;
+    private QueryPlan plan = null;
+    private RootAssignment rootAssignment = null;
 
     public QFragEngine(int _partitionId) {
         this.partitionId = _partitionId;
@@ -50,6 +65,14 @@ public class QFragEngine extends Logging implements CommonExecutionEngine, Seria
         inputFilePath = _inputBC.getValue();
     }
 
+    public QFragEngine(int _partitionId, int _superstep, Broadcast<String> _inputBC,
+                       Broadcast<QueryPlan> _planBC, Map<String, AccumulatorV2> _accums) {
+        this(_partitionId, _superstep, _inputBC);
+
+        plan = _planBC.getValue();
+        accums = _accums;
+    }
+
     //////////// methods from level 0 /////////////
     @Override
     public int getPartitionId() { return partitionId;}
@@ -62,20 +85,166 @@ public class QFragEngine extends Logging implements CommonExecutionEngine, Seria
     //////////// End of methods from level 0 /////////////
 
     //////////// methods from level 1 /////////////
-    public Iterator<Tuple2> flush() {
-        return null;
+    /**
+     * Emits every local aggregation as (split name, serialized chunk) pairs:
+     * an aggregation registered with n splits is cut by key hash into n
+     * storages with disjoint keys, so the master can reduce the splits in
+     * parallel. The local storages are left as they are, so a retried flush
+     * (e.g. a shuffle map stage rerun after a fetch failure) ships the same
+     * chunks; see releaseAggregations.
+     */
+    public Iterator<Tuple2<String, byte[]>> flush() {
+        return flush(aggregationStorages);
     }
 
-    public QFragEngine withNewAggregations(Broadcast aggregationsBc) {
-        return null;
+    /**
+     * Emits storages like flush, see ExecutorAggregations.
+     */
+    Iterator<Tuple2<String, byte[]>> flush(
+            Map<String, AggregationStorage<? extends Writable, ? extends Writable>> storages) {
+        List<Tuple2<String, byte[]>> chunks = new ArrayList<>();
+
+        try {
+            for (Map.Entry<String, AggregationStorage<? extends Writable, ? extends Writable>> entry :
+                    storages.entrySet()) {
+                String name = entry.getKey();
+                AggregationStorageMetadata metadata = configuration.getAggregationMetadata(name);
+                int numSplits = Math.max(1, metadata.getNumSplits());
+                AggregationStorage<?, ?> storage = entry.getValue();
+                List<? extends AggregationStorage<?, ?>> splits = AggregationChunks.split(storage, numSplits);
+
+                for (int splitId = 0; splitId < splits.size(); ++splitId) {
+                    AggregationStorage<?, ?> split = splits.get(splitId);
+
+                    if (split.getNumberMappings() > 0) {
+                        byte[] chunk = AggregationChunks.toBytes(split);
+
+                        accumulateChunk(chunk);
+                        chunks.add(new Tuple2<>(configuration.getAggregationSplitName(name, splitId), chunk));
+                    }
+
+                    // releases whatever a split copy holds besides its mappings, e.g. spilled runs
+                    if (split != storage) {
+                        split.reset();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Partition(" + partitionId + ") failed to flush aggregations", e);
+        }
+
+        logInfo("Partition(" + partitionId + ") flushed " + chunks.size() + " aggregation chunks");
+
+        return chunks.iterator();
+    }
+
+    /**
+     * Frees the local aggregations (native memory, spilled runs) once the
+     * master is done with this engine.
+     */
+    public void releaseAggregations() {
+        for (AggregationStorage<? extends Writable, ? extends Writable> storage : aggregationStorages.values()) {
+            storage.reset();
+        }
+
+        aggregationStorages.clear();
+    }
+
+    /**
+     * Brings this JVM's resident aggregations to the given version, from the
+     * snapshot and the chain of deltas broadcast by the master, and makes
+     * them this engine's previous aggregations.
+     */
+    public QFragEngine withNewAggregations(int version, int snapshotVersion,
+                                           Broadcast<HashMap<String, byte[]>> snapshotBc,
+                                           List<Broadcast<HashMap<String, byte[]>>> deltaBcs) {
+        try {
+            ResidentAggregations.update(configuration.getUUID(), version, snapshotVersion, snapshotBc, deltaBcs);
+        } catch (IOException e) {
+            throw new RuntimeException("Partition(" + partitionId + ") failed to update aggregations", e);
+        }
+
+        previousAggregationsBc = deltaBcs.isEmpty() ? snapshotBc : deltaBcs.get(deltaBcs.size() - 1);
+
+        return this;
     }
 
     public void init() {
         logInfo("Partition(" + partitionId + ") is initializing.");
+        mainGraph = MainGraphStore.get(configuration);
     }
 
     public void compute() {
         logInfo("I am partition(" + partitionId + "), and I received file path {" + inputFilePath + "} from the master.");
+        logInfo("Partition(" + partitionId + ") is using " + mainGraph);
+
+        if (plan == null) {
+            logWarning("Partition(" + partitionId + ") has no query to match");
+            return;
+        }
+
+        SubgraphMatcher matcher = new SubgraphMatcher(mainGraph, plan);
+
+        // every partition walks the root candidates in the same order and keeps
+        // either its cost-balanced range or every numPartitions-th one, so the
+        // search trees are disjoint
+        int numPartitions = getNumberPartitions();
+        IntArrayList candidates = new IntArrayList();
+        IntArrayList roots = new IntArrayList();
+
+        matcher.collectRootCandidates(candidates);
+
+        if (rootAssignment != null && (rootAssignment.getNumberPartitions() != numPartitions ||
+                rootAssignment.getNumberCandidates() != candidates.size())) {
+            logWarning("Ignoring root assignment of " + rootAssignment.getNumberCandidates() +
+                    " candidates to " + rootAssignment.getNumberPartitions() + " partitions");
+            rootAssignment = null;
+        }
+
+        if (rootAssignment != null) {
+            for (int i = rootAssignment.getFirstCandidate(partitionId);
+                 i < rootAssignment.getEndCandidate(partitionId); ++i) {
+                roots.add(candidates.get(i));
+            }
+        } else {
+            for (int i = partitionId; i < candidates.size(); i += numPartitions) {
+                roots.add(candidates.get(i));
+            }
+        }
+
+        long numMatches = 0;
+        long start = System.currentTimeMillis();
+        int splitThreshold = configuration.getSearchSplitThreshold();
+
+        if (splitThreshold > 0) {
+            SearchTask.Context context = new SearchTask.Context(mainGraph, plan, splitThreshold);
+            ForkJoinPool pool = SearchTask.getPool(configuration.getNumComputeThreads());
+
+            numMatches = pool.invoke(new SearchTask(context, roots.toArray()));
+
+            aggregate(QFragMasterEngine.NUM_TASKS_SPLIT, new LongWritable(context.getNumberSplits()));
+            aggregate(QFragMasterEngine.NUM_TASKS_STOLEN, new LongWritable(context.getNumberSteals()));
+            logInfo("Partition(" + partitionId + ") split " + context.getNumberSplits() + " tasks, " +
+                    context.getNumberSteals() + " were stolen");
+        } else {
+            for (int i = 0; i < roots.size(); ++i) {
+                numMatches += matcher.match(roots.get(i));
+            }
+        }
+
+        logInfo("Partition(" + partitionId + ") found " + numMatches + " matches from " + roots.size() +
+                " root candidates in " + (System.currentTimeMillis() - start) + " ms using " + plan);
+
+        aggregate(QFragMasterEngine.NUM_ROOT_CANDIDATES, new LongWritable(roots.size()));
+        aggregate(QFragMasterEngine.NUM_MATCHES, new LongWritable(numMatches));
+    }
+
+    public void setRootAssignment(RootAssignment rootAssignment) {
+        this.rootAssignment = rootAssignment;
+    }
+
+    public MainGraph getMainGraph() {
+        return mainGraph;
     }
 
     @Override
@@ -97,6 +266,13 @@ public class QFragEngine extends Logging implements CommonExecutionEngine, Seria
         accum.add(it);
     }
 
+    private void accumulateChunk(byte[] chunk) {
+        if (accums != null) {
+            accumulate((long) AggregationChunks.rawLength(chunk), accums.get(QFragMasterEngine.AGGREGATION_RAW_BYTES));
+            accumulate((long) chunk.length, accums.get(QFragMasterEngine.AGGREGATION_SENT_BYTES));
+        }
+    }
+
     public void flushAggregationsByName(String name) {
      }
 
@@ -108,7 +284,7 @@ public class QFragEngine extends Logging implements CommonExecutionEngine, Seria
      * @return the aggregated value or null if no aggregation was found
      */
     public <A extends Writable> A getAggregatedValue(String name) {
-        return null;
+        return (A) ResidentAggregations.get(configuration.getUUID(), name);
     }
 
     /**
@@ -120,7 +296,8 @@ public class QFragEngine extends Logging implements CommonExecutionEngine, Seria
      *
      */
     public <K extends Writable, V extends Writable> void map(String name, K key, V value) {
-
+        AggregationStorage<K, V> aggregationStorage = getAggregationStorage(name);
+        aggregationStorage.aggregateWithReusables(key, value);
     }
 
     /**
@@ -131,13 +308,27 @@ public class QFragEngine extends Logging implements CommonExecutionEngine, Seria
      * @param name aggregator's name
      * @return an aggregation storage with the specified name
      */
-    public <K extends Writable, V extends Writable> AggregationStorage<K,V> getAggregationStorage(String name, K key, V value) {
+    public <K extends Writable, V extends Writable> AggregationStorage<K,V> getAggregationStorage(String name) {
+        AggregationStorage<K, V> aggregationStorage = (AggregationStorage<K, V>) aggregationStorages.get(name);
+
+        if (aggregationStorage == null) {
+            if (configuration.getAggregationMetadata(name) == null) {
+                throw new RuntimeException("Aggregation " + name + " was not registered");
+            }
+
+            aggregationStorage = configuration.createAggregationStorage(name);
+            aggregationStorages.put(name, aggregationStorage);
+        }
 
-        return null;
+        return aggregationStorage;
+    }
+
+    public <K extends Writable, V extends Writable> AggregationStorage<K,V> getAggregationStorage(String name, K key, V value) {
+        return getAggregationStorage(name);
     }
 
     public void aggregate(String name, LongWritable value) {
-        AccumulatorV2<Long,Long> accum = accums.get(name);
+        AccumulatorV2<Long,Long> accum = accums == null ? null : accums.get(name);
         if(accum != null) {
             accum.add(value.get());
         }
@@ -1,11 +1,16 @@
 package qfrag.computation;
 
 // hadoop imports
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Writable;
 // spark imports
+import org.apache.spark.HashPartitioner;
 import org.apache.spark.SparkContext;
+import org.apache.spark.TaskContext;
 import org.apache.spark.api.java.function.Function2;
 import org.apache.spark.api.java.function.VoidFunction;
+import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.util.AccumulatorV2;
@@ -14,13 +19,30 @@ import org.apache.spark.broadcast.Broadcast;
 import org.apache.spark.storage.StorageLevel;
 
 // java imports
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
 // qfrag imports
 import qfrag.conf.SparkConfiguration;
+import qfrag.aggregation.AggregationChunks;
+import qfrag.aggregation.AggregationDelta;
 import qfrag.aggregation.AggregationStorage;
+import qfrag.aggregation.AggregationStorageMetadata;
+import qfrag.aggregation.AggregationsContext;
+import qfrag.aggregation.EndAggregationFunction;
+import qfrag.aggregation.external.AggregationOutputWriter;
+import qfrag.conf.Configuration;
+import qfrag.graph.GraphStatistics;
+import qfrag.graph.MainGraph;
+import qfrag.graph.MainGraphStore;
+import qfrag.query.QueryGraph;
+import qfrag.query.QueryPlan;
+import qfrag.query.QueryPlanner;
+import qfrag.query.RootCostEstimator;
+import qfrag.utils.IntArrayList;
 
 import scala.Array;
+import scala.Tuple2;
 import scala.collection.JavaConversions;
 import scala.collection.JavaConversions.*;
 
@@ -36,12 +58,33 @@ public class QFragMasterEngine extends CommonMasterExecutionEngine implements Se
     // Spark accumulators for stats counting (non-critical)
     // Ad-hoc approach for user-defined aggregations
     private Map<String, AccumulatorV2> aggAccums = null;
-    private Map<String, AggregationStorage> aggregations = null;
+    private Map<String, AggregationStorage> aggregations = new HashMap<>();
     // Accums names
     final public static String FILE_LENGTH = "file_length";
+    final public static String NUM_ROOT_CANDIDATES = "num_root_candidates";
+    final public static String NUM_MATCHES = "num_matches";
+    final public static String NUM_TASKS_SPLIT = "num_tasks_split";
+    final public static String NUM_TASKS_STOLEN = "num_tasks_stolen";
+    // aggregation chunk bytes before and after compression
+    final public static String AGGREGATION_RAW_BYTES = "aggregation_raw_bytes";
+    final public static String AGGREGATION_SENT_BYTES = "aggregation_sent_bytes";
+    // local property of the job releasing the engines' aggregations
+    final static String RELEASE_AGGREGATIONS_JOB = "qfrag.release_aggregations";
     private String inputFilePath = "";
     private Broadcast<String> inputBC = null;
+    private Broadcast<QueryPlan> planBC = null;
+    private Broadcast<RootAssignment> rootAssignmentBC = null;
     private Broadcast<SparkConfiguration> configBC;
+    private Broadcast<HashMap<String, AggregationStorageMetadata>> aggregationsMetadataBC = null;
+    // aggregations of superstep aggregationsVersion: the deltas of the last versions, reaching a snapshot of
+    // aggregationsSnapshotVersion (none if empty), see ResidentAggregations
+    private int aggregationsVersion = -1;
+    private int aggregationsSnapshotVersion = -1;
+    private long aggregationsSnapshotBytes = 0;
+    // bytes of the deltas after the snapshot
+    private long aggregationsDeltasBytes = 0;
+    private Broadcast<HashMap<String, byte[]>> aggregationsSnapshotBC = null;
+    private ArrayList<Broadcast<HashMap<String, byte[]>>> aggregationsDeltaBCs = new ArrayList<>();
 
     JavaRDD globalRDD = null;
     ComputationFunction computeFunction = null;
@@ -81,16 +124,51 @@ public class QFragMasterEngine extends CommonMasterExecutionEngine implements Se
 
         inputBC = sc.broadcast(inputFilePath);
         configBC = sc.broadcast(config);
+        planBC = sc.broadcast(planQuery(loadQuery()));
+
+        aggAccums = new HashMap<>();
+
+        for (String name : Arrays.asList(FILE_LENGTH, NUM_ROOT_CANDIDATES, NUM_MATCHES,
+                NUM_TASKS_SPLIT, NUM_TASKS_STOLEN, AGGREGATION_RAW_BYTES, AGGREGATION_SENT_BYTES)) {
+            aggAccums.put(name, sc.sc().longAccumulator(name));
+        }
 
         globalRDD = sc.parallelize(Arrays.asList(), numPartitions).cache();
     }
 
     public void compute() {
-        JavaRDD<QFragEngine> execEngines = getExecutionEngines(configBC,0);
+        if (config.getRootAssignment().equals(Configuration.ROOT_ASSIGNMENT_COST)) {
+            rootAssignmentBC = sc.broadcast(assignRoots());
+        }
+
+        // registered on the driver, but Configuration does not ship them
+        aggregationsMetadataBC = sc.broadcast(new HashMap<>(config.getAggregationsMetadata()));
+        // storages serialized by the driver carry these broadcasts, see AggregationStorageSerializer
+        installAggregationsMetadata(configBC, aggregationsMetadataBC);
+
+        JavaRDD<QFragEngine> execEngines = getExecutionEngines(configBC, superstep);
 
         execEngines.persist (StorageLevel.MEMORY_ONLY());
         execEngines.foreachPartition(x -> {});
 
+        if (!config.getRegisteredAggregations().isEmpty()) {
+            try {
+                broadcastAggregations(mergeOrReplaceAggregations(getAggregations(execEngines, numPartitions)));
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to broadcast aggregations of superstep " + superstep, e);
+            }
+        }
+
+        releaseAggregations(execEngines);
+        execEngines.unpersist(false);
+
+        logInfo("Root candidates: " + aggAccums.get(NUM_ROOT_CANDIDATES).value() +
+                ", matches: " + aggAccums.get(NUM_MATCHES).value() +
+                ", tasks split: " + aggAccums.get(NUM_TASKS_SPLIT).value() +
+                ", tasks stolen: " + aggAccums.get(NUM_TASKS_STOLEN).value());
+
+        ++superstep;
+
 /*        execEngines.foreachPartition(new VoidFunction<Iterator<QFragEngine>>() {
             @Override
             public void call(Iterator<QFragEngine> qFragEngineIterator) throws Exception {
@@ -110,26 +188,433 @@ public class QFragMasterEngine extends CommonMasterExecutionEngine implements Se
 
     public int getNumberPartitions() { return numPartitions; }
 
-    public Map<String,AggregationStorage<? extends Writable,? extends Writable>> mergeOrReplaceAggregations
-            (Map<String,AggregationStorage<? extends Writable,? extends Writable>> aggreagtions,
-             Map<String,AggregationStorage<? extends Writable,? extends Writable>> previousAggregations) {
+    private QueryGraph loadQuery() {
+        String queryPath = config.getQueryPath();
+
+        try {
+            Path path = new Path(queryPath);
+            FileSystem fs = config.isMainGraphLocal() ?
+                    FileSystem.getLocal(sc.hadoopConfiguration()) : path.getFileSystem(sc.hadoopConfiguration());
+            QueryGraph query = QueryGraph.load(fs, path, config.isGraphEdgeLabelled());
+            logInfo("Loaded " + query + " from " + queryPath);
+            return query;
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to load query from " + queryPath, e);
+        }
+    }
+
+    /**
+     * Picks the matching order of the query from the statistics of the main
+     * graph. The plan is computed once here and broadcast, so every engine
+     * (and the root assignment) follows the same order.
+     */
+    private QueryPlan planQuery(QueryGraph query) {
+        long start = System.currentTimeMillis();
+
+        GraphStatistics statistics = new GraphStatistics(MainGraphStore.get(config));
+        QueryPlan plan = new QueryPlanner(statistics).plan(query);
+
+        logInfo("Planned query in " + (System.currentTimeMillis() - start) + " ms using " + statistics + "\n" +
+                plan.explain());
+
+        return plan;
+    }
+
+    /**
+     * @return description of the chosen query plan, without running it
+     */
+    public String explain() {
+        return planBC.value().explain();
+    }
+
+    /**
+     * Balances the expected search work of the partitions before any dynamic
+     * stealing happens: estimates the subtree cost of every root candidate and
+     * gives each partition a range of candidates with an equal share of the
+     * total cost.
+     */
+    private RootAssignment assignRoots() {
+        long start = System.currentTimeMillis();
+
+        MainGraph graph = MainGraphStore.get(config);
+        QueryPlan plan = planBC.value();
+        SubgraphMatcher matcher = new SubgraphMatcher(graph, plan);
+        RootCostEstimator estimator = new RootCostEstimator(graph, plan);
+
+        IntArrayList candidates = new IntArrayList();
+        matcher.collectRootCandidates(candidates);
+
+        int numCandidates = candidates.size();
+        double[] costs = new double[numCandidates];
+
+        for (int i = 0; i < numCandidates; ++i) {
+            costs[i] = estimator.estimate(candidates.get(i));
+        }
+
+        RootAssignment assignment = RootAssignment.balance(costs, numCandidates, numPartitions);
+
+        double totalCost = 0;
+        double maxPartitionCost = 0;
+
+        for (int partition = 0; partition < numPartitions; ++partition) {
+            double partitionCost = 0;
 
-        if(config.isAggregationIncremental()) {
-            for(Map.Entry<String,AggregationStorage<? extends Writable,? extends Writable>> entry: previousAggregations.entrySet()) {
-                aggreagtions.put(entry.getKey(), entry.getValue());
+            for (int i = assignment.getFirstCandidate(partition); i < assignment.getEndCandidate(partition); ++i) {
+                partitionCost += costs[i];
             }
-            return aggreagtions;
+
+            totalCost += partitionCost;
+            maxPartitionCost = Math.max(maxPartitionCost, partitionCost);
+        }
+
+        logInfo("Assigned " + numCandidates + " root candidates to " + numPartitions + " partitions in " +
+                (System.currentTimeMillis() - start) + " ms, max/avg estimated partition cost = " +
+                (totalCost == 0 ? 1 : maxPartitionCost * numPartitions / totalCost));
+
+        return assignment;
+    }
+
+    /**
+     * Frees the aggregations of the cached engines (native memory, spilled
+     * runs) before they are unpersisted. Engines no longer cached are not
+     * recomputed for it, see ComputationFunction.
+     */
+    private void releaseAggregations(JavaRDD<QFragEngine> execEngines) {
+        sc.setLocalProperty(RELEASE_AGGREGATIONS_JOB, "true");
+
+        try {
+            execEngines.foreach(engine -> engine.releaseAggregations());
+        } finally {
+            sc.setLocalProperty(RELEASE_AGGREGATIONS_JOB, null);
+        }
+    }
+
+    /**
+     * Folds the aggregations of the superstep just run into the ones kept by
+     * the master: merged into them in place with incremental aggregation,
+     * replacing them otherwise.
+     *
+     * @return serialized delta of every aggregation that changed, by name
+     */
+    private HashMap<String, byte[]> mergeOrReplaceAggregations(Map<String, AggregationStorage> newAggregations)
+            throws IOException {
+        HashMap<String, byte[]> deltas = new HashMap<>();
+
+        if (config.isAggregationIncremental()) {
+            for (AggregationStorage storage : newAggregations.values()) {
+                String name = storage.getName();
+                AggregationStorage previousStorage = aggregations.get(name);
+                byte[] delta;
+
+                if (previousStorage == null) {
+                    aggregations.put(name, storage);
+                    delta = AggregationDelta.diff(null, storage);
+                } else {
+                    previousStorage.aggregate(storage);
+                    delta = AggregationDelta.updates(previousStorage, storage.getKeys());
+                }
+
+                deltas.put(name, delta);
+            }
+        } else {
+            Set<String> names = new HashSet<>(aggregations.keySet());
+            names.addAll(newAggregations.keySet());
+
+            for (String name : names) {
+                byte[] delta = AggregationDelta.diff(aggregations.get(name), newAggregations.get(name));
+
+                if (delta != null) {
+                    deltas.put(name, delta);
+                }
+            }
+
+            aggregations = newAggregations;
+        }
+
+        return deltas;
+    }
+
+    /**
+     * Broadcasts the aggregations of this superstep to the engines of the
+     * next one as a delta, appended to the chain of deltas (see
+     * ResidentAggregations). Once the deltas after the last snapshot hold
+     * more bytes than it, a new snapshot is taken, so the driver serializes
+     * the whole aggregations at most once per their size in deltas rather
+     * than every superstep.
+     */
+    private void broadcastAggregations(HashMap<String, byte[]> deltas) throws IOException {
+        long deltaBytes = 0;
+
+        for (byte[] delta : deltas.values()) {
+            deltaBytes += delta.length;
+        }
+
+        aggregationsDeltaBCs.add(sc.broadcast(deltas));
+        aggregationsDeltasBytes += deltaBytes;
+        aggregationsVersion = superstep;
+
+        logInfo("Broadcast delta of " + deltas.size() + " aggregations (" + deltaBytes + " bytes) as version " +
+                aggregationsVersion + ", last snapshot is of version " + aggregationsSnapshotVersion);
+
+        if (aggregationsVersion - aggregationsSnapshotVersion > 1 &&
+                aggregationsDeltasBytes > aggregationsSnapshotBytes) {
+            compactAggregations();
+        }
+    }
+
+    /**
+     * Replaces the snapshot with one of the current version and drops the
+     * deltas before it, but the last: copies one version behind still apply
+     * it instead of loading the snapshot.
+     */
+    private void compactAggregations() throws IOException {
+        HashMap<String, byte[]> snapshot = new HashMap<>();
+        long snapshotBytes = 0;
+
+        for (AggregationStorage storage : aggregations.values()) {
+            byte[] chunk = AggregationChunks.toBytes(storage);
+            snapshot.put(storage.getName(), chunk);
+            snapshotBytes += chunk.length;
+        }
+
+        destroy(aggregationsSnapshotBC);
+
+        Broadcast<HashMap<String, byte[]>> lastDeltaBC = aggregationsDeltaBCs.remove(aggregationsDeltaBCs.size() - 1);
+
+        for (Broadcast<HashMap<String, byte[]>> deltaBC : aggregationsDeltaBCs) {
+            destroy(deltaBC);
+        }
+
+        aggregationsSnapshotBC = sc.broadcast(snapshot);
+        aggregationsSnapshotVersion = aggregationsVersion;
+        aggregationsSnapshotBytes = snapshotBytes;
+        aggregationsDeltaBCs = new ArrayList<>();
+        aggregationsDeltaBCs.add(lastDeltaBC);
+        aggregationsDeltasBytes = 0;
+
+        logInfo("Broadcast snapshot of " + snapshot.size() + " aggregations (" + snapshotBytes +
+                " bytes) as version " + aggregationsSnapshotVersion);
+    }
+
+    private static void destroy(Broadcast<?> broadcast) {
+        if (broadcast != null) {
+            broadcast.unpersist(true);
+            broadcast.destroy();
         }
-        else
-            return previousAggregations;
     }
 
-    private void getAggregations(JavaRDD<QFragEngine> execEngines, int numPartitions) {
-        /*
-        List x = new ArrayList();
-        JavaConversions.asScalaBuffer(x).toList();
-        sc.parallelize(JavaConversions.asScalaBuffer(x).toList(),numPartitions);
-        */
+    /**
+     * Reduces the aggregations flushed by the engines without funnelling them
+     * through the driver, as a k-ary tree: while a split has more chunks than
+     * the configured fan-in, chunks are grouped by (split name, source / k)
+     * and each group is merged by a reducer of its own, one shuffle stage per
+     * level. The last level shuffles by split name into numPartitions
+     * reducers, each split is reduced where it lands, and only the final
+     * splits are collected. Splits of one aggregation have disjoint keys, so
+     * joining them on the driver needs no reduction. With two-level
+     * aggregation, the engines cached by an executor are flushed by one task,
+     * which combines them first (see ExecutorAggregations).
+     * <p/>
+     * Split-parallel end functions run on each split where it was reduced,
+     * so only the entries they keep are collected; other end functions run
+     * on the driver over the joined aggregation. With output active, each
+     * split is also streamed to its own file of the superstep's output
+     * directory where it was reduced.
+     */
+    private Map<String, AggregationStorage> getAggregations(JavaRDD<QFragEngine> execEngines, int numPartitions) {
+        long start = System.currentTimeMillis();
+
+        final Broadcast<SparkConfiguration> configBc = configBC;
+        final Broadcast<HashMap<String, AggregationStorageMetadata>> metadataBc = aggregationsMetadataBC;
+        final AccumulatorV2<Long, Long> rawBytes = aggAccums.get(AGGREGATION_RAW_BYTES);
+        final AccumulatorV2<Long, Long> sentBytes = aggAccums.get(AGGREGATION_SENT_BYTES);
+        final String outputDir = config.isOutputActive() ?
+                new Path(config.getOutputPath(), "superstep_" + superstep).toString() : null;
+        final int fanIn = config.getAggregationTreeFanIn();
+
+        // (split name, source) -> chunk, sources being the partitions at first, or the executors with
+        // two-level aggregation
+        JavaPairRDD<Tuple2<String, Integer>, byte[]> chunks;
+        int numSources;
+
+        if (config.is2LevelAggregationEnabled()) {
+            JavaRDD<QFragEngine> executorEngines = ExecutorGroupedRDD.byExecutor(execEngines);
+
+            numSources = executorEngines.getNumPartitions();
+            chunks = executorEngines.mapPartitionsToPair(engines -> {
+                ExecutorAggregations executorAggregations = new ExecutorAggregations();
+
+                while (engines.hasNext()) {
+                    executorAggregations.merge(engines.next());
+                }
+
+                return withSource(executorAggregations.flush(), TaskContext.getPartitionId());
+            });
+        } else {
+            numSources = numPartitions;
+            chunks = execEngines.flatMapToPair(engine -> withSource(engine.flush(), engine.partitionId));
+        }
+
+        int firstSources = numSources;
+        int depth = 1;
+
+        while (fanIn >= 2 && numSources > fanIn) {
+            numSources = (numSources + fanIn - 1) / fanIn;
+            ++depth;
+
+            chunks = reduceChunks(
+                    chunks.mapToPair(chunk -> new Tuple2<>(
+                            new Tuple2<>(chunk._1()._1(), chunk._1()._2() / fanIn), chunk._2())),
+                    new HashPartitioner(numSources), configBc, metadataBc)
+                    .mapValues(storage -> toChunk(storage, rawBytes, sentBytes));
+        }
+
+        Map<String, byte[]> splits = reduceChunks(
+                chunks.mapToPair(chunk -> new Tuple2<>(chunk._1()._1(), chunk._2())),
+                new HashPartitioner(numPartitions), configBc, metadataBc)
+                .mapToPair(split -> {
+                    AggregationStorage storage = split._2();
+
+                    installAggregationsMetadata(configBc, metadataBc);
+
+                    if (endsOnSplits(storage)) {
+                        storage.endedAggregation();
+                    }
+
+                    if (outputDir != null && !endsOnDriver(storage)) {
+                        writeOutput(configBc, outputDir, split._1(), storage);
+                    }
+
+                    return new Tuple2<>(split._1(), toChunk(storage, rawBytes, sentBytes));
+                })
+                .collectAsMap();
+
+        logInfo("Reduced aggregation chunks of " + firstSources + " sources in a tree of depth " + depth +
+                " (fan-in " + fanIn + ")");
+
+        Map<String, AggregationStorage> finalAggregations = new HashMap<>();
+        long numBytes = 0;
+
+        for (byte[] split : splits.values()) {
+            AggregationStorage storage;
+
+            try {
+                storage = AggregationChunks.fromBytes(split);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to read aggregation split", e);
+            }
+
+            AggregationStorage previousStorage = finalAggregations.get(storage.getName());
+
+            if (previousStorage == null) {
+                finalAggregations.put(storage.getName(), storage);
+            } else {
+                previousStorage.aggregateSplit(storage);
+            }
+
+            numBytes += split.length;
+        }
+
+        for (AggregationStorage storage : finalAggregations.values()) {
+            if (endsOnDriver(storage)) {
+                storage.endedAggregation();
+
+                if (outputDir != null) {
+                    writeOutput(configBc, outputDir, storage.getName(), storage);
+                }
+            }
+        }
+
+        logInfo("Reduced " + finalAggregations.size() + " aggregations from " + splits.size() + " splits (" +
+                numBytes + " bytes collected) in " + (System.currentTimeMillis() - start) + " ms");
+        logInfo("Aggregation chunks shipped: " + sentBytes.value() + " bytes, " + rawBytes.value() +
+                " bytes uncompressed");
+
+        return finalAggregations;
+    }
+
+    private static Iterator<Tuple2<Tuple2<String, Integer>, byte[]>> withSource(
+            Iterator<Tuple2<String, byte[]>> chunks, int source) {
+        List<Tuple2<Tuple2<String, Integer>, byte[]>> sourceChunks = new ArrayList<>();
+
+        while (chunks.hasNext()) {
+            Tuple2<String, byte[]> chunk = chunks.next();
+            sourceChunks.add(new Tuple2<>(new Tuple2<>(chunk._1(), source), chunk._2()));
+        }
+
+        return sourceChunks.iterator();
+    }
+
+    /**
+     * Merges the chunks of each key into one storage, where the partitioner
+     * puts the key. There is no map-side combine: only the (compressed)
+     * chunks are shuffled, and storages are only built on the reduce side.
+     */
+    private static <T> JavaPairRDD<T, AggregationStorage> reduceChunks(
+            JavaPairRDD<T, byte[]> chunks, HashPartitioner partitioner, Broadcast<SparkConfiguration> configBc,
+            Broadcast<HashMap<String, AggregationStorageMetadata>> metadataBc) {
+        return chunks.combineByKey(
+                bytes -> {
+                    installAggregationsMetadata(configBc, metadataBc);
+                    return (AggregationStorage) AggregationChunks.fromBytes(bytes);
+                },
+                (storage, bytes) -> {
+                    storage.aggregate(AggregationChunks.fromBytes(bytes));
+                    return storage;
+                },
+                (storage, otherStorage) -> {
+                    installAggregationsMetadata(configBc, metadataBc);
+                    storage.aggregate(otherStorage);
+                    return storage;
+                },
+                partitioner, false, null);
+    }
+
+    private static byte[] toChunk(AggregationStorage storage, AccumulatorV2<Long, Long> rawBytes,
+                                  AccumulatorV2<Long, Long> sentBytes) throws IOException {
+        byte[] chunk = AggregationChunks.toBytes(storage);
+        rawBytes.add((long) AggregationChunks.rawLength(chunk));
+        sentBytes.add((long) chunk.length);
+        return chunk;
+    }
+
+    private static EndAggregationFunction getEndFunction(AggregationStorage storage) {
+        return Configuration.get().getAggregationMetadata(storage.getName()).getEndAggregationFunction();
+    }
+
+    private static boolean endsOnSplits(AggregationStorage storage) {
+        EndAggregationFunction endFunction = getEndFunction(storage);
+        return endFunction != null && endFunction.isSplitParallel();
+    }
+
+    private static boolean endsOnDriver(AggregationStorage storage) {
+        EndAggregationFunction endFunction = getEndFunction(storage);
+        return endFunction != null && !endFunction.isSplitParallel();
+    }
+
+    /**
+     * Streams storage to the file of outputDir named fileName. Splits are
+     * written where they were reduced; aggregations whose end function must
+     * see them whole are written by the driver once it has run.
+     */
+    static void writeOutput(Broadcast<SparkConfiguration> configBc, String outputDir, String fileName,
+                            AggregationStorage storage) {
+        Path path = new Path(outputDir, fileName);
+
+        try {
+            AggregationOutputWriter.write(storage, path.getFileSystem(configBc.value().hadoopConf()), path);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write aggregation output to " + path, e);
+        }
+    }
+
+    /**
+     * Makes the aggregations registered on the driver known to this JVM's
+     * configuration.
+     */
+    static void installAggregationsMetadata(Broadcast<SparkConfiguration> configBc,
+                                            Broadcast<HashMap<String, AggregationStorageMetadata>> metadataBc) {
+        new AggregationsContext(configBc, metadataBc).install();
     }
 
     private void checkSerializable(Object obj) {
@@ -154,7 +639,10 @@ public class QFragMasterEngine extends CommonMasterExecutionEngine implements Se
     private JavaRDD<QFragEngine> getExecutionEngines(final Broadcast<SparkConfiguration> configBc,
                                                      int _superstep ) {
         configBc.value().initialize();
-        computeFunction = new ComputationFunction();//inputBC,configBc,superstep);
+        computeFunction = new ComputationFunction(configBc, inputBC, planBC, rootAssignmentBC,
+                aggregationsMetadataBC, aggregationsVersion, aggregationsSnapshotVersion, aggregationsSnapshotBC,
+                new ArrayList<>(aggregationsDeltaBCs),
+                aggAccums, _superstep);
 
         globalRDD = sc.parallelize(new ArrayList<QFragEngine>(), numPartitions).cache();
 
@@ -203,28 +691,57 @@ public class QFragMasterEngine extends CommonMasterExecutionEngine implements Se
 }
 
 class ComputationFunction implements Function2<Integer, Iterator<QFragEngine>, Iterator<QFragEngine>>, Serializable {
-    //private static final long serialVersionUID = 7526472295622776147L;
-    /*        private static final long serialVersionUID = 7526472295622776147L;
-            private int superstep;
-            private Broadcast<String> inBC = null;
-            private Broadcast<SparkConfiguration> confBC;
-    */
-    public ComputationFunction() {
-
-    }
-    /*
-            public ComputationFunction(Broadcast<String> _inBC, Broadcast<SparkConfiguration> _confBC, int _superstep) {
-                this.inBC = _inBC;
-                this.confBC = _confBC;
-                this.superstep = _superstep;
-            }
-    */
+    private int superstep;
+    private Broadcast<SparkConfiguration> confBC;
+    private Broadcast<String> inBC;
+    private Broadcast<QueryPlan> planBC;
+    private Broadcast<RootAssignment> rootAssignmentBC;
+    private Broadcast<HashMap<String, AggregationStorageMetadata>> aggregationsMetadataBC;
+    private int aggregationsVersion;
+    private int aggregationsSnapshotVersion;
+    private Broadcast<HashMap<String, byte[]>> aggregationsSnapshotBC;
+    private ArrayList<Broadcast<HashMap<String, byte[]>>> aggregationsDeltaBCs;
+    private Map<String, AccumulatorV2> accums;
+
+    public ComputationFunction(Broadcast<SparkConfiguration> _confBC, Broadcast<String> _inBC,
+                               Broadcast<QueryPlan> _planBC, Broadcast<RootAssignment> _rootAssignmentBC,
+                               Broadcast<HashMap<String, AggregationStorageMetadata>> _aggregationsMetadataBC,
+                               int _aggregationsVersion, int _aggregationsSnapshotVersion,
+                               Broadcast<HashMap<String, byte[]>> _aggregationsSnapshotBC,
+                               ArrayList<Broadcast<HashMap<String, byte[]>>> _aggregationsDeltaBCs,
+                               Map<String, AccumulatorV2> _accums, int _superstep) {
+        this.confBC = _confBC;
+        this.inBC = _inBC;
+        this.planBC = _planBC;
+        this.rootAssignmentBC = _rootAssignmentBC;
+        this.aggregationsMetadataBC = _aggregationsMetadataBC;
+        this.aggregationsVersion = _aggregationsVersion;
+        this.aggregationsSnapshotVersion = _aggregationsSnapshotVersion;
+        this.aggregationsSnapshotBC = _aggregationsSnapshotBC;
+        this.aggregationsDeltaBCs = _aggregationsDeltaBCs;
+        this.accums = _accums;
+        this.superstep = _superstep;
+    }
+
     @Override
     public Iterator<QFragEngine> call(Integer partitionId, Iterator<QFragEngine> v2) throws Exception {
-        //confBC.value().initialize();
-        System.out.println("I am inside computation func");
+        // an engine evicted before its aggregations are released has nothing left to release
+        if (TaskContext.get().getLocalProperty(QFragMasterEngine.RELEASE_AGGREGATIONS_JOB) != null) {
+            return Collections.emptyIterator();
+        }
+
+        QFragMasterEngine.installAggregationsMetadata(confBC, aggregationsMetadataBC);
+
+        QFragEngine engine = new QFragEngine(partitionId, superstep, inBC, planBC, accums);
 
-        QFragEngine engine = new QFragEngine(partitionId);//, this.superstep, inBC);
+        if (rootAssignmentBC != null) {
+            engine.setRootAssignment(rootAssignmentBC.value());
+        }
+
+        if (aggregationsVersion >= 0) {
+            engine.withNewAggregations(aggregationsVersion, aggregationsSnapshotVersion, aggregationsSnapshotBC,
+                    aggregationsDeltaBCs);
+        }
 
         engine.init();
         engine.compute();
@@ -0,0 +1,95 @@
+package qfrag.computation;
+
+import org.apache.log4j.Logger;
+import org.apache.spark.broadcast.Broadcast;
+import qfrag.aggregation.AggregationChunks;
+import qfrag.aggregation.AggregationDelta;
+import qfrag.aggregation.AggregationStorage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * This JVM's copy of the aggregations the master ended the previous
+ * superstep with, shared read-only by the engines of the JVM.
+ * <p/>
+ * The master broadcasts the delta of every superstep from the one before,
+ * keeping a chain of recent deltas and, once in a while, a snapshot of the
+ * aggregations. A copy the chain reaches applies the deltas it misses in
+ * place; an older copy (e.g. of an executor that ran no task for a while)
+ * loads the snapshot first. Broadcast blocks are only fetched by the
+ * executors reading them, so an up-to-date cluster ships the last delta
+ * alone.
+ * <p/>
+ * The copy belongs to one run (configuration uuid): a run started later in
+ * the same JVM starts from an empty copy.
+ */
+class ResidentAggregations {
+    private static final Logger LOG = Logger.getLogger(ResidentAggregations.class);
+
+    private static UUID run = null;
+    private static int version = -1;
+    private static Map<String, AggregationStorage> aggregations = new HashMap<>();
+
+    private ResidentAggregations() {
+    }
+
+    /**
+     * Brings this JVM's copy to newVersion of newRun, once for all its
+     * engines, from the deltas of the versions up to newVersion and the
+     * snapshot of snapshotVersion (null if empty), which the deltas reach.
+     */
+    static synchronized void update(UUID newRun, int newVersion, int snapshotVersion,
+                                    Broadcast<HashMap<String, byte[]>> snapshotBc,
+                                    List<Broadcast<HashMap<String, byte[]>>> deltaBcs) throws IOException {
+        if (!newRun.equals(run)) {
+            run = newRun;
+            version = -1;
+            aggregations = new HashMap<>();
+        }
+
+        if (newVersion == version) {
+            return;
+        }
+
+        int previousVersion = version;
+        int firstDeltaVersion = newVersion - deltaBcs.size() + 1;
+
+        if (version < firstDeltaVersion - 1 || version > newVersion) {
+            aggregations = new HashMap<>();
+
+            if (snapshotBc != null) {
+                for (byte[] chunk : snapshotBc.value().values()) {
+                    AggregationStorage storage = AggregationChunks.fromBytes(chunk);
+                    aggregations.put(storage.getName(), storage);
+                }
+            }
+
+            version = snapshotVersion;
+
+            LOG.info("Loaded snapshot of " + aggregations.size() + " aggregations, version " + snapshotVersion +
+                    " (had version " + previousVersion + ")");
+        }
+
+        int numDeltas = newVersion - version;
+
+        for (; version < newVersion; ++version) {
+            for (byte[] delta : deltaBcs.get(version + 1 - firstDeltaVersion).value().values()) {
+                AggregationDelta.apply(delta, aggregations);
+            }
+        }
+
+        LOG.info("Applied " + numDeltas + " deltas, version " + newVersion);
+    }
+
+    /**
+     * @return aggregation name of the copy of run, or null if this JVM holds
+     * none (yet)
+     */
+    static synchronized AggregationStorage get(UUID run, String name) {
+        return run.equals(ResidentAggregations.run) ? aggregations.get(name) : null;
+    }
+}
@@ -0,0 +1,75 @@
+package qfrag.computation;
+
+import java.io.Serializable;
+
+/**
+ * Static assignment of root candidates to partitions as contiguous, weighted
+ * ranges over the root candidate order (see
+ * {@link SubgraphMatcher#collectRootCandidates}). Only the range
+ * boundaries are shipped; every engine enumerates the same candidates.
+ */
+public class RootAssignment implements Serializable {
+    private final int numCandidates;
+    private final int[] boundaries;
+
+    private RootAssignment(int numCandidates, int[] boundaries) {
+        this.numCandidates = numCandidates;
+        this.boundaries = boundaries;
+    }
+
+    /**
+     * Cuts the candidates into numPartitions ranges of roughly equal total
+     * cost: range p ends where the cumulative cost, counting every candidate
+     * at its midpoint, reaches (p + 1) / numPartitions of the total. Candidates
+     * heavier than a partition's share cannot be divided here and are left to
+     * work stealing.
+     */
+    public static RootAssignment balance(double[] costs, int numCandidates, int numPartitions) {
+        double totalCost = 0;
+
+        for (int i = 0; i < numCandidates; ++i) {
+            totalCost += costs[i];
+        }
+
+        int[] boundaries = new int[numPartitions + 1];
+        double cumulativeCost = 0;
+        int candidate = 0;
+
+        for (int partition = 1; partition < numPartitions; ++partition) {
+            double target = totalCost * partition / numPartitions;
+
+            while (candidate < numCandidates && cumulativeCost + costs[candidate] / 2 < target) {
+                cumulativeCost += costs[candidate];
+                ++candidate;
+            }
+
+            boundaries[partition] = candidate;
+        }
+
+        boundaries[numPartitions] = numCandidates;
+
+        return new RootAssignment(numCandidates, boundaries);
+    }
+
+    public int getNumberCandidates() {
+        return numCandidates;
+    }
+
+    public int getNumberPartitions() {
+        return boundaries.length - 1;
+    }
+
+    /**
+     * @return index (in root candidate order) of the first candidate of partitionId
+     */
+    public int getFirstCandidate(int partitionId) {
+        return boundaries[partitionId];
+    }
+
+    /**
+     * @return index (in root candidate order) one past the last candidate of partitionId
+     */
+    public int getEndCandidate(int partitionId) {
+        return boundaries[partitionId + 1];
+    }
+}
@@ -0,0 +1,121 @@
+package qfrag.computation;
+
+import qfrag.graph.MainGraph;
+import qfrag.query.QueryPlan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fork-join fragment of a query search tree: a mapping prefix plus a slice
+ * of the candidates for the next plan position.
+ * <p/>
+ * While exploring, a task forks the upper half of any node that still has
+ * more than splitThreshold candidates left, as long as the pool does not
+ * already hold surplus work. Forked fragments are left in the worker's queue
+ * where the other threads of the executor can steal them, which breaks up
+ * the few hub-rooted subtrees that dominate skewed queries.
+ * <p/>
+ * All engines of an executor JVM share one pool, so threads whose partition
+ * has finished keep helping the partitions that are still running.
+ */
+public class SearchTask extends RecursiveTask<Long> implements SubgraphMatcher.SearchSplitter {
+    private static ForkJoinPool pool = null;
+
+    /**
+     * State shared by every task of one engine's search.
+     */
+    public static class Context {
+        private final int splitThreshold;
+        private final ThreadLocal<SubgraphMatcher> matchers;
+        private final LongAdder numSplits = new LongAdder();
+        private final LongAdder numSteals = new LongAdder();
+
+        public Context(final MainGraph graph, final QueryPlan plan, int splitThreshold) {
+            this.splitThreshold = splitThreshold;
+            this.matchers = ThreadLocal.withInitial(() -> new SubgraphMatcher(graph, plan));
+        }
+
+        public long getNumberSplits() {
+            return numSplits.sum();
+        }
+
+        public long getNumberSteals() {
+            return numSteals.sum();
+        }
+    }
+
+    private final Context context;
+    private final int[] prefix;
+    private final int level;
+    private final int[] candidates;
+    // thread that forked this task, null for tasks submitted from outside the pool
+    private final Thread owner;
+
+    private transient List<SearchTask> forked;
+
+    public SearchTask(Context context, int[] roots) {
+        this(context, new int[0], 0, roots, null);
+    }
+
+    private SearchTask(Context context, int[] prefix, int level, int[] candidates, Thread owner) {
+        this.context = context;
+        this.prefix = prefix;
+        this.level = level;
+        this.candidates = candidates;
+        this.owner = owner;
+    }
+
+    public static synchronized ForkJoinPool getPool(int parallelism) {
+        if (pool == null) {
+            pool = new ForkJoinPool(Math.max(1, parallelism));
+        }
+
+        return pool;
+    }
+
+    @Override
+    protected Long compute() {
+        if (owner != null && owner != Thread.currentThread()) {
+            context.numSteals.increment();
+        }
+
+        SubgraphMatcher matcher = context.matchers.get();
+        matcher.setSplitter(this, context.splitThreshold);
+
+        long numMatches = matcher.exploreFrom(prefix, level, candidates, 0, candidates.length);
+
+        // the matcher is free again, joining may run other tasks on this thread
+        if (forked != null) {
+            for (SearchTask task : forked) {
+                numMatches += task.join();
+            }
+        }
+
+        return numMatches;
+    }
+
+    @Override
+    public boolean shouldSplit() {
+        return ForkJoinTask.getSurplusQueuedTaskCount() < 2;
+    }
+
+    @Override
+    public void split(int[] mapping, int level, int[] candidates, int from, int to) {
+        SearchTask task = new SearchTask(context, Arrays.copyOf(mapping, level), level,
+                Arrays.copyOfRange(candidates, from, to), Thread.currentThread());
+
+        if (forked == null) {
+            forked = new ArrayList<>();
+        }
+
+        forked.add(task);
+        context.numSplits.increment();
+        task.fork();
+    }
+}
@@ -0,0 +1,444 @@
+package qfrag.computation;
+
+import qfrag.graph.HubAdjacency;
+import qfrag.graph.LabelIndex;
+import qfrag.graph.MainGraph;
+import qfrag.query.QueryPlan;
+import qfrag.utils.IntArrayList;
+import qfrag.utils.SortedIntersection;
+
+import java.nio.IntBuffer;
+
+/**
+ * Backtracking subgraph-isomorphism search over the main graph following a
+ * {@link QueryPlan}.
+ * <p/>
+ * The search is iterative and keeps its whole state in primitive arrays that
+ * are reused across calls: the partial mapping, and one candidate buffer plus
+ * cursor per depth. Candidate buffers only grow (to the largest degree seen),
+ * so nothing is allocated per search-tree node. Not thread-safe, each thread
+ * owns its matcher.
+ * <p/>
+ * Candidates come from the graph's {@link LabelIndex} when it has one: roots
+ * are read from the label's degree buckets that admit the root's minimum
+ * degree, and a non-root position whose label is rarer than the pivot's
+ * neighbors starts from the label's vertices instead of the adjacency list.
+ */
+public class SubgraphMatcher {
+    /**
+     * Receives every complete match. mapping[i] is the data vertex matched to
+     * plan position i; the array is reused and must not be retained.
+     */
+    public interface MatchListener {
+        void onMatch(int[] mapping);
+    }
+
+    /**
+     * Takes over part of the search tree. split receives the current mapping
+     * prefix (positions 0..level-1) and a slice of the candidates for level;
+     * the matcher drops that slice from its own work once split returns.
+     */
+    public interface SearchSplitter {
+        boolean shouldSplit();
+
+        void split(int[] mapping, int level, int[] candidates, int from, int to);
+    }
+
+    private final MainGraph graph;
+    private final LabelIndex labelIndex;
+    private final HubAdjacency hubAdjacency;
+    private final QueryPlan plan;
+    private final int numPositions;
+    private final boolean checkEdgeLabels;
+    private final IntBuffer neighborsView;
+
+    private final int[] mapping;
+    private final int[][] candidates;
+    private final int[] numCandidates;
+    private final int[] candidateCursors;
+    private int[] intersectionBuffer = new int[16];
+    private long[][] hubOperands = new long[4][];
+
+    private MatchListener listener;
+    private SearchSplitter splitter;
+    private int splitThreshold;
+
+    public SubgraphMatcher(MainGraph graph, QueryPlan plan) {
+        this.graph = graph;
+        this.labelIndex = graph.getLabelIndex();
+        this.hubAdjacency = graph.getHubAdjacency();
+        this.plan = plan;
+        this.numPositions = plan.getNumberPositions();
+        this.checkEdgeLabels = graph.isEdgeLabelled() && plan.getQuery().isEdgeLabelled();
+        this.neighborsView = graph.newNeighborsView();
+
+        this.mapping = new int[numPositions];
+        this.candidates = new int[numPositions][16];
+        this.numCandidates = new int[numPositions];
+        this.candidateCursors = new int[numPositions];
+    }
+
+    public void setListener(MatchListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Lets the matcher hand off the upper half of a node's remaining
+     * candidates whenever more than splitThreshold are left and the splitter
+     * agrees. Leaves are never split since they are cheap to enumerate.
+     */
+    public void setSplitter(SearchSplitter splitter, int splitThreshold) {
+        this.splitter = splitter;
+        this.splitThreshold = splitThreshold;
+    }
+
+    public QueryPlan getPlan() {
+        return plan;
+    }
+
+    public boolean isRootCandidate(int vertexId) {
+        return graph.getVertexLabel(vertexId) == plan.getLabel(0) &&
+                graph.getDegree(vertexId) >= plan.getMinDegree(0);
+    }
+
+    /**
+     * Appends every root candidate to roots. The order is deterministic for a
+     * given graph and plan, so every engine enumerates the same sequence.
+     */
+    public void collectRootCandidates(IntArrayList roots) {
+        if (labelIndex == null) {
+            int numVertices = graph.getNumberVertices();
+
+            for (int v = 0; v < numVertices; ++v) {
+                if (isRootCandidate(v)) {
+                    roots.add(v);
+                }
+            }
+
+            return;
+        }
+
+        int label = plan.getLabel(0);
+        int minDegree = plan.getMinDegree(0);
+        int end = labelIndex.getBucketEnd(label);
+
+        for (int i = labelIndex.getBucketStart(label, minDegree); i < end; ++i) {
+            int v = labelIndex.getBucketVertex(i);
+
+            // only the first bucket may hold vertices below minDegree
+            if (graph.getDegree(v) >= minDegree) {
+                roots.add(v);
+            }
+        }
+    }
+
+    /**
+     * Enumerates every match whose first plan position is mapped to root.
+     *
+     * @return number of matches found
+     */
+    public long match(int root) {
+        mapping[0] = root;
+
+        if (numPositions == 1) {
+            return reportMatch();
+        }
+
+        computeCandidates(1);
+
+        return explore(1);
+    }
+
+    /**
+     * Enumerates the subtree below a mapping prefix, restricted to the given
+     * slice of candidates for position level. With level 0 the candidates are
+     * roots, which must already satisfy {@link #isRootCandidate(int)}.
+     *
+     * @return number of matches found
+     */
+    public long exploreFrom(int[] prefix, int level, int[] levelCandidates, int from, int to) {
+        System.arraycopy(prefix, 0, mapping, 0, level);
+
+        int count = to - from;
+
+        if (candidates[level].length < count) {
+            candidates[level] = new int[count];
+        }
+
+        System.arraycopy(levelCandidates, from, candidates[level], 0, count);
+        numCandidates[level] = count;
+        candidateCursors[level] = 0;
+
+        trySplit(level);
+
+        return explore(level);
+    }
+
+    /**
+     * Depth-first search of the subtree below the current mapping prefix,
+     * starting with the candidates already installed at baseLevel and never
+     * backtracking above it.
+     */
+    protected long explore(int baseLevel) {
+        long numMatches = 0;
+        int level = baseLevel;
+        int lastLevel = numPositions - 1;
+
+        while (level >= baseLevel) {
+            if (candidateCursors[level] == numCandidates[level]) {
+                --level;
+                continue;
+            }
+
+            mapping[level] = candidates[level][candidateCursors[level]++];
+
+            if (level == lastLevel) {
+                numMatches += reportMatch();
+            } else {
+                ++level;
+                computeCandidates(level);
+                trySplit(level);
+            }
+        }
+
+        return numMatches;
+    }
+
+    private void trySplit(int level) {
+        if (splitter == null || level == numPositions - 1) {
+            return;
+        }
+
+        int remaining = numCandidates[level] - candidateCursors[level];
+
+        if (remaining > splitThreshold && splitter.shouldSplit()) {
+            int middle = candidateCursors[level] + remaining / 2;
+            splitter.split(mapping, level, candidates[level], middle, numCandidates[level]);
+            numCandidates[level] = middle;
+        }
+    }
+
+    private long reportMatch() {
+        if (listener != null) {
+            listener.onMatch(mapping);
+        }
+
+        return 1;
+    }
+
+    /**
+     * Fills the candidate buffer of level with the data vertices that can be
+     * matched to plan position level given mapping[0..level-1]: the neighbors
+     * of the lowest-degree matched backward neighbor, filtered by label,
+     * degree, adjacency to the other backward neighbors and injectivity. When
+     * the label index holds fewer vertices of the right label and degree than
+     * a binary search per pivot neighbor would cost, those vertices are
+     * filtered by adjacency to every backward neighbor instead.
+     * <p/>
+     * Without edge labels to check, adjacency to the other backward
+     * neighbors is tested by intersecting the (sorted) filtered neighbors of
+     * the pivot with their adjacency lists, see {@link SortedIntersection};
+     * hub neighbors are tested against their bitsets, see {@link HubAdjacency}.
+     * If every backward neighbor is a hub and the pivot has more neighbors
+     * than a bitset has words, the candidates are the AND of the bitsets.
+     */
+    protected void computeCandidates(int level) {
+        int[] backward = plan.getBackwardPositions(level);
+        int[] backwardLabels = plan.getBackwardEdgeLabels(level);
+        int label = plan.getLabel(level);
+        int minDegree = plan.getMinDegree(level);
+
+        int pivot = 0;
+        int pivotDegree = Integer.MAX_VALUE;
+
+        for (int i = 0; i < backward.length; ++i) {
+            int degree = graph.getDegree(mapping[backward[i]]);
+
+            if (degree < pivotDegree) {
+                pivot = i;
+                pivotDegree = degree;
+            }
+        }
+
+        if (labelIndex != null) {
+            int indexCount = labelIndex.getVertexCount(label, minDegree);
+
+            if ((long) indexCount * (32 - Integer.numberOfLeadingZeros(pivotDegree)) < pivotDegree) {
+                computeIndexCandidates(level, indexCount, backward, backwardLabels);
+                return;
+            }
+        }
+
+        int[] levelCandidates = candidates[level];
+
+        if (levelCandidates.length < pivotDegree) {
+            levelCandidates = new int[Math.max(pivotDegree, levelCandidates.length * 2)];
+            candidates[level] = levelCandidates;
+        }
+
+        boolean intersect = !checkEdgeLabels && backward.length > 1;
+
+        if (intersect && hubAdjacency != null && pivotDegree > hubAdjacency.getNumberWords() &&
+                collectHubOperands(backward)) {
+            int count = HubAdjacency.intersect(hubOperands, backward.length, levelCandidates);
+            numCandidates[level] = filterCandidates(levelCandidates, count, level, label, minDegree);
+            candidateCursors[level] = 0;
+            return;
+        }
+
+        graph.copyNeighbors(neighborsView, mapping[backward[pivot]], levelCandidates, 0);
+
+        int count = 0;
+
+        for (int i = 0; i < pivotDegree; ++i) {
+            int v = levelCandidates[i];
+
+            if (graph.getVertexLabel(v) != label || graph.getDegree(v) < minDegree || isMapped(v, level) ||
+                    (!intersect && !isConnected(v, backward, backwardLabels, pivot))) {
+                continue;
+            }
+
+            levelCandidates[count++] = v;
+        }
+
+        if (intersect) {
+            count = intersectBackward(levelCandidates, count, backward, pivot);
+        }
+
+        numCandidates[level] = count;
+        candidateCursors[level] = 0;
+    }
+
+    private boolean collectHubOperands(int[] backward) {
+        if (hubOperands.length < backward.length) {
+            hubOperands = new long[backward.length][];
+        }
+
+        for (int i = 0; i < backward.length; ++i) {
+            long[] bits = hubAdjacency.getBits(mapping[backward[i]]);
+
+            if (bits == null) {
+                return false;
+            }
+
+            hubOperands[i] = bits;
+        }
+
+        return true;
+    }
+
+    private int filterCandidates(int[] levelCandidates, int count, int level, int label, int minDegree) {
+        int kept = 0;
+
+        for (int i = 0; i < count; ++i) {
+            int v = levelCandidates[i];
+
+            if (graph.getVertexLabel(v) == label && graph.getDegree(v) >= minDegree && !isMapped(v, level)) {
+                levelCandidates[kept++] = v;
+            }
+        }
+
+        return kept;
+    }
+
+    /**
+     * Keeps the candidates adjacent to every backward neighbor but the pivot,
+     * testing hub bitsets directly, galloping through long adjacency lists in place and merging with short
+     * ones after copying them to a reusable buffer.
+     */
+    private int intersectBackward(int[] levelCandidates, int count, int[] backward, int pivot) {
+        for (int i = 0; i < backward.length && count > 0; ++i) {
+            if (i == pivot) {
+                continue;
+            }
+
+            int u = mapping[backward[i]];
+            long[] hubBits = hubAdjacency == null ? null : hubAdjacency.getBits(u);
+
+            if (hubBits != null) {
+                count = HubAdjacency.retain(hubBits, levelCandidates, count);
+                continue;
+            }
+
+            int start = graph.getNeighborsStart(u);
+            int end = graph.getNeighborsEnd(u);
+
+            if (SortedIntersection.shouldGallop(count, end - start)) {
+                count = SortedIntersection.gallop(levelCandidates, count, neighborsView, start, end,
+                        levelCandidates);
+            } else {
+                if (intersectionBuffer.length < end - start) {
+                    intersectionBuffer = new int[Math.max(end - start, intersectionBuffer.length * 2)];
+                }
+
+                int degree = graph.copyNeighbors(neighborsView, u, intersectionBuffer, 0);
+                count = SortedIntersection.merge(levelCandidates, count, intersectionBuffer, 0, degree,
+                        levelCandidates);
+            }
+        }
+
+        return count;
+    }
+
+    private void computeIndexCandidates(int level, int indexCount, int[] backward, int[] backwardLabels) {
+        int label = plan.getLabel(level);
+        int minDegree = plan.getMinDegree(level);
+        int[] levelCandidates = candidates[level];
+
+        if (levelCandidates.length < indexCount) {
+            levelCandidates = new int[Math.max(indexCount, levelCandidates.length * 2)];
+            candidates[level] = levelCandidates;
+        }
+
+        int end = labelIndex.getBucketEnd(label);
+        int count = 0;
+
+        for (int i = labelIndex.getBucketStart(label, minDegree); i < end; ++i) {
+            int v = labelIndex.getBucketVertex(i);
+
+            if (graph.getDegree(v) < minDegree || isMapped(v, level) ||
+                    !isConnected(v, backward, backwardLabels, -1)) {
+                continue;
+            }
+
+            levelCandidates[count++] = v;
+        }
+
+        numCandidates[level] = count;
+        candidateCursors[level] = 0;
+    }
+
+    private boolean isConnected(int v, int[] backward, int[] backwardLabels, int pivot) {
+        for (int i = 0; i < backward.length; ++i) {
+            if (i == pivot && !checkEdgeLabels) {
+                continue;
+            }
+
+            if (!checkEdgeLabels) {
+                if (!graph.isNeighbor(mapping[backward[i]], v)) {
+                    return false;
+                }
+
+                continue;
+            }
+
+            int position = graph.findNeighborPosition(mapping[backward[i]], v);
+
+            if (position < 0 || graph.getEdgeLabel(position) != backwardLabels[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean isMapped(int v, int level) {
+        for (int i = 0; i < level; ++i) {
+            if (mapping[i] == v) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -1,11 +1,11 @@
 package qfrag.conf;
 
 import qfrag.aggregation.AggregationStorage;
+import qfrag.aggregation.AggregationStorageFactory;
 import qfrag.aggregation.AggregationStorageMetadata;
 import qfrag.aggregation.EndAggregationFunction;
 import qfrag.aggregation.reductions.ReductionFunction;
 import org.apache.giraph.conf.ImmutableClassesGiraphConfiguration;
-import org.apache.giraph.utils.ReflectionUtils;
 import org.apache.hadoop.io.Writable;
 import org.apache.log4j.Logger;
 import qfrag.utils.Logging;
@@ -26,6 +26,31 @@ public class Configuration extends Logging implements java.io.Serializable {
     public static final String CONF_MAINGRAPH_PATH_DEFAULT = "main.graph";
     public static final String CONF_MAINGRAPH_LOCAL = "arabesque.graph.local";
     public static final boolean CONF_MAINGRAPH_LOCAL_DEFAULT = false;
+    public static final String CONF_MAINGRAPH_EDGE_LABELLED = "arabesque.graph.edge_labelled";
+    public static final boolean CONF_MAINGRAPH_EDGE_LABELLED_DEFAULT = false;
+    public static final String CONF_MAINGRAPH_MMAP_DIR = "qfrag.graph.mmap.dir";
+    public static final String CONF_MAINGRAPH_MMAP_DIR_DEFAULT = System.getProperty("java.io.tmpdir");
+    public static final String CONF_MAINGRAPH_HUB_DEGREE_THRESHOLD = "qfrag.graph.hub.degree_threshold";
+    public static final int CONF_MAINGRAPH_HUB_DEGREE_THRESHOLD_DEFAULT = 1024;
+    public static final String CONF_MAINGRAPH_HUB_MAX_MEMORY_MB = "qfrag.graph.hub.max_memory_mb";
+    public static final int CONF_MAINGRAPH_HUB_MAX_MEMORY_MB_DEFAULT = 256;
+
+    public static final String CONF_QUERY_PATH = "qfrag.query.location";
+    public static final String CONF_QUERY_PATH_DEFAULT = "query.graph";
+
+    public static final String CONF_QUERY_EXPLAIN = "qfrag.query.explain";
+    public static final boolean CONF_QUERY_EXPLAIN_DEFAULT = false;
+
+    public static final String CONF_SEARCH_SPLIT_THRESHOLD = "qfrag.search.split.threshold";
+    public static final int CONF_SEARCH_SPLIT_THRESHOLD_DEFAULT = 64;
+
+    public static final String CONF_ROOT_ASSIGNMENT = "qfrag.search.root_assignment";
+    public static final String ROOT_ASSIGNMENT_COST = "cost";
+    public static final String ROOT_ASSIGNMENT_ROUND_ROBIN = "round_robin";
+    public static final String CONF_ROOT_ASSIGNMENT_DEFAULT = ROOT_ASSIGNMENT_COST;
+
+    public static final String CONF_NUM_COMPUTE_THREADS = "num_compute_threads";
+    public static final int CONF_NUM_COMPUTE_THREADS_DEFAULT = 1;
 
     public static final String CONF_OUTPUT_ACTIVE = "arabesque.output.active";
     public static final boolean CONF_OUTPUT_ACTIVE_DEFAULT = true;
@@ -47,13 +72,17 @@ public class Configuration extends Logging implements java.io.Serializable {
     public static final String CONF_ODAG_FLUSH_METHOD = "arabesque.odag.flush.method";
     public static final String CONF_ODAG_FLUSH_METHOD_DEFAULT = "flush_by_parts";
 
-    private static final String CONF_2LEVELAGG_ENABLED = "arabesque.2levelagg.enabled";
-    private static final boolean CONF_2LEVELAGG_ENABLED_DEFAULT = true;
+    public static final String CONF_2LEVELAGG_ENABLED = "arabesque.2levelagg.enabled";
+    public static final boolean CONF_2LEVELAGG_ENABLED_DEFAULT = true;
     private static final String CONF_FORCE_GC = "arabesque.forcegc";
     private static final boolean CONF_FORCE_GC_DEFAULT = false;
 
     public static final String CONF_OUTPUT_PATH = "arabesque.output.path";
     public static final String CONF_OUTPUT_PATH_DEFAULT = "Output";
+    public static final String CONF_OUTPUT_BUFFER_SIZE = "qfrag.output.buffer.size";
+    public static final int CONF_OUTPUT_BUFFER_SIZE_DEFAULT = 64 * 1024 * 1024;
+    public static final String CONF_SPILL_DIR = "qfrag.spill.dir";
+    public static final String CONF_SPILL_DIR_DEFAULT = System.getProperty("java.io.tmpdir");
 
     public static final String CONF_DEFAULT_AGGREGATOR_SPLITS = "arabesque.aggregators.default_splits";
     public static final int CONF_DEFAULT_AGGREGATOR_SPLITS_DEFAULT = 1;
@@ -62,25 +91,41 @@ public class Configuration extends Logging implements java.io.Serializable {
     public static final boolean CONF_INCREMENTAL_AGGREGATION_DEFAULT = false;
 
     public static final String CONF_AGGREGATION_STORAGE_CLASS = "arabesque.aggregation.storage.class";
-    public static final String CONF_AGGREGATION_STORAGE_CLASS_DEFAULT = "io.arabesque.aggregation.AggregationStorage";
+    public static final String CONF_AGGREGATION_STORAGE_CLASS_DEFAULT = "qfrag.aggregation.AggregationStorage";
+
+    public static final String CONF_AGGREGATION_CAPACITY = "qfrag.aggregation.capacity";
+    public static final int CONF_AGGREGATION_CAPACITY_DEFAULT = 1000;
+
+    public static final String CONF_AGGREGATION_TREE_FAN_IN = "qfrag.aggregation.tree.fan_in";
+    public static final int CONF_AGGREGATION_TREE_FAN_IN_DEFAULT = 8;
+
+    public static final String CONF_AGGREGATION_SPILL_THRESHOLD = "qfrag.aggregation.spill.threshold";
+    public static final int CONF_AGGREGATION_SPILL_THRESHOLD_DEFAULT = 256 * 1024 * 1024;
+
+    public static final String CONF_AGGREGATION_HLL_PRECISION = "qfrag.aggregation.hll.precision";
+    public static final int CONF_AGGREGATION_HLL_PRECISION_DEFAULT = 14;
+    public static final String CONF_AGGREGATION_COUNTMIN_WIDTH = "qfrag.aggregation.countmin.width";
+    public static final int CONF_AGGREGATION_COUNTMIN_WIDTH_DEFAULT = 2048;
+    public static final String CONF_AGGREGATION_COUNTMIN_DEPTH = "qfrag.aggregation.countmin.depth";
+    public static final int CONF_AGGREGATION_COUNTMIN_DEPTH_DEFAULT = 5;
+
+    public static final String CONF_COMPRESSED_CACHES = "arabesque.caches.compress";
+    public static final boolean CONF_COMPRESSED_CACHES_DEFAULT = true;
+    public static final String CONF_CACHE_THRESHOLD_SIZE = "arabesque.cache.threshold";
+    public static final int CONF_CACHE_THRESHOLD_SIZE_DEFAULT = 64 * 1024;
 
     protected static Configuration instance = null;
     private ImmutableClassesGiraphConfiguration giraphConfiguration;
 
-    private boolean useCompressedCaches;
-    private int cacheThresholdSize;
     private long infoPeriod;
     private int odagNumAggregators;
-    private boolean is2LevelAggregationEnabled;
     private boolean forceGC;
 
     private Class<? extends AggregationStorage> aggregationStorageClass;
 
     private String outputPath;
-    private int defaultAggregatorSplits;
 
     private transient Map<String, AggregationStorageMetadata> aggregationsMetadata;
-    private boolean isGraphEdgeLabelled;
     protected boolean initialized = false;
     private boolean isGraphMulti;
 
@@ -141,15 +186,12 @@ public class Configuration extends Logging implements java.io.Serializable {
 
         infoPeriod = getLong(INFO_PERIOD, INFO_PERIOD_DEFAULT);
         odagNumAggregators = getInteger(CONF_EZIP_AGGREGATORS, CONF_EZIP_AGGREGATORS_DEFAULT);
-        is2LevelAggregationEnabled = getBoolean(CONF_2LEVELAGG_ENABLED, CONF_2LEVELAGG_ENABLED_DEFAULT);
         forceGC = getBoolean(CONF_FORCE_GC, CONF_FORCE_GC_DEFAULT);
 
         aggregationsMetadata = new HashMap<>();
 
         //outputPath = getString(CONF_OUTPUT_PATH, CONF_OUTPUT_PATH_DEFAULT + "_" + computationClass.getName());
 
-        defaultAggregatorSplits = getInteger(CONF_DEFAULT_AGGREGATOR_SPLITS, CONF_DEFAULT_AGGREGATOR_SPLITS_DEFAULT);
-
 /*        Computation<?> computation = createComputation();
         computation.initAggregations();*/
 
@@ -201,12 +243,19 @@ public class Configuration extends Logging implements java.io.Serializable {
         return giraphConfiguration.getClasses(key, defaultValues);
     }
 
+    /**
+     * @return whether serialized data shipped between engines and the master
+     * (aggregation chunks) is LZ4-compressed when above the cache threshold
+     */
     public boolean isUseCompressedCaches() {
-        return useCompressedCaches;
+        return getBoolean(CONF_COMPRESSED_CACHES, CONF_COMPRESSED_CACHES_DEFAULT);
     }
 
+    /**
+     * @return serialized size in bytes above which compression kicks in
+     */
     public int getCacheThresholdSize() {
-        return cacheThresholdSize;
+        return getInteger(CONF_CACHE_THRESHOLD_SIZE, CONF_CACHE_THRESHOLD_SIZE_DEFAULT);
     }
 
     public String getLogLevel() {
@@ -217,6 +266,55 @@ public class Configuration extends Logging implements java.io.Serializable {
         return getString(CONF_MAINGRAPH_PATH, CONF_MAINGRAPH_PATH_DEFAULT);
     }
 
+    public boolean isMainGraphLocal() {
+        return getBoolean(CONF_MAINGRAPH_LOCAL, CONF_MAINGRAPH_LOCAL_DEFAULT);
+    }
+
+    public String getMainGraphMmapDir() {
+        return getString(CONF_MAINGRAPH_MMAP_DIR, CONF_MAINGRAPH_MMAP_DIR_DEFAULT);
+    }
+
+    /**
+     * @return minimum degree for a vertex to get a bitset adjacency, 0
+     * disables hub bitsets
+     */
+    public int getHubDegreeThreshold() {
+        return getInteger(CONF_MAINGRAPH_HUB_DEGREE_THRESHOLD, CONF_MAINGRAPH_HUB_DEGREE_THRESHOLD_DEFAULT);
+    }
+
+    public int getHubMaxMemoryMb() {
+        return getInteger(CONF_MAINGRAPH_HUB_MAX_MEMORY_MB, CONF_MAINGRAPH_HUB_MAX_MEMORY_MB_DEFAULT);
+    }
+
+    public String getQueryPath() {
+        return getString(CONF_QUERY_PATH, CONF_QUERY_PATH_DEFAULT);
+    }
+
+    /**
+     * @return whether the runner should only print the query plan instead of
+     * executing it
+     */
+    public boolean isQueryExplain() {
+        return getBoolean(CONF_QUERY_EXPLAIN, CONF_QUERY_EXPLAIN_DEFAULT);
+    }
+
+    /**
+     * @return minimum number of pending candidates a search-tree node needs
+     * before its remaining work is split into stealable tasks, 0 disables
+     * work stealing
+     */
+    public int getSearchSplitThreshold() {
+        return getInteger(CONF_SEARCH_SPLIT_THRESHOLD, CONF_SEARCH_SPLIT_THRESHOLD_DEFAULT);
+    }
+
+    public String getRootAssignment() {
+        return getString(CONF_ROOT_ASSIGNMENT, CONF_ROOT_ASSIGNMENT_DEFAULT);
+    }
+
+    public int getNumComputeThreads() {
+        return getInteger(CONF_NUM_COMPUTE_THREADS, CONF_NUM_COMPUTE_THREADS_DEFAULT);
+    }
+
     public long getInfoPeriod() {
         return infoPeriod;
     }
@@ -240,7 +338,7 @@ public class Configuration extends Logging implements java.io.Serializable {
     }
 
     public boolean is2LevelAggregationEnabled() {
-        return is2LevelAggregationEnabled;
+        return getBoolean(CONF_2LEVELAGG_ENABLED, CONF_2LEVELAGG_ENABLED_DEFAULT);
     }
 
     public boolean isForceGC() {
@@ -259,50 +357,109 @@ public class Configuration extends Logging implements java.io.Serializable {
        this.aggregationsMetadata = aggregationsMetadata;
     }
 
+    /**
+     * Registers an aggregation whose storage keeps at most capacity mappings,
+     * such as {@link qfrag.aggregation.TopKAggregationStorage}. A capacity of
+     * 0 uses {@link #getAggregationCapacity()}.
+     */
     public <K extends Writable, V extends Writable>
     void registerAggregation(String name, Class<? extends AggregationStorage> aggStorageClass,
-          Class<K> keyClass, Class<V> valueClass, boolean persistent, ReductionFunction<V> reductionFunction, EndAggregationFunction<K, V> endAggregationFunction, int numSplits) {
+          Class<K> keyClass, Class<V> valueClass, boolean persistent, ReductionFunction<V> reductionFunction, EndAggregationFunction<K, V> endAggregationFunction, int numSplits, int capacity) {
         if (aggregationsMetadata.containsKey(name)) {
             return;
         }
 
         AggregationStorageMetadata<K, V> aggregationMetadata =
                 new AggregationStorageMetadata<>(aggStorageClass,
-                      keyClass, valueClass, persistent, reductionFunction, endAggregationFunction, numSplits);
+                      keyClass, valueClass, persistent, reductionFunction, endAggregationFunction, numSplits, capacity);
 
         aggregationsMetadata.put(name, aggregationMetadata);
     }
 
+    public <K extends Writable, V extends Writable>
+    void registerAggregation(String name, Class<? extends AggregationStorage> aggStorageClass,
+          Class<K> keyClass, Class<V> valueClass, boolean persistent, ReductionFunction<V> reductionFunction, EndAggregationFunction<K, V> endAggregationFunction, int numSplits) {
+        registerAggregation(name, aggStorageClass, keyClass, valueClass, persistent, reductionFunction, endAggregationFunction, numSplits, 0);
+    }
+
     public <K extends Writable, V extends Writable>
     void registerAggregation(String name, Class<K> keyClass, Class<V> valueClass, boolean persistent, ReductionFunction<V> reductionFunction) {
-    	registerAggregation(name, getAggregationStorageClass(), keyClass, valueClass, persistent, reductionFunction, null, defaultAggregatorSplits);
+    	registerAggregation(name, getAggregationStorageClass(), keyClass, valueClass, persistent, reductionFunction, null, getDefaultAggregatorSplits());
     }
     
     public <K extends Writable, V extends Writable>
     void registerAggregation(String name, Class<? extends AggregationStorage> aggStorageClass, Class<K> keyClass, Class<V> valueClass, boolean persistent, ReductionFunction<V> reductionFunction) {
-    	registerAggregation(name, aggStorageClass, keyClass, valueClass, persistent, reductionFunction, null, defaultAggregatorSplits);
+    	registerAggregation(name, aggStorageClass, keyClass, valueClass, persistent, reductionFunction, null, getDefaultAggregatorSplits());
     }
 
     public <K extends Writable, V extends Writable>
     void registerAggregation(String name, Class<K> keyClass, Class<V> valueClass, boolean persistent, ReductionFunction<V> reductionFunction, EndAggregationFunction<K, V> endAggregationFunction) {
-    	registerAggregation(name, getAggregationStorageClass(), keyClass, valueClass, persistent, reductionFunction, endAggregationFunction, defaultAggregatorSplits);
+    	registerAggregation(name, getAggregationStorageClass(), keyClass, valueClass, persistent, reductionFunction, endAggregationFunction, getDefaultAggregatorSplits());
     }
 
     public <K extends Writable, V extends Writable>
     void registerAggregation(String name, Class<? extends AggregationStorage> aggStorageClass, Class<K> keyClass, Class<V> valueClass, boolean persistent, ReductionFunction<V> reductionFunction, EndAggregationFunction<K, V> endAggregationFunction) {
-    	registerAggregation(name, aggStorageClass, keyClass, valueClass, persistent, reductionFunction, endAggregationFunction, defaultAggregatorSplits);
+    	registerAggregation(name, aggStorageClass, keyClass, valueClass, persistent, reductionFunction, endAggregationFunction, getDefaultAggregatorSplits());
     }
 
     public <K extends Writable, V extends Writable> AggregationStorageMetadata<K, V> getAggregationMetadata(String name) {
         return (AggregationStorageMetadata<K, V>) aggregationsMetadata.get(name);
     }
 
+    /**
+     * @return number of splits an aggregation is reduced in when registered
+     * without an explicit number
+     */
+    public int getDefaultAggregatorSplits() {
+        return getInteger(CONF_DEFAULT_AGGREGATOR_SPLITS, CONF_DEFAULT_AGGREGATOR_SPLITS_DEFAULT);
+    }
+
+    /**
+     * @return mappings kept by bounded aggregation storages registered
+     * without an explicit capacity
+     */
+    public int getAggregationCapacity() {
+        return getInteger(CONF_AGGREGATION_CAPACITY, CONF_AGGREGATION_CAPACITY_DEFAULT);
+    }
+
+    /**
+     * @return chunks of an aggregation split merged by each reducer at every
+     * level of the aggregation tree; values below 2 disable the tree
+     */
+    public int getAggregationTreeFanIn() {
+        return getInteger(CONF_AGGREGATION_TREE_FAN_IN, CONF_AGGREGATION_TREE_FAN_IN_DEFAULT);
+    }
+
+    /**
+     * @return estimated bytes of in-memory mappings above which a spilling
+     * aggregation storage moves them to a sorted run on local disk
+     */
+    public int getAggregationSpillThreshold() {
+        return getInteger(CONF_AGGREGATION_SPILL_THRESHOLD, CONF_AGGREGATION_SPILL_THRESHOLD_DEFAULT);
+    }
+
+    /**
+     * @return HyperLogLog precision of distinct-count aggregations (2^p
+     * registers, 1.04 / sqrt(2^p) relative error)
+     */
+    public int getHllPrecision() {
+        return getInteger(CONF_AGGREGATION_HLL_PRECISION, CONF_AGGREGATION_HLL_PRECISION_DEFAULT);
+    }
+
+    public int getCountMinWidth() {
+        return getInteger(CONF_AGGREGATION_COUNTMIN_WIDTH, CONF_AGGREGATION_COUNTMIN_WIDTH_DEFAULT);
+    }
+
+    public int getCountMinDepth() {
+        return getInteger(CONF_AGGREGATION_COUNTMIN_DEPTH, CONF_AGGREGATION_COUNTMIN_DEPTH_DEFAULT);
+    }
+
     public String getAggregationSplitName(String name, int splitId) {
         return name + "_" + splitId;
     }
     
     public <K extends Writable, V extends Writable> AggregationStorage<K,V> createAggregationStorage(String name) {
-        return ReflectionUtils.newInstance (getAggregationMetadata(name).getAggregationStorageClass());
+        return new AggregationStorageFactory().createAggregationStorage(name, getAggregationMetadata(name));
     }
 
     public String getOutputPath() {
@@ -313,8 +470,16 @@ public class Configuration extends Logging implements java.io.Serializable {
         this.outputPath = outputPath;
     }
 
+    public int getOutputBufferSize() {
+        return getInteger(CONF_OUTPUT_BUFFER_SIZE, CONF_OUTPUT_BUFFER_SIZE_DEFAULT);
+    }
+
+    public String getSpillDir() {
+        return getString(CONF_SPILL_DIR, CONF_SPILL_DIR_DEFAULT);
+    }
+
     public boolean isGraphEdgeLabelled() {
-        return isGraphEdgeLabelled;
+        return getBoolean(CONF_MAINGRAPH_EDGE_LABELLED, CONF_MAINGRAPH_EDGE_LABELLED_DEFAULT);
     }
 
     public boolean isGraphMulti() {
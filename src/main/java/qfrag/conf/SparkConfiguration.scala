@@ -90,6 +90,15 @@ case class SparkConfiguration (confs: Map[String,Any])
     conf.set ("spark.executor.memory", getString("worker_memory", "1g"))
     conf.set ("spark.driver.memory", getString("driver_memory", "1g"))
 
+    // opt-in, e.g. Kryo, with which aggregation storages travel by name through
+    // qfrag.aggregation.AggregationStorageSerializer
+    val serializer = getString("spark_serializer", null)
+    if (serializer != null) {
+      conf.set ("spark.serializer", serializer)
+      conf.set ("spark.kryo.registrator",
+        getString("kryo_registrator", "qfrag.utils.KryoRegistrator"))
+    }
+
     sparkMaster match {
       case "yarn-client" | "yarn-cluster" | "yarn" =>
         conf.set ("spark.executor.instances", getInteger("num_workers", 1).toString)
@@ -158,13 +167,36 @@ case class SparkConfiguration (confs: Map[String,Any])
     // input
     updateIfExists ("input_graph_path", Configuration.CONF_MAINGRAPH_PATH)
     updateIfExists ("input_graph_local", Configuration.CONF_MAINGRAPH_LOCAL)
+    updateIfExists ("input_graph_edge_labelled", Configuration.CONF_MAINGRAPH_EDGE_LABELLED)
+    updateIfExists ("graph_mmap_dir", Configuration.CONF_MAINGRAPH_MMAP_DIR)
+    updateIfExists ("hub_degree_threshold", Configuration.CONF_MAINGRAPH_HUB_DEGREE_THRESHOLD)
+    updateIfExists ("hub_max_memory_mb", Configuration.CONF_MAINGRAPH_HUB_MAX_MEMORY_MB)
  
+    // query
+    updateIfExists ("query_path", Configuration.CONF_QUERY_PATH)
+    updateIfExists ("explain", Configuration.CONF_QUERY_EXPLAIN)
+    updateIfExists ("search_split_threshold", Configuration.CONF_SEARCH_SPLIT_THRESHOLD)
+    updateIfExists ("root_assignment", Configuration.CONF_ROOT_ASSIGNMENT)
+
     // output
     updateIfExists ("output_active", Configuration.CONF_OUTPUT_ACTIVE)
     updateIfExists ("output_path", Configuration.CONF_OUTPUT_PATH)
+    updateIfExists ("output_buffer_size", Configuration.CONF_OUTPUT_BUFFER_SIZE)
+    updateIfExists ("spill_dir", Configuration.CONF_SPILL_DIR)
 
     // aggregation
     updateIfExists ("incremental_aggregation", Configuration.CONF_INCREMENTAL_AGGREGATION)
+    updateIfExists ("aggregation_storage_class", Configuration.CONF_AGGREGATION_STORAGE_CLASS)
+    updateIfExists ("aggregation_splits", Configuration.CONF_DEFAULT_AGGREGATOR_SPLITS)
+    updateIfExists ("two_level_aggregation", Configuration.CONF_2LEVELAGG_ENABLED)
+    updateIfExists ("aggregation_tree_fan_in", Configuration.CONF_AGGREGATION_TREE_FAN_IN)
+    updateIfExists ("aggregation_capacity", Configuration.CONF_AGGREGATION_CAPACITY)
+    updateIfExists ("aggregation_spill_threshold", Configuration.CONF_AGGREGATION_SPILL_THRESHOLD)
+    updateIfExists ("hll_precision", Configuration.CONF_AGGREGATION_HLL_PRECISION)
+    updateIfExists ("countmin_width", Configuration.CONF_AGGREGATION_COUNTMIN_WIDTH)
+    updateIfExists ("countmin_depth", Configuration.CONF_AGGREGATION_COUNTMIN_DEPTH)
+    updateIfExists ("compressed_caches", Configuration.CONF_COMPRESSED_CACHES)
+    updateIfExists ("cache_threshold_size", Configuration.CONF_CACHE_THRESHOLD_SIZE)
    
     // max number of odags in case of odag communication strategy
     updateIfExists ("max_odags", Configuration.CONF_COMM_STRATEGY_ODAGMP_MAX)
@@ -0,0 +1,44 @@
+package qfrag.graph;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+
+/**
+ * Versioned binary snapshot of a main graph, meant to replace text inputs for
+ * graphs that are loaded repeatedly. All fields are big-endian so snapshots
+ * can be produced on one machine and stored in HDFS for any other.
+ * <pre>
+ *   header     : magic, version, flags, numVertices, numEdges        (5 ints)
+ *   degrees    : int[numVertices]
+ *   labels     : int[numVertices]
+ *   adjacency  : long byteLength, then per vertex the sorted neighbor list as
+ *                varints (first neighbor absolute, the rest as gaps)
+ *   edgeLabels : long byteLength, then one zig-zag varint per adjacency entry
+ *                (only if FLAG_EDGE_LABELLED)
+ * </pre>
+ */
+public final class GraphSnapshot {
+    public static final int MAGIC = 0x51465347; // "QFSG"
+    public static final int VERSION = 1;
+    public static final int FLAG_EDGE_LABELLED = 1;
+    public static final int HEADER_SIZE = 20;
+
+    private GraphSnapshot() {
+    }
+
+    /**
+     * Detects the input format by looking at the first bytes of path.
+     */
+    public static boolean isSnapshot(FileSystem fs, Path path) throws IOException {
+        if (fs.getFileStatus(path).getLen() < HEADER_SIZE) {
+            return false;
+        }
+
+        try (FSDataInputStream in = fs.open(path)) {
+            return in.readInt() == MAGIC;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package qfrag.graph;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a {@link GraphSnapshot} straight into a memory-mapped CSR store.
+ * The input is consumed in a single sequential pass through a reusable byte
+ * buffer; no objects are created per vertex or per edge.
+ */
+public class GraphSnapshotReader {
+    private static final Logger LOG = Logger.getLogger(GraphSnapshotReader.class);
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferPosition = 0;
+    private int bufferLimit = 0;
+
+    public GraphSnapshotReader(InputStream in) {
+        this.in = in;
+    }
+
+    public static MainGraph load(FileSystem fs, Path path, File storeFile) throws IOException {
+        long start = System.currentTimeMillis();
+
+        MainGraph graph;
+
+        try (InputStream in = fs.open(path)) {
+            graph = new GraphSnapshotReader(in).read(storeFile);
+        }
+
+        LOG.info("Loaded " + graph + " from snapshot " + path + " in " +
+                (System.currentTimeMillis() - start) + " ms");
+
+        return graph;
+    }
+
+    public MainGraph read(File storeFile) throws IOException {
+        if (readInt() != GraphSnapshot.MAGIC) {
+            throw new IOException("Not a graph snapshot");
+        }
+
+        int version = readInt();
+
+        if (version != GraphSnapshot.VERSION) {
+            throw new IOException("Unsupported graph snapshot version " + version);
+        }
+
+        boolean edgeLabelled = (readInt() & GraphSnapshot.FLAG_EDGE_LABELLED) != 0;
+        int numVertices = readInt();
+        int numEdges = readInt();
+
+        MainGraph graph = MainGraphFile.create(storeFile, numVertices, numEdges, edgeLabelled);
+
+        int offset = 0;
+
+        for (int v = 0; v < numVertices; ++v) {
+            offset += readInt();
+            graph.setOffset(v + 1, offset);
+        }
+
+        if (offset != numEdges) {
+            throw new IOException("Corrupted graph snapshot: degrees sum to " + offset + ", expected " + numEdges);
+        }
+
+        for (int v = 0; v < numVertices; ++v) {
+            graph.setVertexLabel(v, readInt());
+        }
+
+        readLong(); // adjacency section length
+
+        for (int v = 0; v < numVertices; ++v) {
+            int end = graph.getNeighborsEnd(v);
+            int neighbor = 0;
+
+            for (int position = graph.getNeighborsStart(v); position < end; ++position) {
+                neighbor += readVarInt();
+                graph.setNeighbor(position, neighbor);
+            }
+        }
+
+        if (edgeLabelled) {
+            readLong(); // edge labels section length
+
+            for (int position = 0; position < numEdges; ++position) {
+                int zigZag = readVarInt();
+                graph.setEdgeLabel(position, (zigZag >>> 1) ^ -(zigZag & 1));
+            }
+        }
+
+        return graph;
+    }
+
+    private void fill() throws IOException {
+        int remaining = bufferLimit - bufferPosition;
+        System.arraycopy(buffer, bufferPosition, buffer, 0, remaining);
+        bufferPosition = 0;
+        bufferLimit = remaining;
+
+        int read = in.read(buffer, bufferLimit, buffer.length - bufferLimit);
+
+        if (read < 0) {
+            throw new EOFException("Truncated graph snapshot");
+        }
+
+        bufferLimit += read;
+    }
+
+    private int readInt() throws IOException {
+        while (bufferLimit - bufferPosition < 4) {
+            fill();
+        }
+
+        int value = ((buffer[bufferPosition] & 0xff) << 24) |
+                ((buffer[bufferPosition + 1] & 0xff) << 16) |
+                ((buffer[bufferPosition + 2] & 0xff) << 8) |
+                (buffer[bufferPosition + 3] & 0xff);
+        bufferPosition += 4;
+
+        return value;
+    }
+
+    private long readLong() throws IOException {
+        return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+    }
+
+    private int readVarInt() throws IOException {
+        int value = 0;
+        int shift = 0;
+
+        while (true) {
+            if (bufferPosition == bufferLimit) {
+                fill();
+            }
+
+            byte b = buffer[bufferPosition++];
+            value |= (b & 0x7f) << shift;
+
+            if (b >= 0) {
+                return value;
+            }
+
+            shift += 7;
+        }
+    }
+}
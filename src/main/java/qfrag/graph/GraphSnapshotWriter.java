@@ -0,0 +1,96 @@
+package qfrag.graph;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a {@link MainGraph} in the {@link GraphSnapshot} format. Varint
+ * sections are sized in a first pass so they can be streamed without being
+ * buffered in memory.
+ */
+public class GraphSnapshotWriter {
+    private final DataOutputStream out;
+
+    public GraphSnapshotWriter(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+    }
+
+    public void write(MainGraph graph) throws IOException {
+        int numVertices = graph.getNumberVertices();
+        int numEdges = graph.getNumberEdges();
+        boolean edgeLabelled = graph.isEdgeLabelled();
+
+        out.writeInt(GraphSnapshot.MAGIC);
+        out.writeInt(GraphSnapshot.VERSION);
+        out.writeInt(edgeLabelled ? GraphSnapshot.FLAG_EDGE_LABELLED : 0);
+        out.writeInt(numVertices);
+        out.writeInt(numEdges);
+
+        for (int v = 0; v < numVertices; ++v) {
+            out.writeInt(graph.getDegree(v));
+        }
+
+        for (int v = 0; v < numVertices; ++v) {
+            out.writeInt(graph.getVertexLabel(v));
+        }
+
+        out.writeLong(writeAdjacency(graph, false));
+        writeAdjacency(graph, true);
+
+        if (edgeLabelled) {
+            out.writeLong(writeEdgeLabels(graph, false));
+            writeEdgeLabels(graph, true);
+        }
+
+        out.flush();
+    }
+
+    private long writeAdjacency(MainGraph graph, boolean write) throws IOException {
+        long numBytes = 0;
+
+        for (int v = 0; v < graph.getNumberVertices(); ++v) {
+            int end = graph.getNeighborsEnd(v);
+            int previous = 0;
+
+            for (int position = graph.getNeighborsStart(v); position < end; ++position) {
+                int neighbor = graph.getNeighbor(position);
+                numBytes += writeVarInt(neighbor - previous, write);
+                previous = neighbor;
+            }
+        }
+
+        return numBytes;
+    }
+
+    private long writeEdgeLabels(MainGraph graph, boolean write) throws IOException {
+        long numBytes = 0;
+
+        for (int position = 0; position < graph.getNumberEdges(); ++position) {
+            int label = graph.getEdgeLabel(position);
+            numBytes += writeVarInt((label << 1) ^ (label >> 31), write);
+        }
+
+        return numBytes;
+    }
+
+    private int writeVarInt(int value, boolean write) throws IOException {
+        int numBytes = 1;
+
+        while ((value & ~0x7f) != 0) {
+            if (write) {
+                out.write((value & 0x7f) | 0x80);
+            }
+
+            value >>>= 7;
+            ++numBytes;
+        }
+
+        if (write) {
+            out.write(value);
+        }
+
+        return numBytes;
+    }
+}
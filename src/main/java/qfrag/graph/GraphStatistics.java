@@ -0,0 +1,178 @@
+package qfrag.graph;
+
+import com.koloboke.collect.map.hash.HashIntIntMap;
+import com.koloboke.collect.map.hash.HashIntIntMaps;
+import com.koloboke.collect.map.hash.HashLongLongMap;
+import com.koloboke.collect.map.hash.HashLongLongMaps;
+
+import java.util.Arrays;
+
+/**
+ * Label and degree statistics of a main graph, gathered in one pass over the
+ * CSR arrays and used to estimate candidate set sizes when planning queries.
+ */
+public class GraphStatistics {
+    private static final int NUM_DEGREE_BUCKETS = 33;
+
+    private final int numVertices;
+    private final long numEdges;
+
+    // label -> dense label index
+    private final HashIntIntMap labelIndexes = HashIntIntMaps.newMutableMap();
+    private long[] labelCounts = new long[16];
+    private long[] labelDegreeSums = new long[16];
+    // [label index][bucket]: vertices whose degree has (bucket) significant bits
+    private long[][] degreeHistograms = new long[16][];
+    // (label index << 32 | neighbor label index) -> adjacency entries
+    private final HashLongLongMap labelPairCounts = HashLongLongMaps.newMutableMap();
+
+    public GraphStatistics(MainGraph graph) {
+        numVertices = graph.getNumberVertices();
+        numEdges = graph.getNumberEdges();
+
+        int[] vertexLabelIndexes = new int[numVertices];
+
+        for (int v = 0; v < numVertices; ++v) {
+            int labelIndex = labelIndex(graph.getVertexLabel(v));
+            int degree = graph.getDegree(v);
+
+            vertexLabelIndexes[v] = labelIndex;
+            ++labelCounts[labelIndex];
+            labelDegreeSums[labelIndex] += degree;
+            ++degreeHistograms[labelIndex][degreeBucket(degree)];
+        }
+
+        for (int v = 0; v < numVertices; ++v) {
+            long labelIndex = vertexLabelIndexes[v];
+            int end = graph.getNeighborsEnd(v);
+
+            for (int position = graph.getNeighborsStart(v); position < end; ++position) {
+                int neighborLabelIndex = vertexLabelIndexes[graph.getNeighbor(position)];
+                labelPairCounts.addValue((labelIndex << 32) | neighborLabelIndex, 1L);
+            }
+        }
+    }
+
+    private int labelIndex(int label) {
+        int numLabels = labelIndexes.size();
+        int labelIndex = labelIndexes.getOrDefault(label, numLabels);
+
+        if (labelIndex == numLabels) {
+            labelIndexes.put(label, labelIndex);
+
+            if (numLabels == labelCounts.length) {
+                labelCounts = Arrays.copyOf(labelCounts, numLabels * 2);
+                labelDegreeSums = Arrays.copyOf(labelDegreeSums, numLabels * 2);
+                degreeHistograms = Arrays.copyOf(degreeHistograms, numLabels * 2);
+            }
+
+            degreeHistograms[labelIndex] = new long[NUM_DEGREE_BUCKETS];
+        }
+
+        return labelIndex;
+    }
+
+    private static int degreeBucket(int degree) {
+        return 32 - Integer.numberOfLeadingZeros(degree);
+    }
+
+    public int getNumberVertices() {
+        return numVertices;
+    }
+
+    public long getNumberEdges() {
+        return numEdges;
+    }
+
+    public int getNumberLabels() {
+        return labelIndexes.size();
+    }
+
+    public long getLabelCount(int label) {
+        int labelIndex = labelIndexes.getOrDefault(label, -1);
+
+        return labelIndex < 0 ? 0 : labelCounts[labelIndex];
+    }
+
+    public double getAverageDegree(int label) {
+        int labelIndex = labelIndexes.getOrDefault(label, -1);
+
+        return labelIndex < 0 || labelCounts[labelIndex] == 0 ? 0 :
+                (double) labelDegreeSums[labelIndex] / labelCounts[labelIndex];
+    }
+
+    /**
+     * Estimates how many vertices with label have at least minDegree
+     * neighbors, interpolating linearly inside the power-of-two bucket that
+     * holds minDegree.
+     */
+    public double getLabelCountWithMinDegree(int label, int minDegree) {
+        int labelIndex = labelIndexes.getOrDefault(label, -1);
+
+        if (labelIndex < 0) {
+            return 0;
+        }
+
+        long[] histogram = degreeHistograms[labelIndex];
+        int bucket = degreeBucket(minDegree);
+        double count = 0;
+
+        for (int i = bucket + 1; i < NUM_DEGREE_BUCKETS; ++i) {
+            count += histogram[i];
+        }
+
+        if (bucket == 0) {
+            return count + histogram[0];
+        }
+
+        // bucket b holds degrees [2^(b-1), 2^b - 1]
+        long bucketLow = 1L << (bucket - 1);
+        double fractionAbove = (double) (2 * bucketLow - minDegree) / bucketLow;
+
+        return count + histogram[bucket] * fractionAbove;
+    }
+
+    /**
+     * @return number of adjacency entries going from a vertex with label to a
+     * vertex with neighborLabel
+     */
+    public long getLabelPairCount(int label, int neighborLabel) {
+        int labelIndex = labelIndexes.getOrDefault(label, -1);
+        int neighborLabelIndex = labelIndexes.getOrDefault(neighborLabel, -1);
+
+        if (labelIndex < 0 || neighborLabelIndex < 0) {
+            return 0;
+        }
+
+        return labelPairCounts.getOrDefault(((long) labelIndex << 32) | neighborLabelIndex, 0L);
+    }
+
+    /**
+     * @return expected number of neighbors with neighborLabel of a vertex with label
+     */
+    public double getExpectedNeighbors(int label, int neighborLabel) {
+        long labelCount = getLabelCount(label);
+
+        return labelCount == 0 ? 0 : (double) getLabelPairCount(label, neighborLabel) / labelCount;
+    }
+
+    /**
+     * @return probability that a given vertex with label and a given vertex
+     * with neighborLabel are adjacent
+     */
+    public double getEdgeProbability(int label, int neighborLabel) {
+        double denominator = (double) getLabelCount(label) * getLabelCount(neighborLabel);
+
+        return denominator == 0 ? 0 : Math.min(1, getLabelPairCount(label, neighborLabel) / denominator);
+    }
+
+    @Override
+    public String toString() {
+        return "GraphStatistics{" +
+                "numVertices=" + numVertices +
+                ", numEdges=" + numEdges +
+                ", numLabels=" + getNumberLabels() +
+                ", numLabelPairs=" + labelPairCounts.size() +
+                '}';
+    }
+}
@@ -0,0 +1,173 @@
+package qfrag.graph;
+
+import com.koloboke.collect.map.hash.HashIntIntMap;
+import com.koloboke.collect.map.hash.HashIntIntMaps;
+
+import java.util.Arrays;
+
+/**
+ * Bitset adjacency of the hub vertices of a main graph, kept alongside the
+ * CSR arrays.
+ * <p/>
+ * Every vertex whose degree reaches the hub threshold gets one bit per graph
+ * vertex, so testing an edge from a hub is a single word lookup instead of a
+ * binary search, and the common neighbors of two hubs are a word-wise AND.
+ * Each bitset costs numVertices / 8 bytes regardless of degree, so hubs are
+ * admitted from the highest degree down until the memory budget is spent.
+ */
+public class HubAdjacency {
+    private final int numWords;
+    private final int degreeThreshold;
+    // hub vertex id -> index in bitsets
+    private final HashIntIntMap hubIndexes;
+    private final long[][] bitsets;
+
+    private HubAdjacency(int numWords, int degreeThreshold, HashIntIntMap hubIndexes, long[][] bitsets) {
+        this.numWords = numWords;
+        this.degreeThreshold = degreeThreshold;
+        this.hubIndexes = hubIndexes;
+        this.bitsets = bitsets;
+    }
+
+    /**
+     * Builds the bitsets of the vertices of graph with at least
+     * degreeThreshold neighbors, highest degree first, using at most
+     * maxBytes for the bitsets.
+     */
+    public static HubAdjacency build(MainGraph graph, int degreeThreshold, long maxBytes) {
+        int numVertices = graph.getNumberVertices();
+        int numWords = (numVertices + 63) >>> 6;
+        long bytesPerHub = 8L * numWords;
+
+        // (degree << 32 | vertex id) sorts hubs by increasing degree
+        long[] hubs = new long[16];
+        int numHubs = 0;
+
+        for (int v = 0; v < numVertices; ++v) {
+            int degree = graph.getDegree(v);
+
+            if (degree >= degreeThreshold) {
+                if (numHubs == hubs.length) {
+                    hubs = Arrays.copyOf(hubs, numHubs * 2);
+                }
+
+                hubs[numHubs++] = ((long) degree << 32) | v;
+            }
+        }
+
+        Arrays.sort(hubs, 0, numHubs);
+
+        int numAdmitted = (int) Math.min(numHubs, bytesPerHub == 0 ? 0 : maxBytes / bytesPerHub);
+        HashIntIntMap hubIndexes = HashIntIntMaps.newMutableMap(numAdmitted);
+        long[][] bitsets = new long[numAdmitted][];
+
+        for (int i = 0; i < numAdmitted; ++i) {
+            int v = (int) hubs[numHubs - 1 - i];
+            long[] bits = new long[numWords];
+            int end = graph.getNeighborsEnd(v);
+
+            for (int position = graph.getNeighborsStart(v); position < end; ++position) {
+                int neighbor = graph.getNeighbor(position);
+                bits[neighbor >>> 6] |= 1L << neighbor;
+            }
+
+            hubIndexes.put(v, i);
+            bitsets[i] = bits;
+        }
+
+        // the effective threshold is the lowest degree that made the budget
+        int effectiveThreshold = numAdmitted == 0 ? Integer.MAX_VALUE :
+                (int) (hubs[numHubs - numAdmitted] >>> 32);
+
+        return new HubAdjacency(numWords, Math.max(degreeThreshold, effectiveThreshold), hubIndexes, bitsets);
+    }
+
+    /**
+     * @return adjacency bitset of vertexId, or null if it is not a hub
+     */
+    public long[] getBits(int vertexId) {
+        int hubIndex = hubIndexes.getOrDefault(vertexId, -1);
+
+        return hubIndex < 0 ? null : bitsets[hubIndex];
+    }
+
+    public static boolean contains(long[] bits, int vertexId) {
+        return (bits[vertexId >>> 6] & (1L << vertexId)) != 0;
+    }
+
+    /**
+     * Keeps the vertices of list[0..length) that are set in bits, in place.
+     *
+     * @return number of vertices kept
+     */
+    public static int retain(long[] bits, int[] list, int length) {
+        int count = 0;
+
+        for (int i = 0; i < length; ++i) {
+            int v = list[i];
+
+            list[count] = v;
+            count += (int) ((bits[v >>> 6] >>> v) & 1L);
+        }
+
+        return count;
+    }
+
+    /**
+     * Writes the vertices set in every one of the given bitsets to out, in
+     * increasing id order, ANDing them a word at a time.
+     *
+     * @return number of vertices written
+     */
+    public static int intersect(long[][] operands, int numOperands, int[] out) {
+        long[] first = operands[0];
+        int count = 0;
+
+        for (int word = 0; word < first.length; ++word) {
+            long bits = first[word];
+
+            for (int i = 1; i < numOperands && bits != 0; ++i) {
+                bits &= operands[i][word];
+            }
+
+            while (bits != 0) {
+                out[count++] = (word << 6) | Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+            }
+        }
+
+        return count;
+    }
+
+    public int getNumberHubs() {
+        return bitsets.length;
+    }
+
+    /**
+     * @return number of 64 bit words in every bitset
+     */
+    public int getNumberWords() {
+        return numWords;
+    }
+
+    /**
+     * @return lowest degree of an admitted hub (at least the configured
+     * threshold)
+     */
+    public int getDegreeThreshold() {
+        return degreeThreshold;
+    }
+
+    public long getMemoryBytes() {
+        return 8L * numWords * bitsets.length;
+    }
+
+    @Override
+    public String toString() {
+        return "HubAdjacency{" +
+                "numHubs=" + getNumberHubs() +
+                ", degreeThreshold=" + degreeThreshold +
+                ", memoryBytes=" + getMemoryBytes() +
+                '}';
+    }
+}
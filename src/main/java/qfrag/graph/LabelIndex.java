@@ -0,0 +1,262 @@
+package qfrag.graph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Inverted index from vertex label to vertex ids, kept in a memory-mapped
+ * file next to the CSR store so that every partition of an executor shares
+ * it without extra heap.
+ * <pre>
+ *   header        : magic, version, numLabels, numVertices (padded to HEADER_SIZE)
+ *   labels        : int[numLabels], sorted distinct labels
+ *   labelOffsets  : int[numLabels + 1]
+ *   labelVertices : int[numVertices], grouped by label, sorted by id in each group
+ *   bucketOffsets : int[numLabels * NUM_DEGREE_BUCKETS + 1]
+ *   bucketVertices: int[numVertices], grouped by (label, degree bucket), sorted by id in each group
+ * </pre>
+ * Degree bucket b holds the degrees with b significant bits, i.e.
+ * [2^(b-1), 2^b - 1], so vertices with a minimum degree are found by skipping
+ * whole buckets.
+ */
+public class LabelIndex {
+    static final int MAGIC = 0x514c4958; // "QLIX"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    public static final int NUM_DEGREE_BUCKETS = 33;
+
+    private final int numLabels;
+    private final IntBuffer labels;
+    private final IntBuffer labelOffsets;
+    private final IntBuffer labelVertices;
+    private final IntBuffer bucketOffsets;
+    private final IntBuffer bucketVertices;
+
+    private LabelIndex(int numLabels, IntBuffer labels, IntBuffer labelOffsets, IntBuffer labelVertices,
+                       IntBuffer bucketOffsets, IntBuffer bucketVertices) {
+        this.numLabels = numLabels;
+        this.labels = labels;
+        this.labelOffsets = labelOffsets;
+        this.labelVertices = labelVertices;
+        this.bucketOffsets = bucketOffsets;
+        this.bucketVertices = bucketVertices;
+    }
+
+    public static int degreeBucket(int degree) {
+        return 32 - Integer.numberOfLeadingZeros(degree);
+    }
+
+    /**
+     * Builds the index of graph into file with two passes over the vertices
+     * (count, then fill in increasing id order).
+     */
+    public static LabelIndex create(File file, MainGraph graph) throws IOException {
+        int numVertices = graph.getNumberVertices();
+
+        int[] distinctLabels = new int[numVertices];
+
+        for (int v = 0; v < numVertices; ++v) {
+            distinctLabels[v] = graph.getVertexLabel(v);
+        }
+
+        Arrays.sort(distinctLabels);
+
+        int numLabels = 0;
+
+        for (int i = 0; i < numVertices; ++i) {
+            if (i == 0 || distinctLabels[i] != distinctLabels[i - 1]) {
+                distinctLabels[numLabels++] = distinctLabels[i];
+            }
+        }
+
+        int numBuckets = numLabels * NUM_DEGREE_BUCKETS;
+        int[] vertexLabelPositions = new int[numVertices];
+        int[] labelCursors = new int[numLabels + 1];
+        int[] bucketCursors = new int[numBuckets + 1];
+
+        for (int v = 0; v < numVertices; ++v) {
+            int labelPosition = Arrays.binarySearch(distinctLabels, 0, numLabels, graph.getVertexLabel(v));
+            vertexLabelPositions[v] = labelPosition;
+            ++labelCursors[labelPosition + 1];
+            ++bucketCursors[labelPosition * NUM_DEGREE_BUCKETS + degreeBucket(graph.getDegree(v)) + 1];
+        }
+
+        for (int i = 0; i < numLabels; ++i) {
+            labelCursors[i + 1] += labelCursors[i];
+        }
+
+        for (int i = 0; i < numBuckets; ++i) {
+            bucketCursors[i + 1] += bucketCursors[i];
+        }
+
+        long fileSize = HEADER_SIZE + 4L * (numLabels + (numLabels + 1L) + numVertices + (numBuckets + 1L) + numVertices);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.setLength(fileSize);
+
+            FileChannel channel = raf.getChannel();
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE)
+                    .order(ByteOrder.nativeOrder());
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(numLabels);
+            header.putInt(numVertices);
+
+            LabelIndex index = map(channel, FileChannel.MapMode.READ_WRITE, numLabels, numVertices);
+
+            for (int i = 0; i < numLabels; ++i) {
+                index.labels.put(i, distinctLabels[i]);
+            }
+
+            for (int i = 0; i <= numLabels; ++i) {
+                index.labelOffsets.put(i, labelCursors[i]);
+            }
+
+            for (int i = 0; i <= numBuckets; ++i) {
+                index.bucketOffsets.put(i, bucketCursors[i]);
+            }
+
+            for (int v = 0; v < numVertices; ++v) {
+                int labelPosition = vertexLabelPositions[v];
+                int bucket = labelPosition * NUM_DEGREE_BUCKETS + degreeBucket(graph.getDegree(v));
+
+                index.labelVertices.put(labelCursors[labelPosition]++, v);
+                index.bucketVertices.put(bucketCursors[bucket]++, v);
+            }
+
+            return index;
+        }
+    }
+
+    public static LabelIndex open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Truncated label index file " + file);
+            }
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE)
+                    .order(ByteOrder.nativeOrder());
+
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a label index file (or incompatible version): " + file);
+            }
+
+            int numLabels = header.getInt();
+            int numVertices = header.getInt();
+
+            return map(channel, FileChannel.MapMode.READ_ONLY, numLabels, numVertices);
+        }
+    }
+
+    private static LabelIndex map(FileChannel channel, FileChannel.MapMode mode, int numLabels, int numVertices)
+            throws IOException {
+        int numBuckets = numLabels * NUM_DEGREE_BUCKETS;
+        long position = HEADER_SIZE;
+
+        IntBuffer labels = MainGraphFile.mapInts(channel, mode, position, numLabels);
+        position += 4L * numLabels;
+
+        IntBuffer labelOffsets = MainGraphFile.mapInts(channel, mode, position, numLabels + 1L);
+        position += 4L * (numLabels + 1L);
+
+        IntBuffer labelVertices = MainGraphFile.mapInts(channel, mode, position, numVertices);
+        position += 4L * numVertices;
+
+        IntBuffer bucketOffsets = MainGraphFile.mapInts(channel, mode, position, numBuckets + 1L);
+        position += 4L * (numBuckets + 1L);
+
+        IntBuffer bucketVertices = MainGraphFile.mapInts(channel, mode, position, numVertices);
+
+        return new LabelIndex(numLabels, labels, labelOffsets, labelVertices, bucketOffsets, bucketVertices);
+    }
+
+    public int getNumberVertices() {
+        return labelVertices.capacity();
+    }
+
+    public int getNumberLabels() {
+        return numLabels;
+    }
+
+    /**
+     * @return position of label in the index, or -1 if no vertex has it
+     */
+    public int getLabelPosition(int label) {
+        int low = 0;
+        int high = numLabels - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midLabel = labels.get(mid);
+
+            if (midLabel < label) {
+                low = mid + 1;
+            } else if (midLabel > label) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return number of vertices with label whose degree bucket admits minDegree,
+     * an upper bound of the vertices with label and at least minDegree neighbors
+     */
+    public int getVertexCount(int label, int minDegree) {
+        int labelPosition = getLabelPosition(label);
+
+        if (labelPosition < 0) {
+            return 0;
+        }
+
+        int firstBucket = labelPosition * NUM_DEGREE_BUCKETS + degreeBucket(minDegree);
+
+        return bucketOffsets.get((labelPosition + 1) * NUM_DEGREE_BUCKETS) - bucketOffsets.get(firstBucket);
+    }
+
+    /**
+     * @return position in {@link #getBucketVertex(int)} order of the first
+     * vertex with label that may have minDegree neighbors
+     */
+    public int getBucketStart(int label, int minDegree) {
+        int labelPosition = getLabelPosition(label);
+
+        return labelPosition < 0 ? 0 :
+                bucketOffsets.get(labelPosition * NUM_DEGREE_BUCKETS + degreeBucket(minDegree));
+    }
+
+    /**
+     * @return position one past the last vertex with label in
+     * {@link #getBucketVertex(int)} order
+     */
+    public int getBucketEnd(int label) {
+        int labelPosition = getLabelPosition(label);
+
+        return labelPosition < 0 ? 0 : bucketOffsets.get((labelPosition + 1) * NUM_DEGREE_BUCKETS);
+    }
+
+    public int getBucketVertex(int position) {
+        return bucketVertices.get(position);
+    }
+
+    @Override
+    public String toString() {
+        return "LabelIndex{" +
+                "numLabels=" + numLabels +
+                ", numVertices=" + getNumberVertices() +
+                '}';
+    }
+}
@@ -0,0 +1,186 @@
+package qfrag.graph;
+
+import java.nio.IntBuffer;
+
+/**
+ * Read-only compressed-sparse-row view of the main graph.
+ * <p/>
+ * All arrays live in memory-mapped files (see {@link MainGraphFile}), so a
+ * single instance is shared by every partition running in the same executor
+ * JVM and the data itself stays out of the Java heap. Vertex ids are dense
+ * (0..numVertices-1) and every adjacency list is sorted by neighbor id.
+ */
+public class MainGraph {
+    private final int numVertices;
+    private final int numEdges;
+    private final boolean edgeLabelled;
+
+    private final IntBuffer offsets;
+    private final IntBuffer vertexLabels;
+    private final IntBuffer neighbors;
+    private final IntBuffer edgeLabels;
+
+    private LabelIndex labelIndex;
+    private HubAdjacency hubAdjacency;
+
+    MainGraph(int numVertices, int numEdges, boolean edgeLabelled,
+              IntBuffer offsets, IntBuffer vertexLabels, IntBuffer neighbors, IntBuffer edgeLabels) {
+        this.numVertices = numVertices;
+        this.numEdges = numEdges;
+        this.edgeLabelled = edgeLabelled;
+        this.offsets = offsets;
+        this.vertexLabels = vertexLabels;
+        this.neighbors = neighbors;
+        this.edgeLabels = edgeLabels;
+    }
+
+    public int getNumberVertices() {
+        return numVertices;
+    }
+
+    /**
+     * @return number of adjacency entries, i.e. each undirected edge is
+     * counted once per endpoint
+     */
+    public int getNumberEdges() {
+        return numEdges;
+    }
+
+    public boolean isEdgeLabelled() {
+        return edgeLabelled;
+    }
+
+    public int getVertexLabel(int vertexId) {
+        return vertexLabels.get(vertexId);
+    }
+
+    public int getDegree(int vertexId) {
+        return offsets.get(vertexId + 1) - offsets.get(vertexId);
+    }
+
+    /**
+     * @return position of the first neighbor of vertexId in the adjacency array
+     */
+    public int getNeighborsStart(int vertexId) {
+        return offsets.get(vertexId);
+    }
+
+    public int getNeighborsEnd(int vertexId) {
+        return offsets.get(vertexId + 1);
+    }
+
+    public int getNeighbor(int position) {
+        return neighbors.get(position);
+    }
+
+    public int getEdgeLabel(int position) {
+        return edgeLabels.get(position);
+    }
+
+    /**
+     * Creates a private view over the adjacency array for bulk reads. Views are
+     * cheap but have their own position, so every reader thread should own one.
+     */
+    public IntBuffer newNeighborsView() {
+        return neighbors.duplicate();
+    }
+
+    /**
+     * Copies the neighbors of vertexId into dst using a view obtained from
+     * {@link #newNeighborsView()}.
+     *
+     * @return the degree of vertexId
+     */
+    public int copyNeighbors(IntBuffer view, int vertexId, int[] dst, int dstOffset) {
+        int start = offsets.get(vertexId);
+        int degree = offsets.get(vertexId + 1) - start;
+
+        view.position(start);
+        view.get(dst, dstOffset, degree);
+
+        return degree;
+    }
+
+    /**
+     * @return position of v in the adjacency list of u, or -1 if they are not
+     * adjacent
+     */
+    public int findNeighborPosition(int u, int v) {
+        int low = offsets.get(u);
+        int high = offsets.get(u + 1) - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midNeighbor = neighbors.get(mid);
+
+            if (midNeighbor < v) {
+                low = mid + 1;
+            } else if (midNeighbor > v) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return -1;
+    }
+
+    public boolean isNeighbor(int u, int v) {
+        long[] hubBits = hubAdjacency == null ? null : hubAdjacency.getBits(u);
+
+        if (hubBits != null) {
+            return HubAdjacency.contains(hubBits, v);
+        }
+
+        return findNeighborPosition(u, v) >= 0;
+    }
+
+    void setOffset(int vertexId, int offset) {
+        offsets.put(vertexId, offset);
+    }
+
+    void setVertexLabel(int vertexId, int label) {
+        vertexLabels.put(vertexId, label);
+    }
+
+    void setNeighbor(int position, int neighbor) {
+        neighbors.put(position, neighbor);
+    }
+
+    void setEdgeLabel(int position, int label) {
+        edgeLabels.put(position, label);
+    }
+
+    /**
+     * @return label index mapped next to this graph, or null if the graph was
+     * not loaded through {@link MainGraphStore}
+     */
+    public LabelIndex getLabelIndex() {
+        return labelIndex;
+    }
+
+    void setLabelIndex(LabelIndex labelIndex) {
+        this.labelIndex = labelIndex;
+    }
+
+    /**
+     * @return bitset adjacency of the hub vertices, or null if hubs are
+     * disabled
+     */
+    public HubAdjacency getHubAdjacency() {
+        return hubAdjacency;
+    }
+
+    void setHubAdjacency(HubAdjacency hubAdjacency) {
+        this.hubAdjacency = hubAdjacency;
+    }
+
+    @Override
+    public String toString() {
+        return "MainGraph{" +
+                "numVertices=" + numVertices +
+                ", numEdges=" + numEdges +
+                ", edgeLabelled=" + edgeLabelled +
+                '}';
+    }
+}
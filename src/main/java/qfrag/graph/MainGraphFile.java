@@ -0,0 +1,130 @@
+package qfrag.graph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * On-disk layout of the memory-mapped CSR store:
+ * <pre>
+ *   header   : magic, version, numVertices, numEdges, flags (padded to HEADER_SIZE)
+ *   offsets  : int[numVertices + 1]
+ *   labels   : int[numVertices]
+ *   neighbors: int[numEdges]
+ *   edgeLabels: int[numEdges] (only if FLAG_EDGE_LABELLED)
+ * </pre>
+ * Everything is written in native byte order since these files are local
+ * caches that never leave the machine that created them. Each section is
+ * mapped separately, so sections (not the whole file) are bounded by the 2GB
+ * limit of a single mapping.
+ */
+public final class MainGraphFile {
+    static final int MAGIC = 0x51435352; // "QCSR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int FLAG_EDGE_LABELLED = 1;
+
+    private MainGraphFile() {
+    }
+
+    /**
+     * Creates (or truncates) file and maps it read-write. The returned graph
+     * must be filled through its package-private setters before being shared.
+     */
+    public static MainGraph create(File file, int numVertices, int numEdges, boolean edgeLabelled)
+            throws IOException {
+        long fileSize = HEADER_SIZE + 4L * ((numVertices + 1L) + numVertices +
+                numEdges + (edgeLabelled ? numEdges : 0L));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.setLength(fileSize);
+
+            FileChannel channel = raf.getChannel();
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE)
+                    .order(ByteOrder.nativeOrder());
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(numVertices);
+            header.putInt(numEdges);
+            header.putInt(edgeLabelled ? FLAG_EDGE_LABELLED : 0);
+
+            return map(channel, FileChannel.MapMode.READ_WRITE, numVertices, numEdges, edgeLabelled);
+        }
+    }
+
+    /**
+     * Maps an existing store read-only.
+     *
+     * @throws IOException if the file is truncated or was written by an
+     * incompatible version or on a machine with a different byte order
+     */
+    public static MainGraph open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Truncated main graph file " + file);
+            }
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE)
+                    .order(ByteOrder.nativeOrder());
+
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a main graph file (or incompatible version): " + file);
+            }
+
+            int numVertices = header.getInt();
+            int numEdges = header.getInt();
+            boolean edgeLabelled = (header.getInt() & FLAG_EDGE_LABELLED) != 0;
+
+            long expectedSize = HEADER_SIZE + 4L * ((numVertices + 1L) + numVertices +
+                    numEdges + (edgeLabelled ? numEdges : 0L));
+
+            if (channel.size() != expectedSize) {
+                throw new IOException("Main graph file " + file + " has size " + channel.size() +
+                        ", expected " + expectedSize);
+            }
+
+            return map(channel, FileChannel.MapMode.READ_ONLY, numVertices, numEdges, edgeLabelled);
+        }
+    }
+
+    private static MainGraph map(FileChannel channel, FileChannel.MapMode mode,
+                                 int numVertices, int numEdges, boolean edgeLabelled) throws IOException {
+        long position = HEADER_SIZE;
+
+        IntBuffer offsets = mapInts(channel, mode, position, numVertices + 1L);
+        position += 4L * (numVertices + 1L);
+
+        IntBuffer vertexLabels = mapInts(channel, mode, position, numVertices);
+        position += 4L * numVertices;
+
+        IntBuffer neighbors = mapInts(channel, mode, position, numEdges);
+        position += 4L * numEdges;
+
+        IntBuffer edgeLabels = null;
+
+        if (edgeLabelled) {
+            edgeLabels = mapInts(channel, mode, position, numEdges);
+        }
+
+        return new MainGraph(numVertices, numEdges, edgeLabelled, offsets, vertexLabels, neighbors, edgeLabels);
+    }
+
+    static IntBuffer mapInts(FileChannel channel, FileChannel.MapMode mode, long position, long numInts)
+            throws IOException {
+        long numBytes = 4L * numInts;
+
+        if (numBytes > Integer.MAX_VALUE) {
+            throw new IOException("Main graph section of " + numBytes + " bytes exceeds the 2GB mapping limit");
+        }
+
+        return channel.map(mode, position, numBytes).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+}
@@ -0,0 +1,160 @@
+package qfrag.graph;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+import qfrag.conf.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-JVM registry of loaded main graphs.
+ * <p/>
+ * The first partition of an executor that asks for a graph loads it (from a
+ * {@link GraphSnapshot} or a text file, detected by content) into a
+ * memory-mapped CSR file under {@link Configuration#getMainGraphMmapDir()};
+ * every other partition (and every later superstep) gets the same read-only
+ * instance. The mapped file is named after the input path, length and
+ * modification time, so other JVMs on the same host reuse it as well. A
+ * {@link LabelIndex} is kept the same way in a file next to the CSR store,
+ * and the {@link HubAdjacency} bitsets are built once per JVM on the heap.
+ */
+public class MainGraphStore {
+    private static final Logger LOG = Logger.getLogger(MainGraphStore.class);
+
+    private static final Map<String, MainGraph> graphs = new HashMap<>();
+
+    private MainGraphStore() {
+    }
+
+    public static synchronized MainGraph get(Configuration config) {
+        String graphPath = config.getMainGraphPath();
+        MainGraph graph = graphs.get(graphPath);
+
+        if (graph == null) {
+            try {
+                graph = load(config, graphPath);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to load main graph from " + graphPath, e);
+            }
+
+            graphs.put(graphPath, graph);
+        }
+
+        return graph;
+    }
+
+    private static MainGraph load(Configuration config, String graphPath) throws IOException {
+        org.apache.hadoop.conf.Configuration hadoopConf = new org.apache.hadoop.conf.Configuration();
+        Path path = new Path(graphPath);
+        FileSystem fs = config.isMainGraphLocal() ? FileSystem.getLocal(hadoopConf) : path.getFileSystem(hadoopConf);
+        FileStatus status = fs.getFileStatus(path);
+
+        File mmapDir = new File(config.getMainGraphMmapDir());
+
+        if (!mmapDir.isDirectory() && !mmapDir.mkdirs()) {
+            throw new IOException("Unable to create main graph mmap dir " + mmapDir);
+        }
+
+        File storeFile = new File(mmapDir, storeFileName(graphPath, status));
+        MainGraph graph = loadGraph(config, fs, path, storeFile);
+
+        graph.setLabelIndex(loadLabelIndex(graph, new File(mmapDir, storeFile.getName() + ".lidx")));
+
+        int hubDegreeThreshold = config.getHubDegreeThreshold();
+
+        if (hubDegreeThreshold > 0) {
+            long start = System.currentTimeMillis();
+            HubAdjacency hubs = HubAdjacency.build(graph, hubDegreeThreshold,
+                    config.getHubMaxMemoryMb() * 1024L * 1024L);
+
+            LOG.info("Built " + hubs + " (" + (hubs.getMemoryBytes() >> 20) + " MB of " +
+                    config.getHubMaxMemoryMb() + " MB allowed) in " + (System.currentTimeMillis() - start) + " ms");
+
+            graph.setHubAdjacency(hubs);
+        }
+
+        return graph;
+    }
+
+    private static MainGraph loadGraph(Configuration config, FileSystem fs, Path path, File storeFile)
+            throws IOException {
+        if (storeFile.exists()) {
+            try {
+                MainGraph graph = MainGraphFile.open(storeFile);
+                LOG.info("Reusing memory-mapped " + graph + " from " + storeFile);
+                return graph;
+            } catch (IOException e) {
+                LOG.warn("Discarding unusable main graph file " + storeFile + ": " + e.getMessage());
+            }
+        }
+
+        // build under a private name and publish atomically, other JVMs on
+        // this host may be racing to build the same store
+        File tmpFile = File.createTempFile(storeFile.getName(), ".tmp", storeFile.getParentFile());
+
+        try {
+            if (GraphSnapshot.isSnapshot(fs, path)) {
+                GraphSnapshotReader.load(fs, path, tmpFile);
+            } else {
+                TextGraphLoader.load(fs, path, config.isGraphEdgeLabelled(), tmpFile,
+                        config.getNumComputeThreads());
+            }
+
+            Files.move(tmpFile.toPath(), storeFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+
+        return MainGraphFile.open(storeFile);
+    }
+
+    private static LabelIndex loadLabelIndex(MainGraph graph, File indexFile) throws IOException {
+        if (indexFile.exists()) {
+            try {
+                LabelIndex index = LabelIndex.open(indexFile);
+
+                if (index.getNumberVertices() == graph.getNumberVertices()) {
+                    LOG.info("Reusing memory-mapped " + index + " from " + indexFile);
+                    return index;
+                }
+
+                LOG.warn("Discarding label index file " + indexFile + " built for another graph");
+            } catch (IOException e) {
+                LOG.warn("Discarding unusable label index file " + indexFile + ": " + e.getMessage());
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        File tmpFile = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getParentFile());
+
+        try {
+            LabelIndex.create(tmpFile, graph);
+
+            Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+
+        LabelIndex index = LabelIndex.open(indexFile);
+        LOG.info("Built " + index + " in " + (System.currentTimeMillis() - start) + " ms");
+
+        return index;
+    }
+
+    private static String storeFileName(String graphPath, FileStatus status) {
+        long hash = graphPath.hashCode();
+        hash = 31 * hash + status.getLen();
+        hash = 31 * hash + status.getModificationTime();
+
+        return "qfrag-graph-" + Long.toHexString(hash) + ".csr";
+    }
+}
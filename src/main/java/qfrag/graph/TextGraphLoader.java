@@ -0,0 +1,421 @@
+package qfrag.graph;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+import qfrag.utils.IntArrayList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads a graph in the Arabesque text format into a memory-mapped CSR store.
+ * Each line describes one vertex:
+ * <pre>
+ *   vertexId vertexLabel neighbor1 neighbor2 ...
+ * </pre>
+ * or, for edge labelled graphs:
+ * <pre>
+ *   vertexId vertexLabel neighbor1 edgeLabel1 neighbor2 edgeLabel2 ...
+ * </pre>
+ * The file is split in byte ranges, one per thread. Every range is tokenized
+ * at the byte level into a flat int array (a line belongs to the range that
+ * holds its first byte), and the per-range results are then merged into the
+ * CSR arrays in parallel.
+ */
+public class TextGraphLoader {
+    private static final Logger LOG = Logger.getLogger(TextGraphLoader.class);
+
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+
+    public static MainGraph load(FileSystem fs, Path path, boolean edgeLabelled, File storeFile)
+            throws IOException {
+        return load(fs, path, edgeLabelled, storeFile, 1);
+    }
+
+    public static MainGraph load(FileSystem fs, Path path, boolean edgeLabelled, File storeFile, int numThreads)
+            throws IOException {
+        long fileLength = fs.getFileStatus(path).getLen();
+        // ranges smaller than the read buffer only add seeks
+        numThreads = (int) Math.max(1, Math.min(numThreads, fileLength / READ_BUFFER_SIZE + 1));
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+
+        try {
+            long start = System.nanoTime();
+
+            List<RangeParser> parsers = new ArrayList<>(numThreads);
+            long rangeSize = (fileLength + numThreads - 1) / numThreads;
+
+            for (int i = 0; i < numThreads; ++i) {
+                long rangeStart = Math.min(fileLength, i * rangeSize);
+                long rangeEnd = Math.min(fileLength, rangeStart + rangeSize);
+                parsers.add(new RangeParser(fs, path, rangeStart, rangeEnd, edgeLabelled));
+            }
+
+            invokeAll(executor, parsers);
+
+            long parseEnd = System.nanoTime();
+
+            MainGraph graph = merge(executor, parsers, edgeLabelled, storeFile, path);
+
+            long mergeEnd = System.nanoTime();
+
+            long readNanos = 0;
+
+            for (RangeParser parser : parsers) {
+                readNanos = Math.max(readNanos, parser.readNanos);
+            }
+
+            LOG.info("Loaded " + graph + " from " + path + " with " + numThreads + " threads in " +
+                    (mergeEnd - start) / 1000000 + " ms (read=" + readNanos / 1000000 +
+                    " ms, parse=" + Math.max(0, parseEnd - start - readNanos) / 1000000 +
+                    " ms, merge=" + (mergeEnd - parseEnd) / 1000000 + " ms)");
+
+            return graph;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static MainGraph merge(ExecutorService executor, List<RangeParser> parsers,
+                                   boolean edgeLabelled, File storeFile, Path path) throws IOException {
+        int maxVertexId = -1;
+        long numLines = 0;
+        long numEdges = 0;
+
+        for (RangeParser parser : parsers) {
+            maxVertexId = Math.max(maxVertexId, parser.maxVertexId);
+            numLines += parser.numLines;
+            numEdges += parser.numEdges;
+        }
+
+        if (numEdges > Integer.MAX_VALUE) {
+            throw new IOException("Graph " + path + " has " + numEdges + " adjacency entries, more than supported");
+        }
+
+        int numVertices = maxVertexId + 1;
+        final int[] offsets = new int[numVertices + 1];
+
+        List<Callable<Void>> tasks = new ArrayList<>(parsers.size());
+
+        for (final RangeParser parser : parsers) {
+            tasks.add(() -> {
+                parser.collectDegrees(offsets);
+                return null;
+            });
+        }
+
+        invokeAll(executor, tasks);
+
+        // offsets[v + 1] holds degree(v) + 1 for every vertex with a line, 0 otherwise
+        long numDefinedVertices = 0;
+
+        for (int v = 0; v < numVertices; ++v) {
+            if (offsets[v + 1] > 0) {
+                ++numDefinedVertices;
+                offsets[v + 1] += offsets[v] - 1;
+            } else {
+                offsets[v + 1] = offsets[v];
+            }
+        }
+
+        if (numDefinedVertices != numLines) {
+            throw new IOException("Graph " + path + " defines some vertices more than once");
+        }
+
+        final MainGraph graph = MainGraphFile.create(storeFile, numVertices, (int) numEdges, edgeLabelled);
+
+        for (int v = 1; v <= numVertices; ++v) {
+            graph.setOffset(v, offsets[v]);
+        }
+
+        tasks.clear();
+
+        for (final RangeParser parser : parsers) {
+            tasks.add(() -> {
+                parser.fill(graph, offsets);
+                return null;
+            });
+        }
+
+        invokeAll(executor, tasks);
+
+        return graph;
+    }
+
+    private static <T> void invokeAll(ExecutorService executor, List<? extends Callable<T>> tasks)
+            throws IOException {
+        try {
+            for (Future<T> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading graph", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw new RuntimeException("Error loading graph", e.getCause());
+        }
+    }
+
+    /**
+     * Tokenizes the lines that start inside [rangeStart, rangeEnd) into a flat
+     * record array: vertexId, label, degree, then degree neighbors (each
+     * followed by its edge label in edge labelled graphs).
+     */
+    private static class RangeParser implements Callable<Void> {
+        private final FileSystem fs;
+        private final Path path;
+        private final long rangeStart;
+        private final long rangeEnd;
+        private final boolean edgeLabelled;
+
+        private final IntArrayList records = new IntArrayList(1 << 16);
+        private int maxVertexId = -1;
+        private long numLines = 0;
+        private long numEdges = 0;
+        private long readNanos = 0;
+
+        private FSDataInputStream in;
+        private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+        private int bufferPosition = 0;
+        private int bufferLimit = 0;
+        // file offset of buffer[0]
+        private long bufferOffset;
+
+        RangeParser(FileSystem fs, Path path, long rangeStart, long rangeEnd, boolean edgeLabelled) {
+            this.fs = fs;
+            this.path = path;
+            this.rangeStart = rangeStart;
+            this.rangeEnd = rangeEnd;
+            this.edgeLabelled = edgeLabelled;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            if (rangeStart >= rangeEnd) {
+                return null;
+            }
+
+            try (FSDataInputStream stream = fs.open(path)) {
+                in = stream;
+
+                // a line belongs to the range holding its first byte, so unless we
+                // start right after a newline the partial first line is skipped
+                long seekPosition = rangeStart == 0 ? 0 : rangeStart - 1;
+                in.seek(seekPosition);
+                bufferOffset = seekPosition;
+
+                if (rangeStart > 0) {
+                    skipLine();
+                }
+
+                while (bufferOffset + bufferPosition < rangeEnd && fillIfNeeded()) {
+                    parseLine();
+                }
+            }
+
+            return null;
+        }
+
+        private void parseLine() throws IOException {
+            int b = skipSpaces();
+
+            if (b == '\n') {
+                ++bufferPosition;
+                return;
+            }
+
+            if (b == '#' || b < 0) {
+                skipLine();
+                return;
+            }
+
+            int vertexId = parseInt();
+            int label = parseInt();
+
+            records.add(vertexId);
+            records.add(label);
+            int degreePosition = records.size();
+            records.add(0);
+
+            int degree = 0;
+
+            while (true) {
+                b = skipSpaces();
+
+                if (b < 0 || b == '\n') {
+                    break;
+                }
+
+                records.add(parseInt());
+
+                if (edgeLabelled) {
+                    records.add(parseInt());
+                }
+
+                ++degree;
+            }
+
+            records.set(degreePosition, degree);
+
+            maxVertexId = Math.max(maxVertexId, vertexId);
+            numEdges += degree;
+            ++numLines;
+        }
+
+        /**
+         * @return the next non-blank byte (without consuming it), '\n' or -1 at
+         * the end of the file
+         */
+        private int skipSpaces() throws IOException {
+            while (fillIfNeeded()) {
+                byte b = buffer[bufferPosition];
+
+                if (b == ' ' || b == '\t' || b == '\r') {
+                    ++bufferPosition;
+                } else {
+                    return b;
+                }
+            }
+
+            return -1;
+        }
+
+        private void skipLine() throws IOException {
+            while (fillIfNeeded()) {
+                if (buffer[bufferPosition++] == '\n') {
+                    return;
+                }
+            }
+        }
+
+        private int parseInt() throws IOException {
+            if (skipSpaces() < 0) {
+                throw new IOException("Unexpected end of file in " + path);
+            }
+
+            boolean negative = false;
+
+            if (buffer[bufferPosition] == '-') {
+                negative = true;
+                ++bufferPosition;
+            }
+
+            int value = 0;
+            int numDigits = 0;
+
+            while (fillIfNeeded()) {
+                int digit = buffer[bufferPosition] - '0';
+
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+
+                value = value * 10 + digit;
+                ++bufferPosition;
+                ++numDigits;
+            }
+
+            if (numDigits == 0) {
+                throw new IOException("Malformed number at byte " + (bufferOffset + bufferPosition) + " of " + path);
+            }
+
+            return negative ? -value : value;
+        }
+
+        private boolean fillIfNeeded() throws IOException {
+            if (bufferPosition < bufferLimit) {
+                return true;
+            }
+
+            long start = System.nanoTime();
+
+            bufferOffset += bufferLimit;
+            bufferPosition = 0;
+            bufferLimit = 0;
+
+            int read = in.read(buffer, 0, buffer.length);
+
+            readNanos += System.nanoTime() - start;
+
+            if (read <= 0) {
+                return false;
+            }
+
+            bufferLimit = read;
+
+            return true;
+        }
+
+        void collectDegrees(int[] offsets) {
+            int[] elements = records.elements();
+            int stride = edgeLabelled ? 2 : 1;
+            int i = 0;
+
+            while (i < records.size()) {
+                int vertexId = elements[i];
+                int degree = elements[i + 2];
+
+                offsets[vertexId + 1] = degree + 1;
+                i += 3 + stride * degree;
+            }
+        }
+
+        void fill(MainGraph graph, int[] offsets) {
+            int[] elements = records.elements();
+            int stride = edgeLabelled ? 2 : 1;
+            long[] scratch = new long[16];
+            int i = 0;
+
+            while (i < records.size()) {
+                int vertexId = elements[i];
+                int degree = elements[i + 2];
+                int adjacencyStart = i + 3;
+
+                graph.setVertexLabel(vertexId, elements[i + 1]);
+
+                if (scratch.length < degree) {
+                    scratch = new long[degree];
+                }
+
+                // pack (neighbor, edgeLabel) so that sorting by neighbor keeps labels attached
+                for (int j = 0; j < degree; ++j) {
+                    int k = adjacencyStart + stride * j;
+                    long edgeLabel = edgeLabelled ? elements[k + 1] & 0xffffffffL : 0;
+                    scratch[j] = ((long) elements[k] << 32) | edgeLabel;
+                }
+
+                Arrays.sort(scratch, 0, degree);
+
+                int position = offsets[vertexId];
+
+                for (int j = 0; j < degree; ++j) {
+                    graph.setNeighbor(position + j, (int) (scratch[j] >>> 32));
+
+                    if (edgeLabelled) {
+                        graph.setEdgeLabel(position + j, (int) scratch[j]);
+                    }
+                }
+
+                i = adjacencyStart + stride * degree;
+            }
+
+            // the records are no longer needed once written to the store
+            records.clear();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package qfrag.query;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import qfrag.utils.IntArrayList;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Small, heap-resident pattern graph searched for in the main graph. It is
+ * read on the master, in the same text format as the main graph, and
+ * broadcast to every engine.
+ */
+public class QueryGraph implements Serializable {
+    private final int[] vertexLabels;
+    private final int[][] neighbors;
+    private final int[][] edgeLabels;
+
+    public QueryGraph(int[] vertexLabels, int[][] neighbors, int[][] edgeLabels) {
+        this.vertexLabels = vertexLabels;
+        this.neighbors = neighbors;
+        this.edgeLabels = edgeLabels;
+    }
+
+    public static QueryGraph load(FileSystem fs, Path path, boolean edgeLabelled) throws IOException {
+        IntArrayList ids = new IntArrayList();
+        IntArrayList labels = new IntArrayList();
+        IntArrayList[] adjacency = new IntArrayList[0];
+        IntArrayList[] adjacencyLabels = new IntArrayList[0];
+        int maxVertexId = -1;
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(fs.open(path), StandardCharsets.UTF_8))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] tokens = line.split("\\s+");
+                int vertexId = Integer.parseInt(tokens[0]);
+
+                if (vertexId >= adjacency.length) {
+                    int newLength = Math.max(vertexId + 1, adjacency.length * 2);
+                    adjacency = Arrays.copyOf(adjacency, newLength);
+                    adjacencyLabels = Arrays.copyOf(adjacencyLabels, newLength);
+                }
+
+                if (adjacency[vertexId] != null) {
+                    throw new IOException("Query vertex " + vertexId + " is defined more than once in " + path);
+                }
+
+                ids.add(vertexId);
+                labels.add(Integer.parseInt(tokens[1]));
+                adjacency[vertexId] = new IntArrayList();
+                adjacencyLabels[vertexId] = new IntArrayList();
+                maxVertexId = Math.max(maxVertexId, vertexId);
+
+                for (int i = 2; i < tokens.length; ++i) {
+                    adjacency[vertexId].add(Integer.parseInt(tokens[i]));
+                    adjacencyLabels[vertexId].add(edgeLabelled ? Integer.parseInt(tokens[++i]) : 0);
+                }
+            }
+        }
+
+        int numVertices = maxVertexId + 1;
+
+        if (ids.size() != numVertices) {
+            throw new IOException("Query " + path + " must define every vertex in 0.." + maxVertexId + " exactly once");
+        }
+
+        int[] vertexLabels = new int[numVertices];
+        int[][] neighbors = new int[numVertices][];
+        int[][] edgeLabels = edgeLabelled ? new int[numVertices][] : null;
+
+        for (int i = 0; i < numVertices; ++i) {
+            vertexLabels[ids.get(i)] = labels.get(i);
+        }
+
+        for (int u = 0; u < numVertices; ++u) {
+            neighbors[u] = adjacency[u].toArray();
+
+            if (edgeLabelled) {
+                edgeLabels[u] = adjacencyLabels[u].toArray();
+            }
+        }
+
+        QueryGraph query = new QueryGraph(vertexLabels, neighbors, edgeLabels);
+
+        for (int u = 0; u < numVertices; ++u) {
+            for (int w : neighbors[u]) {
+                if (!query.isNeighbor(w, u)) {
+                    throw new IOException("Query " + path + " is not symmetric: " + u + " -> " + w);
+                }
+            }
+        }
+
+        return query;
+    }
+
+    public int getNumberVertices() {
+        return vertexLabels.length;
+    }
+
+    public int getVertexLabel(int u) {
+        return vertexLabels[u];
+    }
+
+    public int getDegree(int u) {
+        return neighbors[u].length;
+    }
+
+    public int[] getNeighbors(int u) {
+        return neighbors[u];
+    }
+
+    public boolean isEdgeLabelled() {
+        return edgeLabels != null;
+    }
+
+    public boolean isNeighbor(int u, int w) {
+        return indexOfNeighbor(u, w) >= 0;
+    }
+
+    /**
+     * @return label of edge (u, w); only meaningful if both are adjacent and
+     * the query is edge labelled
+     */
+    public int getEdgeLabel(int u, int w) {
+        return edgeLabels[u][indexOfNeighbor(u, w)];
+    }
+
+    private int indexOfNeighbor(int u, int w) {
+        int[] uNeighbors = neighbors[u];
+
+        for (int i = 0; i < uNeighbors.length; ++i) {
+            if (uNeighbors[i] == w) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder strBuilder = new StringBuilder("QueryGraph{");
+
+        for (int u = 0; u < vertexLabels.length; ++u) {
+            strBuilder.append(u > 0 ? ", " : "");
+            strBuilder.append(u).append('(').append(vertexLabels[u]).append(")->");
+            strBuilder.append(Arrays.toString(neighbors[u]));
+        }
+
+        return strBuilder.append('}').toString();
+    }
+}
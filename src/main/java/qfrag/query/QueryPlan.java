@@ -0,0 +1,157 @@
+package qfrag.query;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Matching order of a query: position i of the plan is matched at depth i of
+ * the search tree. For every position the plan precomputes what the matcher
+ * needs in its inner loop: the label and minimum degree of the query vertex,
+ * and the earlier positions it must be adjacent to (its backward neighbors).
+ */
+public class QueryPlan implements Serializable {
+    private final QueryGraph query;
+    private final int[] order;
+    private final int[] labels;
+    private final int[] degrees;
+    private final int[][] backwardPositions;
+    private final int[][] backwardEdgeLabels;
+    // expected number of partial matches per depth, null if not planned with statistics
+    private double[] estimatedCardinalities;
+
+    public QueryPlan(QueryGraph query, int[] order) {
+        int numVertices = query.getNumberVertices();
+
+        if (order.length != numVertices) {
+            throw new IllegalArgumentException("Matching order " + Arrays.toString(order) +
+                    " does not cover the " + numVertices + " query vertices");
+        }
+
+        this.query = query;
+        this.order = order;
+        this.labels = new int[numVertices];
+        this.degrees = new int[numVertices];
+        this.backwardPositions = new int[numVertices][];
+        this.backwardEdgeLabels = new int[numVertices][];
+
+        for (int position = 0; position < numVertices; ++position) {
+            int u = order[position];
+            labels[position] = query.getVertexLabel(u);
+            degrees[position] = query.getDegree(u);
+
+            int numBackward = 0;
+            int[] backward = new int[position];
+            int[] backwardLabels = new int[position];
+
+            for (int previous = 0; previous < position; ++previous) {
+                if (query.isNeighbor(u, order[previous])) {
+                    backward[numBackward] = previous;
+                    backwardLabels[numBackward] = query.isEdgeLabelled() ?
+                            query.getEdgeLabel(u, order[previous]) : 0;
+                    ++numBackward;
+                }
+            }
+
+            if (position > 0 && numBackward == 0) {
+                throw new IllegalArgumentException("Matching order " + Arrays.toString(order) +
+                        " is not connected at position " + position);
+            }
+
+            backwardPositions[position] = Arrays.copyOf(backward, numBackward);
+            backwardEdgeLabels[position] = Arrays.copyOf(backwardLabels, numBackward);
+        }
+    }
+
+    public QueryPlan(QueryGraph query, int[] order, double[] estimatedCardinalities) {
+        this(query, order);
+        this.estimatedCardinalities = estimatedCardinalities;
+    }
+
+    public QueryGraph getQuery() {
+        return query;
+    }
+
+    public int getNumberPositions() {
+        return order.length;
+    }
+
+    public int getQueryVertex(int position) {
+        return order[position];
+    }
+
+    public int getLabel(int position) {
+        return labels[position];
+    }
+
+    public int getMinDegree(int position) {
+        return degrees[position];
+    }
+
+    public int[] getBackwardPositions(int position) {
+        return backwardPositions[position];
+    }
+
+    public int[] getBackwardEdgeLabels(int position) {
+        return backwardEdgeLabels[position];
+    }
+
+    /**
+     * @return expected number of search-tree nodes (sum of the expected
+     * partial matches at every depth), or NaN if the plan has no estimates
+     */
+    public double getEstimatedCost() {
+        if (estimatedCardinalities == null) {
+            return Double.NaN;
+        }
+
+        double cost = 0;
+
+        for (double cardinality : estimatedCardinalities) {
+            cost += cardinality;
+        }
+
+        return cost;
+    }
+
+    /**
+     * @return a human readable, one line per depth description of the plan
+     */
+    public String explain() {
+        StringBuilder strBuilder = new StringBuilder();
+
+        strBuilder.append("Query plan (estimated cost ").append(String.format("%.4g", getEstimatedCost()))
+                .append(")\n");
+
+        for (int position = 0; position < order.length; ++position) {
+            strBuilder.append("  ").append(position).append(": query vertex ").append(order[position]);
+            strBuilder.append(" label=").append(labels[position]);
+            strBuilder.append(" minDegree=").append(degrees[position]);
+            strBuilder.append(" backward=[");
+
+            for (int i = 0; i < backwardPositions[position].length; ++i) {
+                strBuilder.append(i > 0 ? ", " : "").append(order[backwardPositions[position][i]]);
+            }
+
+            strBuilder.append(']');
+
+            if (estimatedCardinalities != null) {
+                strBuilder.append(" estimatedMatches=")
+                        .append(String.format("%.4g", estimatedCardinalities[position]));
+            }
+
+            strBuilder.append('\n');
+        }
+
+        return strBuilder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "QueryPlan{" +
+                "order=" + Arrays.toString(order) +
+                ", labels=" + Arrays.toString(labels) +
+                ", backwardPositions=" + Arrays.deepToString(backwardPositions) +
+                ", estimatedCost=" + getEstimatedCost() +
+                '}';
+    }
+}
@@ -0,0 +1,130 @@
+package qfrag.query;
+
+import qfrag.graph.GraphStatistics;
+
+/**
+ * Chooses the matching order of a query from main graph statistics.
+ * <p/>
+ * The expected number of partial matches at depth 0 is the number of data
+ * vertices with the root's label and enough neighbors. Extending a partial
+ * match with query vertex u multiplies it by the expected neighbors with u's
+ * label of the most selective already-matched neighbor (the pivot), the share
+ * of those vertices with enough degree, and the probability of each remaining
+ * backward edge. Starting from every query vertex in turn, the planner
+ * greedily extends with the vertex with the smallest factor and keeps the
+ * order whose partial matches sum to the lowest total: selective vertices
+ * come first and densely connected vertices early, since every backward edge
+ * prunes.
+ */
+public class QueryPlanner {
+    private final GraphStatistics statistics;
+
+    public QueryPlanner(GraphStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    public QueryPlan plan(QueryGraph query) {
+        QueryPlan bestPlan = null;
+
+        for (int root = 0; root < query.getNumberVertices(); ++root) {
+            QueryPlan plan = planFrom(query, root);
+
+            if (bestPlan == null || plan.getEstimatedCost() < bestPlan.getEstimatedCost()) {
+                bestPlan = plan;
+            }
+        }
+
+        return bestPlan;
+    }
+
+    private QueryPlan planFrom(QueryGraph query, int root) {
+        int numVertices = query.getNumberVertices();
+        int[] order = new int[numVertices];
+        boolean[] ordered = new boolean[numVertices];
+        double[] cardinalities = new double[numVertices];
+
+        order[0] = root;
+        ordered[root] = true;
+        cardinalities[0] = statistics.getLabelCountWithMinDegree(query.getVertexLabel(root), query.getDegree(root));
+
+        for (int position = 1; position < numVertices; ++position) {
+            int best = -1;
+            double bestFactor = Double.MAX_VALUE;
+            int bestNumBackward = 0;
+
+            for (int u = 0; u < numVertices; ++u) {
+                if (ordered[u]) {
+                    continue;
+                }
+
+                int numBackward = 0;
+
+                for (int w : query.getNeighbors(u)) {
+                    if (ordered[w]) {
+                        ++numBackward;
+                    }
+                }
+
+                if (numBackward == 0) {
+                    continue;
+                }
+
+                double factor = extensionFactor(query, ordered, u);
+
+                if (best == -1 || factor < bestFactor ||
+                        (factor == bestFactor && numBackward > bestNumBackward)) {
+                    best = u;
+                    bestFactor = factor;
+                    bestNumBackward = numBackward;
+                }
+            }
+
+            if (best == -1) {
+                throw new IllegalArgumentException("Query is not connected: " + query);
+            }
+
+            order[position] = best;
+            ordered[best] = true;
+            cardinalities[position] = cardinalities[position - 1] * bestFactor;
+        }
+
+        return new QueryPlan(query, order, cardinalities);
+    }
+
+    /**
+     * @return expected number of candidates for u per partial match of the
+     * already ordered vertices
+     */
+    private double extensionFactor(QueryGraph query, boolean[] ordered, int u) {
+        int label = query.getVertexLabel(u);
+        double pivotNeighbors = Double.MAX_VALUE;
+        double edgeProbabilities = 1;
+        double pivotProbability = 1;
+
+        for (int w : query.getNeighbors(u)) {
+            if (!ordered[w]) {
+                continue;
+            }
+
+            int neighborLabel = query.getVertexLabel(w);
+            double expectedNeighbors = statistics.getExpectedNeighbors(neighborLabel, label);
+            double edgeProbability = statistics.getEdgeProbability(neighborLabel, label);
+
+            edgeProbabilities *= edgeProbability;
+
+            if (expectedNeighbors < pivotNeighbors) {
+                pivotNeighbors = expectedNeighbors;
+                pivotProbability = edgeProbability;
+            }
+        }
+
+        // the pivot edge is already accounted for by its expected neighbors
+        double otherEdgesProbability = pivotProbability == 0 ? 0 : edgeProbabilities / pivotProbability;
+
+        long labelCount = statistics.getLabelCount(label);
+        double degreeSelectivity = labelCount == 0 ? 0 :
+                statistics.getLabelCountWithMinDegree(label, query.getDegree(u)) / labelCount;
+
+        return pivotNeighbors * degreeSelectivity * otherEdgesProbability;
+    }
+}
@@ -0,0 +1,65 @@
+package qfrag.query;
+
+import qfrag.graph.MainGraph;
+
+/**
+ * Estimates the size of the search subtree below each root candidate.
+ * <p/>
+ * The estimate looks two levels deep: every neighbor of the root that can
+ * take the second plan position contributes its degree (the fan-out it opens
+ * at the third position), scaled by the share of vertices with the label of
+ * the third position. Absolute values are meaningless, only the ratios
+ * between roots are used, which is what balancing partitions needs.
+ */
+public class RootCostEstimator {
+    private final MainGraph graph;
+    private final QueryPlan plan;
+    private final double thirdLevelSelectivity;
+
+    public RootCostEstimator(MainGraph graph, QueryPlan plan) {
+        this.graph = graph;
+        this.plan = plan;
+        this.thirdLevelSelectivity = plan.getNumberPositions() > 2 ?
+                labelShare(graph, plan.getLabel(2)) : 0;
+    }
+
+    public double estimate(int root) {
+        if (plan.getNumberPositions() == 1) {
+            return 1;
+        }
+
+        int label = plan.getLabel(1);
+        int minDegree = plan.getMinDegree(1);
+        int end = graph.getNeighborsEnd(root);
+        long numChildren = 0;
+        long numGrandChildren = 0;
+
+        for (int position = graph.getNeighborsStart(root); position < end; ++position) {
+            int neighbor = graph.getNeighbor(position);
+
+            if (graph.getVertexLabel(neighbor) == label) {
+                int degree = graph.getDegree(neighbor);
+
+                if (degree >= minDegree) {
+                    ++numChildren;
+                    numGrandChildren += degree;
+                }
+            }
+        }
+
+        return 1 + numChildren + thirdLevelSelectivity * numGrandChildren;
+    }
+
+    private static double labelShare(MainGraph graph, int label) {
+        int numVertices = graph.getNumberVertices();
+        long count = 0;
+
+        for (int v = 0; v < numVertices; ++v) {
+            if (graph.getVertexLabel(v) == label) {
+                ++count;
+            }
+        }
+
+        return numVertices == 0 ? 0 : (double) count / numVertices;
+    }
+}
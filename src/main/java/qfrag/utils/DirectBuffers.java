@@ -0,0 +1,80 @@
+package qfrag.utils;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Allocation and deterministic release of direct buffers, whose native memory
+ * would otherwise only be returned once the GC collects the buffer object.
+ * <p/>
+ * There is no supported API to free a direct buffer, so the JDK's own hook is
+ * looked up reflectively once: Unsafe.invokeCleaner on JDK 9+, the buffer's
+ * cleaner on JDK 8. If neither is available, free does nothing and the
+ * memory is returned by the GC as usual.
+ */
+public class DirectBuffers {
+    private static final Logger LOG = Logger.getLogger(DirectBuffers.class);
+
+    private static final Freer FREER = findFreer();
+
+    private DirectBuffers() {
+    }
+
+    public static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Frees the native memory of buffer right away. The buffer (and every
+     * view of it) must not be used afterwards.
+     */
+    public static void free(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || FREER == null) {
+            return;
+        }
+
+        try {
+            FREER.free(buffer);
+        } catch (Exception e) {
+            // views have no cleaner of their own, their memory goes with the GC
+            LOG.debug("Unable to free direct buffer", e);
+        }
+    }
+
+    private static Freer findFreer() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        } catch (Exception | LinkageError e) {
+            // not JDK 9+, try the JDK 8 cleaner
+        }
+
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+
+            return buffer -> {
+                Object bufferCleaner = cleaner.invoke(buffer);
+
+                if (bufferCleaner != null) {
+                    clean.invoke(bufferCleaner);
+                }
+            };
+        } catch (Exception | LinkageError e) {
+            LOG.warn("Direct buffers cannot be freed explicitly, leaving them to the GC", e);
+            return null;
+        }
+    }
+
+    private interface Freer {
+        void free(ByteBuffer buffer) throws Exception;
+    }
+}
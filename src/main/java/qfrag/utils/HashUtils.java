@@ -0,0 +1,112 @@
+package qfrag.utils;
+
+/**
+ * Hash functions for open-addressing tables over serialized data.
+ */
+public class HashUtils {
+    private HashUtils() {
+    }
+
+    /**
+     * MurmurHash3 finalizer, spreads every input bit over the whole word.
+     */
+    public static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * MurmurHash3 (x86, 32 bit) of bytes[offset..offset+length).
+     */
+    public static int hash(byte[] bytes, int offset, int length) {
+        int h = length;
+        int end = offset + (length & ~3);
+
+        for (int i = offset; i < end; i += 4) {
+            int k = (bytes[i] & 0xff) | (bytes[i + 1] & 0xff) << 8 |
+                    (bytes[i + 2] & 0xff) << 16 | (bytes[i + 3] & 0xff) << 24;
+
+            k *= 0xcc9e2d51;
+            k = Integer.rotateLeft(k, 15);
+            k *= 0x1b873593;
+
+            h ^= k;
+            h = Integer.rotateLeft(h, 13);
+            h = h * 5 + 0xe6546b64;
+        }
+
+        int k = 0;
+
+        switch (length & 3) {
+            case 3:
+                k ^= (bytes[end + 2] & 0xff) << 16;
+            case 2:
+                k ^= (bytes[end + 1] & 0xff) << 8;
+            case 1:
+                k ^= bytes[end] & 0xff;
+                k *= 0xcc9e2d51;
+                k = Integer.rotateLeft(k, 15);
+                k *= 0x1b873593;
+                h ^= k;
+        }
+
+        return mix(h ^ length);
+    }
+
+    /**
+     * MurmurHash3 64 bit finalizer.
+     */
+    public static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * 64 bit hash of bytes[offset..offset+length), one lane of MurmurHash3
+     * (x64) over little-endian words, for sketches that take their bits from
+     * the whole word.
+     */
+    public static long hash64(byte[] bytes, int offset, int length) {
+        long h = length;
+        int end = offset + (length & ~7);
+
+        for (int i = offset; i < end; i += 8) {
+            long k = 0;
+
+            for (int b = 7; b >= 0; --b) {
+                k = (k << 8) | (bytes[i + b] & 0xff);
+            }
+
+            k *= 0x87c37b91114253d5L;
+            k = Long.rotateLeft(k, 31);
+            k *= 0x4cf5ad432745937fL;
+
+            h ^= k;
+            h = Long.rotateLeft(h, 27);
+            h = h * 5 + 0x52dce729;
+        }
+
+        long k = 0;
+
+        for (int b = (length & 7) - 1; b >= 0; --b) {
+            k = (k << 8) | (bytes[end + b] & 0xff);
+        }
+
+        if ((length & 7) != 0) {
+            k *= 0x87c37b91114253d5L;
+            k = Long.rotateLeft(k, 31);
+            k *= 0x4cf5ad432745937fL;
+            h ^= k;
+        }
+
+        return mix(h ^ length);
+    }
+}
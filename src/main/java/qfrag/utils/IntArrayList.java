@@ -0,0 +1,81 @@
+package qfrag.utils;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints. Exposes its backing array so hot loops can
+ * read it without boxing or bounds-checked accessors.
+ */
+public class IntArrayList {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int[] elements;
+    private int size;
+
+    public IntArrayList() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public IntArrayList(int capacity) {
+        elements = new int[Math.max(capacity, 1)];
+        size = 0;
+    }
+
+    public void add(int element) {
+        if (size == elements.length) {
+            ensureCapacity(size + 1);
+        }
+
+        elements[size++] = element;
+    }
+
+    public int get(int index) {
+        return elements[index];
+    }
+
+    public void set(int index, int element) {
+        elements[index] = element;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int[] elements() {
+        return elements;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > elements.length) {
+            int newCapacity = Math.max(capacity, elements.length + (elements.length >> 1));
+            elements = Arrays.copyOf(elements, newCapacity);
+        }
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(elements, size);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder strBuilder = new StringBuilder("[");
+
+        for (int i = 0; i < size; ++i) {
+            if (i > 0) {
+                strBuilder.append(", ");
+            }
+
+            strBuilder.append(elements[i]);
+        }
+
+        return strBuilder.append(']').toString();
+    }
+}
@@ -0,0 +1,41 @@
+package qfrag.utils;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+import qfrag.aggregation.*;
+import qfrag.conf.SparkConfiguration;
+
+/**
+ * Registers the classes QFrag ships through Spark with Kryo.
+ * <p/>
+ * Aggregation storages, of any class, use {@link AggregationStorageSerializer}.
+ * Classes relying on transient fields or custom Java serialization keep Java
+ * serialization, which Kryo's field serializer would silently break.
+ */
+public class KryoRegistrator implements org.apache.spark.serializer.KryoRegistrator {
+    @Override
+    public void registerClasses(Kryo kryo) {
+        AggregationStorageSerializer storageSerializer = new AggregationStorageSerializer();
+
+        kryo.addDefaultSerializer(AggregationStorage.class, storageSerializer);
+
+        kryo.register(AggregationStorage.class, storageSerializer);
+        kryo.register(ConcurrentAggregationStorage.class, storageSerializer);
+        kryo.register(SerializedKeyAggregationStorage.class, storageSerializer);
+        kryo.register(OffHeapAggregationStorage.class, storageSerializer);
+        kryo.register(SpillingAggregationStorage.class, storageSerializer);
+        kryo.register(TopKAggregationStorage.class, storageSerializer);
+        kryo.register(HyperLogLogAggregationStorage.class, storageSerializer);
+        kryo.register(CountMinAggregationStorage.class, storageSerializer);
+        kryo.register(LongLongAggregationStorage.class, storageSerializer);
+        kryo.register(IntLongAggregationStorage.class, storageSerializer);
+        kryo.register(LongDoubleAggregationStorage.class, storageSerializer);
+
+        JavaSerializer javaSerializer = new JavaSerializer();
+
+        kryo.register(SparkConfiguration.class, javaSerializer);
+        kryo.register(SerializableConfiguration.class, javaSerializer);
+        kryo.register(AggregationStorageMetadata.class, javaSerializer);
+        kryo.register(AggregationsContext.class, javaSerializer);
+    }
+}
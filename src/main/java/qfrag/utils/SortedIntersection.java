@@ -0,0 +1,190 @@
+package qfrag.utils;
+
+import java.nio.IntBuffer;
+
+/**
+ * Intersection of sorted, duplicate-free int lists.
+ * <p/>
+ * Lists of similar size are merged linearly with a branch-free loop (the
+ * comparisons become conditional moves, so the loop does not stall on
+ * unpredictable branches); when one list is at least {@link #GALLOP_RATIO}
+ * times longer, every element of the short list is located in the long one by
+ * galloping (exponential then binary search) from the previous hit. Results
+ * are written to a caller-owned buffer, which may be the first input itself
+ * since the write position never overtakes the read position.
+ */
+public class SortedIntersection {
+    public static final int GALLOP_RATIO = 32;
+
+    private SortedIntersection() {
+    }
+
+    public static boolean shouldGallop(int smallLength, int largeLength) {
+        return (long) smallLength * GALLOP_RATIO <= largeLength;
+    }
+
+    /**
+     * Intersects a[0..aLength) with b[0..bLength) into out.
+     *
+     * @return number of elements written to out
+     */
+    public static int intersect(int[] a, int aLength, int[] b, int bLength, int[] out) {
+        if (shouldGallop(aLength, bLength)) {
+            return gallop(a, aLength, b, 0, bLength, out);
+        } else if (shouldGallop(bLength, aLength)) {
+            // out may alias a, which is only safe as the small side
+            return out == a ? gallopInto(a, aLength, b, bLength) : gallop(b, bLength, a, 0, aLength, out);
+        } else {
+            return merge(a, aLength, b, 0, bLength, out);
+        }
+    }
+
+    /**
+     * Linear merge of a[0..aLength) with b[from..to).
+     *
+     * @return number of elements written to out
+     */
+    public static int merge(int[] a, int aLength, int[] b, int from, int to, int[] out) {
+        int i = 0;
+        int j = from;
+        int count = 0;
+
+        while (i < aLength && j < to) {
+            int x = a[i];
+            int y = b[j];
+
+            out[count] = x;
+            count += x == y ? 1 : 0;
+            i += x <= y ? 1 : 0;
+            j += x >= y ? 1 : 0;
+        }
+
+        return count;
+    }
+
+    /**
+     * Looks up every element of small[0..smallLength) in large[from..to).
+     *
+     * @return number of elements written to out
+     */
+    public static int gallop(int[] small, int smallLength, int[] large, int from, int to, int[] out) {
+        int count = 0;
+        int low = from;
+
+        for (int i = 0; i < smallLength && low < to; ++i) {
+            int x = small[i];
+
+            // exponential search for the first bound >= x, then binary search below it
+            int step = 1;
+            int high = low;
+
+            while (high < to && large[high] < x) {
+                low = high + 1;
+                high += step;
+                step <<= 1;
+            }
+
+            high = Math.min(high, to - 1);
+
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+
+                if (large[mid] < x) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            if (low < to && large[low] == x) {
+                out[count++] = x;
+                ++low;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Same as {@link #gallop(int[], int, int[], int, int, int[])} with the
+     * large list read in place from a (memory-mapped) buffer through absolute
+     * gets, so it is never copied.
+     */
+    public static int gallop(int[] small, int smallLength, IntBuffer large, int from, int to, int[] out) {
+        int count = 0;
+        int low = from;
+
+        for (int i = 0; i < smallLength && low < to; ++i) {
+            int x = small[i];
+
+            int step = 1;
+            int high = low;
+
+            while (high < to && large.get(high) < x) {
+                low = high + 1;
+                high += step;
+                step <<= 1;
+            }
+
+            high = Math.min(high, to - 1);
+
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+
+                if (large.get(mid) < x) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            if (low < to && large.get(low) == x) {
+                out[count++] = x;
+                ++low;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Intersects a large in place with a small b by galloping through a.
+     */
+    private static int gallopInto(int[] a, int aLength, int[] b, int bLength) {
+        int count = 0;
+        int low = 0;
+
+        for (int i = 0; i < bLength && low < aLength; ++i) {
+            int x = b[i];
+
+            int step = 1;
+            int high = low;
+
+            while (high < aLength && a[high] < x) {
+                low = high + 1;
+                high += step;
+                step <<= 1;
+            }
+
+            high = Math.min(high, aLength - 1);
+
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+
+                if (a[mid] < x) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            if (low < aLength && a[low] == x) {
+                // count <= low, so no unread element of a is overwritten
+                a[count++] = x;
+                ++low;
+            }
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,200 @@
+package qfrag.aggregation
+
+import org.apache.hadoop.io._
+import org.scalatest.{BeforeAndAfterAll, FunSuite}
+import qfrag.aggregation.reductions.{LongSumReduction, ReductionFunction}
+import qfrag.conf.SparkConfiguration
+
+class OffHeapAggregationStorageSpec extends FunSuite with BeforeAndAfterAll {
+  import OffHeapAggregationStorageSpec._
+
+  override def beforeAll(): Unit = {
+    val config = new SparkConfiguration()
+    config.initialize()
+    config.registerAggregation(LONG_SUM, classOf[OffHeapAggregationStorage[_, _]],
+      classOf[IntWritable], classOf[LongWritable], false, new LongSumReduction(), null, 1)
+    config.registerAggregation(VLONG_SUM, classOf[OffHeapAggregationStorage[_, _]],
+      classOf[IntWritable], classOf[VLongWritable], false, new VLongSumReduction(), null, 1)
+  }
+
+  private def newStorage(): OffHeapAggregationStorage[IntWritable, LongWritable] =
+    new OffHeapAggregationStorage[IntWritable, LongWritable](LONG_SUM)
+
+  private def value(storage: AggregationStorage[IntWritable, LongWritable], key: Int): Option[Long] =
+    Option(storage.getValue(new IntWritable(key))).map(_.get)
+
+  test("keeps every inserted mapping as slabs and index grow") {
+    val storage = newStorage()
+
+    for (k <- 0 until 10000) {
+      storage.aggregate(new IntWritable(k), new LongWritable(k))
+    }
+
+    assert(storage.getNumberMappings === 10000)
+    assert((0 until 10000).forall(k => value(storage, k) == Some(k.toLong)))
+    assert(value(storage, 10000) === None)
+    assert(!storage.containsKey(new IntWritable(-1)))
+    assert(storage.getOffHeapBytes >= 10000L * (8 + 4 + 8))
+
+    storage.reset()
+  }
+
+  test("reduces values keeping their serialized size in place") {
+    val storage = newStorage()
+
+    for (k <- 0 until 1000) {
+      storage.aggregate(new IntWritable(k), new LongWritable(1))
+    }
+
+    val bytes = storage.getOffHeapBytes
+
+    for (_ <- 1 to 2; k <- 0 until 1000) {
+      storage.aggregateWithReusables(new IntWritable(k), new LongWritable(1))
+    }
+
+    assert((0 until 1000).forall(k => value(storage, k) == Some(3L)))
+    assert(storage.getWastedBytes === 0)
+    assert(storage.getOffHeapBytes === bytes)
+
+    storage.reset()
+  }
+
+  test("appends values whose serialized size changes") {
+    val storage = new OffHeapAggregationStorage[IntWritable, VLongWritable](VLONG_SUM)
+
+    storage.aggregate(new IntWritable(1), new VLongWritable(1))
+    storage.aggregate(new IntWritable(2), new VLongWritable(1))
+    assert(storage.getWastedBytes === 0)
+
+    // 1 takes one byte, 1001 three: the old record (header, key, value) is wasted
+    storage.aggregate(new IntWritable(1), new VLongWritable(1000))
+    assert(storage.getWastedBytes === 8 + 4 + 1)
+    assert(storage.getValue(new IntWritable(1)).get === 1001)
+
+    storage.aggregate(new IntWritable(1), new VLongWritable(1))
+    assert(storage.getWastedBytes === 8 + 4 + 1)
+    assert(storage.getValue(new IntWritable(1)).get === 1002)
+    assert(storage.getValue(new IntWritable(2)).get === 1)
+
+    storage.reset()
+  }
+
+  test("finds the remaining keys after removals and rehashing") {
+    val storage = newStorage()
+
+    for (k <- 0 until 2000) {
+      storage.aggregate(new IntWritable(k), new LongWritable(k))
+    }
+
+    for (k <- 0 until 2000 by 2) {
+      storage.removeKey(new IntWritable(k))
+    }
+
+    assert(storage.getNumberMappings === 1000)
+    assert(storage.getWastedBytes === 1000L * (8 + 4 + 8))
+
+    // enough inserts to rehash over the removed slots
+    for (k <- 2000 until 6000) {
+      storage.aggregate(new IntWritable(k), new LongWritable(k))
+    }
+
+    // a removed key comes back without its old value
+    storage.aggregate(new IntWritable(0), new LongWritable(7))
+
+    assert(storage.getNumberMappings === 1000 + 4000 + 1)
+    assert(value(storage, 0) === Some(7L))
+    assert((2 until 2000 by 2).forall(k => value(storage, k).isEmpty))
+    assert((1 until 2000 by 2).forall(k => value(storage, k) == Some(k.toLong)))
+    assert((2000 until 6000).forall(k => value(storage, k) == Some(k.toLong)))
+
+    storage.reset()
+  }
+
+  test("writes what the generic storage reads and reads what it writes") {
+    val offHeap = newStorage()
+    val generic = new AggregationStorage[IntWritable, LongWritable](LONG_SUM)
+
+    for (k <- 0 until 3000) {
+      offHeap.aggregate(new IntWritable(k), new LongWritable(k * 3L))
+      generic.aggregate(new IntWritable(k), new LongWritable(k * 3L))
+    }
+
+    val fromOffHeap = new AggregationStorage[IntWritable, LongWritable]()
+    roundTrip(offHeap, fromOffHeap)
+    assert(fromOffHeap.getMapping === generic.getMapping)
+
+    val fromGeneric = new OffHeapAggregationStorage[IntWritable, LongWritable]()
+    roundTrip(generic, fromGeneric)
+    assert(fromGeneric.getName === LONG_SUM)
+    assert(fromGeneric.getMapping === generic.getMapping)
+
+    offHeap.reset()
+    fromGeneric.reset()
+  }
+
+  test("merges another storage, summing the keys both hold") {
+    val storage = newStorage()
+    val other = newStorage()
+    val generic = new AggregationStorage[IntWritable, LongWritable](LONG_SUM)
+
+    for (k <- 0 until 2000) {
+      storage.aggregate(new IntWritable(k), new LongWritable(1))
+      other.aggregate(new IntWritable(k + 1000), new LongWritable(10))
+      generic.aggregate(new IntWritable(k + 2000), new LongWritable(100))
+    }
+
+    storage.aggregate(other)
+    storage.aggregate(generic)
+
+    assert(storage.getNumberMappings === 4000)
+    assert((0 until 1000).forall(k => value(storage, k) == Some(1L)))
+    assert((1000 until 2000).forall(k => value(storage, k) == Some(11L)))
+    assert((2000 until 3000).forall(k => value(storage, k) == Some(110L)))
+    assert((3000 until 4000).forall(k => value(storage, k) == Some(100L)))
+
+    storage.reset()
+    other.reset()
+  }
+
+  test("reset releases the table and starts over empty") {
+    val storage = newStorage()
+
+    for (k <- 0 until 100000) {
+      storage.aggregate(new IntWritable(k), new LongWritable(k))
+    }
+
+    val bytes = storage.getOffHeapBytes
+
+    storage.reset()
+
+    assert(storage.getNumberMappings === 0)
+    assert(storage.getOffHeapBytes < bytes)
+    assert(value(storage, 1) === None)
+
+    storage.aggregate(new IntWritable(1), new LongWritable(5))
+    assert(value(storage, 1) === Some(5L))
+
+    storage.reset()
+  }
+}
+
+object OffHeapAggregationStorageSpec {
+  val LONG_SUM = "offheap_long_sum"
+  val VLONG_SUM = "offheap_vlong_sum"
+
+  def roundTrip[K <: Writable, V <: Writable](from: AggregationStorage[K, V], to: AggregationStorage[K, V]): Unit = {
+    val out = new DataOutputBuffer()
+    from.write(out)
+
+    val in = new DataInputBuffer()
+    in.reset(out.getData, out.getLength)
+    to.readFields(in)
+  }
+
+  class VLongSumReduction extends ReductionFunction[VLongWritable] {
+    override def reduce(v1: VLongWritable, v2: VLongWritable): VLongWritable = {
+      v1.set(v1.get + v2.get)
+      v1
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package qfrag.aggregation
+
+import org.apache.hadoop.io.{IntWritable, LongWritable}
+import org.scalatest.{BeforeAndAfterAll, FunSuite}
+import qfrag.aggregation.reductions.LongSumReduction
+import qfrag.conf.SparkConfiguration
+
+import scala.collection.JavaConverters._
+
+class SerializedKeyAggregationStorageSpec extends FunSuite with BeforeAndAfterAll {
+  private val LONG_SUM = "serialized_long_sum"
+
+  override def beforeAll(): Unit = {
+    val config = new SparkConfiguration()
+    config.initialize()
+    config.registerAggregation(LONG_SUM, classOf[SerializedKeyAggregationStorage[_, _]],
+      classOf[IntWritable], classOf[LongWritable], false, new LongSumReduction(), null, 1)
+  }
+
+  private def newStorage(): SerializedKeyAggregationStorage[IntWritable, LongWritable] =
+    new SerializedKeyAggregationStorage[IntWritable, LongWritable](LONG_SUM)
+
+  private def fill(storage: AggregationStorage[IntWritable, LongWritable], keys: Range, value: Long): Unit =
+    for (k <- keys) {
+      storage.aggregate(new IntWritable(k), new LongWritable(value))
+    }
+
+  private def value(storage: AggregationStorage[IntWritable, LongWritable], key: Int): Option[Long] =
+    Option(storage.getValue(new IntWritable(key))).map(_.get)
+
+  test("aggregates like the generic storage") {
+    val storage = newStorage()
+    val generic = new AggregationStorage[IntWritable, LongWritable](LONG_SUM)
+
+    for (s <- Seq(storage, generic)) {
+      fill(s, 0 until 5000, 1)
+      fill(s, 2500 until 7500, 2)
+      s.removeKey(new IntWritable(3))
+    }
+
+    assert(storage.getNumberMappings === generic.getNumberMappings)
+    assert(storage.getMapping === generic.getMapping)
+    assert(storage.getKeys === generic.getKeys)
+    assert(storage.getKey(new IntWritable(4)) === new IntWritable(4))
+    assert(storage.getKey(new IntWritable(3)) === null)
+    assert(storage.toOutputString === generic.toOutputString)
+
+    val streamed = scala.collection.mutable.Map[Int, Long]()
+    storage.forEachMapping(new AggregationStorage.MappingConsumer[IntWritable, LongWritable] {
+      override def accept(key: IntWritable, value: LongWritable): Unit = streamed(key.get) = value.get
+    })
+    assert(streamed === generic.getMapping.asScala.map { case (k, v) => (k.get, v.get) })
+
+    storage.reset()
+  }
+
+  test("writes what the generic storage reads and reads what it writes") {
+    val storage = newStorage()
+    val generic = new AggregationStorage[IntWritable, LongWritable](LONG_SUM)
+
+    fill(storage, 0 until 3000, 5)
+    fill(generic, 0 until 3000, 5)
+
+    val fromSerialized = new AggregationStorage[IntWritable, LongWritable]()
+    OffHeapAggregationStorageSpec.roundTrip(storage, fromSerialized)
+    assert(fromSerialized.getMapping === generic.getMapping)
+
+    val fromGeneric = new SerializedKeyAggregationStorage[IntWritable, LongWritable]()
+    OffHeapAggregationStorageSpec.roundTrip(generic, fromGeneric)
+    assert(fromGeneric.getName === LONG_SUM)
+    assert(fromGeneric.getMapping === generic.getMapping)
+
+    storage.reset()
+    fromGeneric.reset()
+  }
+
+  test("merges heap and off-heap storages record by record") {
+    val storage = newStorage()
+    val offHeap = new OffHeapAggregationStorage[IntWritable, LongWritable](LONG_SUM)
+
+    fill(storage, 0 until 2000, 1)
+    fill(offHeap, 1000 until 3000, 10)
+
+    storage.aggregate(offHeap)
+
+    assert(storage.getNumberMappings === 3000)
+    assert((0 until 1000).forall(k => value(storage, k) == Some(1L)))
+    assert((1000 until 2000).forall(k => value(storage, k) == Some(11L)))
+    assert((2000 until 3000).forall(k => value(storage, k) == Some(10L)))
+
+    offHeap.aggregate(storage)
+
+    assert(offHeap.getNumberMappings === 3000)
+    assert((0 until 1000).forall(k => value(offHeap, k) == Some(1L)))
+    assert((1000 until 2000).forall(k => value(offHeap, k) == Some(21L)))
+    assert((2000 until 3000).forall(k => value(offHeap, k) == Some(20L)))
+
+    storage.reset()
+    offHeap.reset()
+  }
+}
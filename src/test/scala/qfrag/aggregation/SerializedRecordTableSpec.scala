@@ -0,0 +1,118 @@
+package qfrag.aggregation
+
+import java.nio.ByteBuffer
+
+import org.scalatest.FunSuite
+import qfrag.utils.HashUtils
+
+class SerializedRecordTableSpec extends FunSuite {
+  // record header: key length and value length
+  private val HEADER = 8
+
+  private def keyBytes(key: Int): Array[Byte] = ByteBuffer.allocate(4).putInt(key).array()
+
+  private def valueBytes(value: Int, length: Int): Array[Byte] = Array.fill(length)(value.toByte)
+
+  private def hash(bytes: Array[Byte]): Int = HashUtils.hash(bytes, 0, bytes.length)
+
+  private def insert(table: SerializedRecordTable, key: Int, value: Array[Byte]): Unit = {
+    val bytes = keyBytes(key)
+    table.insert(bytes, 0, bytes.length, hash(bytes), value, 0, value.length)
+  }
+
+  private def find(table: SerializedRecordTable, key: Int): Int = {
+    val bytes = keyBytes(key)
+    table.find(bytes, 0, bytes.length, hash(bytes))
+  }
+
+  private def value(table: SerializedRecordTable, key: Int): Option[Seq[Byte]] = {
+    val slot = find(table, key)
+
+    if (slot < 0) {
+      None
+    } else {
+      val address = table.getAddress(slot)
+      val keyLength = table.getKeyLength(address)
+      Some(table.copyRecord(address).slice(keyLength, keyLength + table.getValueLength(address)).toSeq)
+    }
+  }
+
+  for (direct <- Seq(false, true)) {
+    val backing = if (direct) "direct" else "heap"
+
+    test(s"finds every record as slabs and index grow ($backing)") {
+      val table = new SerializedRecordTable(direct)
+
+      for (k <- 0 until 50000) {
+        insert(table, k, valueBytes(k, 1 + k % 16))
+      }
+
+      assert(table.size === 50000)
+      assert(table.getNumSlabs > 1)
+      assert(4L * table.size <= 3L * table.capacity)
+      assert((0 until 50000).forall(k => value(table, k) == Some(valueBytes(k, 1 + k % 16).toSeq)))
+      assert(find(table, 50000) === -1)
+      assert(table.getWastedBytes === 0)
+
+      table.free()
+    }
+
+    test(s"overwrites values of the same size in place and appends the others ($backing)") {
+      val table = new SerializedRecordTable(direct)
+
+      for (k <- 0 until 100) {
+        insert(table, k, valueBytes(k, 8))
+      }
+
+      val bytes = table.getAllocatedBytes
+
+      table.setValue(find(table, 7), valueBytes(70, 8), 0, 8)
+      assert(value(table, 7) === Some(valueBytes(70, 8).toSeq))
+      assert(table.getWastedBytes === 0)
+      assert(table.getAllocatedBytes === bytes)
+
+      table.setValue(find(table, 8), valueBytes(80, 20), 0, 20)
+      assert(value(table, 8) === Some(valueBytes(80, 20).toSeq))
+      assert(table.getWastedBytes === HEADER + 4 + 8)
+
+      table.setValue(find(table, 8), valueBytes(81, 2), 0, 2)
+      assert(value(table, 8) === Some(valueBytes(81, 2).toSeq))
+      assert(table.getWastedBytes === (HEADER + 4 + 8) + (HEADER + 4 + 20))
+
+      assert(table.size === 100)
+      assert((0 until 100).filter(k => k != 7 && k != 8).forall(k => value(table, k) == Some(valueBytes(k, 8).toSeq)))
+
+      table.free()
+    }
+
+    test(s"rehashes over removed slots without growing ($backing)") {
+      val table = new SerializedRecordTable(direct)
+
+      for (k <- 0 until 700) {
+        insert(table, k, valueBytes(k, 4))
+      }
+
+      val capacity = table.capacity
+
+      for (k <- 0 until 500) {
+        table.remove(find(table, k))
+      }
+
+      assert(table.size === 200)
+      assert(table.getWastedBytes === 500L * (HEADER + 4 + 4))
+
+      // removed slots count towards the load until a rehash clears them
+      for (k <- 1000 until 1300) {
+        insert(table, k, valueBytes(k, 4))
+      }
+
+      assert(table.capacity === capacity)
+      assert(table.size === 500)
+      assert((0 until 500).forall(k => find(table, k) == -1))
+      assert((500 until 700).forall(k => value(table, k) == Some(valueBytes(k, 4).toSeq)))
+      assert((1000 until 1300).forall(k => value(table, k) == Some(valueBytes(k, 4).toSeq)))
+
+      table.free()
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package qfrag.aggregation
+
+import java.io.File
+import java.nio.file.Files
+
+import org.apache.hadoop.io.{IntWritable, LongWritable}
+import org.scalatest.{BeforeAndAfterAll, FunSuite}
+import qfrag.aggregation.reductions.LongSumReduction
+import qfrag.conf.{Configuration, SparkConfiguration}
+
+import scala.collection.JavaConverters._
+
+class SpillingAggregationStorageSpec extends FunSuite with BeforeAndAfterAll {
+  private val LONG_SUM = "spilling_long_sum"
+
+  private var spillDir: File = _
+
+  override def beforeAll(): Unit = {
+    spillDir = Files.createTempDirectory("spilling-storage-spec").toFile
+
+    // spill at every size check
+    val config = new SparkConfiguration()
+    config.set(Configuration.CONF_AGGREGATION_SPILL_THRESHOLD, 1)
+    config.set(Configuration.CONF_SPILL_DIR, spillDir.getPath)
+    config.initialize()
+    config.registerAggregation(LONG_SUM, classOf[SpillingAggregationStorage[_, _]],
+      classOf[IntWritable], classOf[LongWritable], false, new LongSumReduction(), null, 1)
+  }
+
+  override def afterAll(): Unit = {
+    Option(spillDir.listFiles()).foreach(_.foreach(_.delete()))
+    spillDir.delete()
+  }
+
+  /**
+   * Storage with keys 0 until numKeys, aggregated round-robin numUpdates
+   * times with weight, spilling every 1024 updates
+   */
+  private def spilled(numKeys: Int, numUpdates: Int,
+                      weight: Long): SpillingAggregationStorage[IntWritable, LongWritable] = {
+    val storage = new SpillingAggregationStorage[IntWritable, LongWritable](LONG_SUM)
+
+    for (i <- 0 until numUpdates) {
+      storage.aggregate(new IntWritable(i % numKeys), new LongWritable(weight))
+    }
+
+    storage
+  }
+
+  private def expected(numKeys: Int, numUpdates: Int, weight: Long): Map[Int, Long] =
+    (0 until numKeys).map(k => (k, weight * ((numUpdates - k + numKeys - 1) / numKeys))).toMap
+
+  private def mappings(storage: AggregationStorage[IntWritable, LongWritable]): Map[Int, Long] =
+    storage.getMapping.asScala.map { case (k, v) => (k.get, v.get) }.toMap
+
+  private def streamed(storage: AggregationStorage[IntWritable, LongWritable]): Map[Int, Long] = {
+    val result = scala.collection.mutable.Map[Int, Long]()
+
+    storage.forEachMapping(new AggregationStorage.MappingConsumer[IntWritable, LongWritable] {
+      override def accept(key: IntWritable, value: LongWritable): Unit = {
+        assert(!result.contains(key.get), s"key ${key.get} streamed twice")
+        result(key.get) = value.get
+      }
+    })
+
+    result.toMap
+  }
+
+  test("spills at every size check over the threshold and reduces keys across runs") {
+    val storage = spilled(3000, 5000, 1)
+
+    assert(storage.isSpilled)
+    assert(storage.getNumberSpills === 4)
+    assert(storage.getNumberMappings === 3000)
+    assert(streamed(storage) === expected(3000, 5000, 1))
+    // streaming leaves it spilled
+    assert(storage.isSpilled)
+
+    storage.reset()
+  }
+
+  test("aggregating a spilled storage streams its merge into the other") {
+    val storage = spilled(3000, 5000, 1)
+    val target = spilled(4000, 4000, 10)
+    val generic = new AggregationStorage[IntWritable, LongWritable](LONG_SUM)
+
+    target.aggregate(storage)
+    generic.aggregate(storage)
+
+    val merged = expected(4000, 4000, 10).map { case (k, v) => (k, v + expected(3000, 5000, 1).getOrElse(k, 0L)) }
+
+    assert(target.getNumberMappings === 4000)
+    assert(streamed(target) === merged)
+    assert(mappings(generic) === expected(3000, 5000, 1))
+
+    storage.reset()
+    target.reset()
+  }
+
+  test("writes the merge in the generic storage's format") {
+    val storage = spilled(3000, 5000, 1)
+    val generic = new AggregationStorage[IntWritable, LongWritable]()
+
+    OffHeapAggregationStorageSpec.roundTrip(storage, generic)
+
+    assert(generic.getName === LONG_SUM)
+    assert(mappings(generic) === expected(3000, 5000, 1))
+
+    storage.reset()
+  }
+
+  test("splits the merge by key") {
+    val storage = spilled(3000, 5000, 1)
+    val splits = AggregationChunks.split[IntWritable, LongWritable](storage, 3).asScala
+
+    for ((split, i) <- splits.zipWithIndex) {
+      assert(split.getKeys.asScala.forall(k => AggregationChunks.splitOf(k, 3) == i))
+    }
+
+    assert(splits.map(mappings).reduce(_ ++ _) === expected(3000, 5000, 1))
+
+    storage.reset()
+    splits.foreach(_.reset())
+  }
+
+  test("loads the runs back on random access and deletes them on reset") {
+    val storage = spilled(3000, 5000, 1)
+
+    assert(spillDir.listFiles().nonEmpty)
+    assert(storage.getValue(new IntWritable(0)).get === 2)
+    assert(!storage.isSpilled)
+    assert(mappings(storage) === expected(3000, 5000, 1))
+
+    // spills again from the loaded mappings
+    for (i <- 0 until 2048) {
+      storage.aggregate(new IntWritable(i), new LongWritable(1))
+    }
+
+    assert(storage.isSpilled)
+    assert(storage.getNumberMappings === 3000)
+
+    storage.reset()
+
+    assert(!storage.isSpilled)
+    assert(storage.getNumberMappings === 0)
+    assert(spillDir.listFiles().isEmpty)
+  }
+}
@@ -0,0 +1,119 @@
+package qfrag.aggregation
+
+import org.apache.hadoop.io.{IntWritable, LongWritable}
+import org.scalatest.{BeforeAndAfterAll, FunSuite}
+import qfrag.aggregation.reductions.LongSumReduction
+import qfrag.conf.SparkConfiguration
+
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+class TopKAggregationStorageSpec extends FunSuite with BeforeAndAfterAll {
+  private val TOP_K = "top_k"
+  private val CAPACITY = 20
+
+  override def beforeAll(): Unit = {
+    val config = new SparkConfiguration()
+    config.initialize()
+    config.registerAggregation(TOP_K, classOf[TopKAggregationStorage[_]],
+      classOf[IntWritable], classOf[LongWritable], false, new LongSumReduction(), null, 1, CAPACITY)
+  }
+
+  /** Skewed stream of (key, weight) updates over keys [from, from + numKeys) */
+  private def stream(seed: Int, length: Int, from: Int, numKeys: Int): Seq[(Int, Long)] = {
+    val random = new Random(seed)
+    Seq.fill(length)((from + (math.pow(random.nextDouble(), 3) * numKeys).toInt, 1L + random.nextInt(5)))
+  }
+
+  private def weights(updates: Seq[(Int, Long)]): Map[Int, Long] =
+    updates.groupBy(_._1).map { case (k, kws) => (k, kws.map(_._2).sum) }
+
+  private def summarize(updates: Seq[(Int, Long)]): TopKAggregationStorage[IntWritable] = {
+    val storage = new TopKAggregationStorage[IntWritable](TOP_K)
+
+    for ((k, w) <- updates) {
+      storage.aggregate(new IntWritable(k), new LongWritable(w))
+    }
+
+    storage
+  }
+
+  /** Space-Saving guarantees of storage for a stream of the given true weights */
+  private def checkGuarantees(storage: TopKAggregationStorage[IntWritable], trueWeights: Map[Int, Long]): Unit = {
+    assert(storage.getNumberMappings <= CAPACITY)
+
+    for ((k, weight) <- trueWeights) {
+      val key = new IntWritable(k)
+
+      Option(storage.getValue(key)) match {
+        case Some(count) =>
+          assert(count.get - storage.getError(key) <= weight, s"key $k")
+          assert(weight <= count.get, s"key $k")
+        case None =>
+          assert(weight <= storage.getErrorBound, s"key $k")
+      }
+    }
+  }
+
+  private def countsAndErrors(storage: TopKAggregationStorage[IntWritable]): Map[Int, (Long, Long)] =
+    storage.getMapping.asScala.map { case (k, count) => (k.get, (count.get, storage.getError(k))) }.toMap
+
+  test("keeps the heavy keys of a single stream within N / capacity") {
+    val updates = stream(1, 20000, 0, 1000)
+    val storage = summarize(updates)
+
+    checkGuarantees(storage, weights(updates))
+    assert(storage.getErrorBound <= updates.map(_._2).sum / CAPACITY)
+
+    val top = storage.getTopKeys(5).asScala.map(_.get)
+    assert(top.head === weights(updates).maxBy(_._2)._1)
+  }
+
+  test("merging summaries of two streams keeps the guarantees over both") {
+    val updates1 = stream(2, 20000, 0, 1000)
+    val updates2 = stream(3, 20000, 500, 1000)
+    val storage = summarize(updates1)
+
+    storage.aggregate(summarize(updates2))
+
+    checkGuarantees(storage, weights(updates1 ++ updates2))
+  }
+
+  test("merging into an empty summary through write and readFields keeps it as is") {
+    val storage = summarize(stream(4, 20000, 0, 1000))
+    val read = new TopKAggregationStorage[IntWritable]()
+
+    OffHeapAggregationStorageSpec.roundTrip(storage, read)
+
+    assert(countsAndErrors(read) === countsAndErrors(storage))
+    assert(read.getErrorBound === storage.getErrorBound)
+  }
+
+  test("joining splits gives back the storage they were cut from") {
+    val storage = summarize(stream(5, 20000, 0, 1000))
+    val splits = AggregationChunks.split[IntWritable, LongWritable](storage, 3).asScala
+
+    assert(splits.map(_.getNumberMappings).sum === storage.getNumberMappings)
+
+    val joined = splits.head
+    splits.tail.foreach(joined.aggregateSplit)
+
+    val topK = joined.asInstanceOf[TopKAggregationStorage[IntWritable]]
+    assert(countsAndErrors(topK) === countsAndErrors(storage))
+    assert(topK.getErrorBound === storage.getErrorBound)
+  }
+
+  test("joining summaries of disjoint streams keeps the guarantees over both") {
+    val updates1 = stream(6, 20000, 0, 1000)
+    val updates2 = stream(7, 20000, 1000, 1000)
+    val storage = summarize(updates1)
+    val other = summarize(updates2)
+    val bound = math.max(storage.getErrorBound, other.getErrorBound)
+
+    storage.aggregateSplit(other)
+
+    checkGuarantees(storage, weights(updates1 ++ updates2))
+    assert(storage.getErrorBound >= bound)
+    assert(storage.getErrorBound <= (updates1 ++ updates2).map(_._2).sum / CAPACITY)
+  }
+}
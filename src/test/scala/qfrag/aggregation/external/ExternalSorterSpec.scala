@@ -0,0 +1,154 @@
+package qfrag.aggregation.external
+
+import java.io.File
+import java.nio.file.Files
+
+import org.apache.hadoop.io.{DataInputBuffer, IntWritable, Text, WritableComparator}
+import org.scalatest.{BeforeAndAfter, FunSuite}
+
+import scala.collection.mutable.ArrayBuffer
+import scala.util.Random
+
+class ExternalSorterSpec extends FunSuite with BeforeAndAfter {
+  private var spillDir: File = _
+
+  before {
+    spillDir = Files.createTempDirectory("external-sorter-spec").toFile
+  }
+
+  after {
+    Option(spillDir.listFiles()).foreach(_.foreach(_.delete()))
+    spillDir.delete()
+  }
+
+  // the memory limit is raised to the 64KB minimum
+  private def newSorter(): ExternalSorter =
+    new ExternalSorter(WritableComparator.get(classOf[IntWritable]), 0, spillDir)
+
+  /** Every (key, value) of sorter, in the order it merges them */
+  private def drain(sorter: ExternalSorter): Seq[(Int, Int)] = {
+    val records = sorter.sorted()
+    val in = new DataInputBuffer()
+    val key = new IntWritable()
+    val value = new IntWritable()
+    val result = ArrayBuffer[(Int, Int)]()
+
+    try {
+      while (records.next()) {
+        in.reset(records.getKeyBytes, records.getKeyOffset, records.getKeyLength)
+        key.readFields(in)
+        in.reset(records.getValueBytes, records.getValueOffset, records.getValueLength)
+        value.readFields(in)
+        result += ((key.get, value.get))
+      }
+    } finally {
+      records.close()
+    }
+
+    result
+  }
+
+  /** Records with few distinct keys, valued by the order they are added in */
+  private def records(count: Int, numKeys: Int): Seq[(Int, Int)] = {
+    val random = new Random(count)
+    (0 until count).map(i => (random.nextInt(numKeys) - numKeys / 2, i))
+  }
+
+  private def add(sorter: ExternalSorter, records: Seq[(Int, Int)], spillEvery: Int): Unit =
+    for (((k, v), i) <- records.zipWithIndex) {
+      sorter.add(new IntWritable(k), new IntWritable(v))
+
+      if (spillEvery > 0 && (i + 1) % spillEvery == 0) {
+        sorter.spill()
+      }
+    }
+
+  test("sorts records in memory, keeping equal keys in insertion order") {
+    val sorter = newSorter()
+    val added = records(2000, 50)
+
+    add(sorter, added, 0)
+
+    assert(sorter.getNumberRuns === 0)
+    // sortBy is stable
+    assert(drain(sorter) === added.sortBy(_._1))
+
+    sorter.close()
+  }
+
+  test("merges spilled runs and the records in memory stably") {
+    val sorter = newSorter()
+    val added = records(10000, 50)
+
+    // the last 1000 records stay in memory
+    add(sorter, added, 1500)
+
+    assert(sorter.getNumberRuns === 6)
+    assert(sorter.getSpilledBytes > 0)
+    assert(drain(sorter) === added.sortBy(_._1))
+
+    sorter.close()
+  }
+
+  test("spills by itself once the memory limit is reached") {
+    val sorter = newSorter()
+    // 16 bytes a record (header, key and value) and 4 for its offset
+    val added = records(50000, 1000)
+
+    add(sorter, added, 0)
+
+    assert(sorter.getNumberRuns > 0)
+    assert(drain(sorter) === added.sortBy(_._1))
+
+    sorter.close()
+  }
+
+  test("orders by serialized bytes without a comparator, bringing equal keys together") {
+    val sorter = new ExternalSorter(null, 0, spillDir)
+    val words = Seq("b", "a", "ab", "b", "", "a")
+
+    for ((word, i) <- words.zipWithIndex) {
+      sorter.add(new Text(word), new IntWritable(i))
+
+      if (i == 2) {
+        sorter.spill()
+      }
+    }
+
+    val records = sorter.sorted()
+    val in = new DataInputBuffer()
+    val key = new Text()
+    val result = ArrayBuffer[String]()
+
+    while (records.next()) {
+      in.reset(records.getKeyBytes, records.getKeyOffset, records.getKeyLength)
+      key.readFields(in)
+      result += key.toString
+    }
+
+    records.close()
+
+    // Text is its length, then its bytes
+    assert(result === Seq("", "a", "a", "b", "b", "ab"))
+
+    sorter.close()
+  }
+
+  test("sorts again after more records are added, and close deletes the runs") {
+    val sorter = newSorter()
+    val first = records(3000, 20)
+    val second = records(2000, 20).map { case (k, v) => (k, v + first.size) }
+
+    add(sorter, first, 1000)
+    assert(drain(sorter) === first.sortBy(_._1))
+
+    add(sorter, second, 1000)
+    assert(drain(sorter) === (first ++ second).sortBy(_._1))
+    assert(spillDir.listFiles().length === sorter.getNumberRuns)
+
+    sorter.close()
+
+    assert(sorter.getNumberRuns === 0)
+    assert(spillDir.listFiles().isEmpty)
+  }
+}
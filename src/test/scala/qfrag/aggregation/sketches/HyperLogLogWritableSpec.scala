@@ -0,0 +1,97 @@
+package qfrag.aggregation.sketches
+
+import org.apache.hadoop.io.{DataInputBuffer, DataOutputBuffer, IntWritable, LongWritable}
+import org.scalatest.FunSuite
+import qfrag.aggregation.HyperLogLogAggregationStorage
+import qfrag.aggregation.reductions.LongSumReduction
+import qfrag.conf.SparkConfiguration
+import qfrag.utils.HashUtils
+
+class HyperLogLogWritableSpec extends FunSuite {
+  private val PRECISION = 14
+  // three standard errors, 1.04 / sqrt(2^precision) each
+  private val TOLERANCE = 3 * 1.04 / math.sqrt(1 << PRECISION)
+
+  private def sketch(from: Long, to: Long): HyperLogLogWritable = {
+    val result = new HyperLogLogWritable(PRECISION)
+
+    for (i <- from until to) {
+      result.offer(HashUtils.mix(i))
+    }
+
+    result
+  }
+
+  private def relativeError(estimate: Long, cardinality: Long): Double =
+    math.abs(estimate - cardinality).toDouble / cardinality
+
+  test("estimates within three standard errors at precision 14") {
+    // linear counting below 2.5 * 2^precision, the raw estimate above
+    for (cardinality <- Seq(100L, 10000L, 200000L, 1000000L)) {
+      val estimate = sketch(0, cardinality).estimate()
+
+      assert(relativeError(estimate, cardinality) <= TOLERANCE, s"$estimate for $cardinality")
+    }
+  }
+
+  test("ignores repeated hashes") {
+    val twice = new HyperLogLogWritable(PRECISION)
+
+    for (_ <- 1 to 2; i <- 0L until 50000L) {
+      twice.offer(HashUtils.mix(i))
+    }
+
+    assert(twice.estimate() === sketch(0, 50000).estimate())
+  }
+
+  test("merged sketches estimate the union") {
+    val merged = sketch(0, 600000)
+    merged.merge(sketch(400000, 1000000))
+
+    assert(merged.estimate() === sketch(0, 1000000).estimate())
+    assert(relativeError(merged.estimate(), 1000000) <= TOLERANCE)
+  }
+
+  test("reads back what it writes, adopting the written precision") {
+    val written = sketch(0, 100000)
+    val out = new DataOutputBuffer()
+    written.write(out)
+
+    assert(out.getLength === (1 << PRECISION) + 1)
+
+    val in = new DataInputBuffer()
+    in.reset(out.getData, out.getLength)
+    val read = new HyperLogLogWritable(HyperLogLogWritable.MIN_PRECISION)
+    read.readFields(in)
+
+    assert(read.getPrecision === PRECISION)
+    assert(read.estimate() === written.estimate())
+  }
+
+  test("refuses to merge sketches of different precision") {
+    intercept[IllegalArgumentException] {
+      sketch(0, 10).merge(new HyperLogLogWritable(PRECISION - 1))
+    }
+  }
+
+  test("the storage estimates distinct keys whatever their weights") {
+    val name = "hll_distinct"
+    val config = new SparkConfiguration()
+    config.initialize()
+    config.registerAggregation(name, classOf[HyperLogLogAggregationStorage[_]],
+      classOf[IntWritable], classOf[LongWritable], false, new LongSumReduction(), null, 1)
+
+    val storage = new HyperLogLogAggregationStorage[IntWritable](name)
+    val key = new IntWritable()
+    val weight = new LongWritable()
+
+    for (round <- 1 to 2; k <- 0 until 200000) {
+      key.set(k)
+      weight.set(round)
+      storage.aggregateWithReusables(key, weight)
+    }
+
+    assert(storage.getSketch.getPrecision === PRECISION)
+    assert(relativeError(storage.getCardinality, 200000) <= TOLERANCE)
+  }
+}
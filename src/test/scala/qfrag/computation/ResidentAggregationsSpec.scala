@@ -0,0 +1,155 @@
+package qfrag.computation
+
+import java.util.{HashMap, UUID}
+
+import org.apache.hadoop.io.{IntWritable, LongWritable}
+import org.apache.spark.broadcast.Broadcast
+import org.scalatest.{BeforeAndAfterAll, FunSuite}
+import qfrag.aggregation.reductions.LongSumReduction
+import qfrag.aggregation.{AggregationChunks, AggregationDelta, AggregationStorage}
+import qfrag.conf.SparkConfiguration
+
+import scala.collection.JavaConverters._
+import scala.reflect.ClassTag
+
+class ResidentAggregationsSpec extends FunSuite with BeforeAndAfterAll {
+  import ResidentAggregationsSpec._
+
+  private val NAME = "resident"
+
+  private type Aggregations = HashMap[String, Array[Byte]]
+
+  override def beforeAll(): Unit = {
+    val config = new SparkConfiguration()
+    config.initialize()
+    config.registerAggregation(NAME, classOf[AggregationStorage[_, _]],
+      classOf[IntWritable], classOf[LongWritable], false, new LongSumReduction(), null, 1)
+  }
+
+  /** The aggregation at version v: keys v - 2 to v (at least 0), all mapped to v */
+  private def state(version: Int): AggregationStorage[IntWritable, LongWritable] = {
+    val storage = new AggregationStorage[IntWritable, LongWritable](NAME)
+
+    for (k <- math.max(0, version - 2) to version) {
+      storage.aggregate(new IntWritable(k), new LongWritable(version))
+    }
+
+    storage
+  }
+
+  private def delta(version: Int): Broadcast[Aggregations] = {
+    val previous = if (version == 0) null else state(version - 1)
+    val deltas = new Aggregations()
+    deltas.put(NAME, AggregationDelta.diff(previous, state(version)))
+    new LocalBroadcast(deltas)
+  }
+
+  private def snapshot(version: Int): Broadcast[Aggregations] = {
+    val chunks = new Aggregations()
+    chunks.put(NAME, AggregationChunks.toBytes(state(version)))
+    new LocalBroadcast(chunks)
+  }
+
+  /** Broadcast the copy must not fetch */
+  private def unread(): Broadcast[Aggregations] =
+    new LocalBroadcast[Aggregations](fail("Fetched a broadcast the copy already has"))
+
+  private def update(run: UUID, version: Int, snapshotVersion: Int, snapshotBc: Broadcast[Aggregations],
+                     deltaBcs: Broadcast[Aggregations]*): Unit =
+    ResidentAggregations.update(run, version, snapshotVersion, snapshotBc, deltaBcs.asJava)
+
+  private def assertCopyAt(run: UUID, version: Int): Unit = {
+    val copy = ResidentAggregations.get(run, NAME).asInstanceOf[AggregationStorage[IntWritable, LongWritable]]
+
+    assert(copy !== null)
+    assert(copy.getMapping === state(version).getMapping)
+  }
+
+  test("a new copy applies the whole chain if no snapshot was taken") {
+    val run = UUID.randomUUID()
+
+    update(run, 3, -1, null, delta(0), delta(1), delta(2), delta(3))
+
+    assertCopyAt(run, 3)
+  }
+
+  test("a copy the chain reaches applies only the deltas it misses") {
+    val run = UUID.randomUUID()
+
+    update(run, 2, -1, null, delta(0), delta(1), delta(2))
+    update(run, 4, -1, null, unread(), unread(), unread(), delta(3), delta(4))
+
+    assertCopyAt(run, 4)
+  }
+
+  test("an up-to-date copy fetches nothing") {
+    val run = UUID.randomUUID()
+
+    update(run, 1, -1, null, delta(0), delta(1))
+    update(run, 1, 1, unread(), unread())
+
+    assertCopyAt(run, 1)
+  }
+
+  test("a copy one version behind a new snapshot applies the delta kept with it") {
+    val run = UUID.randomUUID()
+
+    // compacting at version 4 keeps the delta of version 4 only
+    update(run, 3, -1, null, delta(0), delta(1), delta(2), delta(3))
+    update(run, 4, 4, unread(), delta(4))
+
+    assertCopyAt(run, 4)
+  }
+
+  test("a copy just before the first delta after the snapshot skips the snapshot") {
+    val run = UUID.randomUUID()
+
+    // snapshot of version 3, chain of versions 3 to 5: a copy at 2 needs all three deltas
+    update(run, 2, -1, null, delta(0), delta(1), delta(2))
+    update(run, 5, 3, unread(), delta(3), delta(4), delta(5))
+
+    assertCopyAt(run, 5)
+  }
+
+  test("an older copy loads the snapshot, then the deltas after it") {
+    val run = UUID.randomUUID()
+
+    update(run, 1, -1, null, delta(0), delta(1))
+    update(run, 5, 3, snapshot(3), unread(), delta(4), delta(5))
+
+    assertCopyAt(run, 5)
+  }
+
+  test("a copy ahead of the chain starts over") {
+    val run = UUID.randomUUID()
+
+    update(run, 4, -1, null, delta(0), delta(1), delta(2), delta(3), delta(4))
+    update(run, 2, -1, null, delta(0), delta(1), delta(2))
+
+    assertCopyAt(run, 2)
+  }
+
+  test("a new run starts from an empty copy") {
+    val run = UUID.randomUUID()
+    val newRun = UUID.randomUUID()
+
+    update(run, 3, 3, snapshot(3), delta(3))
+    update(newRun, 0, -1, null, delta(0))
+
+    assert(ResidentAggregations.get(run, NAME) === null)
+    assertCopyAt(newRun, 0)
+  }
+}
+
+object ResidentAggregationsSpec {
+  /** Broadcast of a value computed in this JVM when first read */
+  class LocalBroadcast[T: ClassTag](value: => T) extends Broadcast[T](0L) {
+    private lazy val computed = value
+
+    override protected def getValue(): T = computed
+
+    override protected def doUnpersist(blocking: Boolean): Unit = {}
+
+    override protected def doDestroy(blocking: Boolean): Unit = {}
+  }
+}
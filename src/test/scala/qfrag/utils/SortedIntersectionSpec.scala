@@ -0,0 +1,116 @@
+package qfrag.utils
+
+import java.nio.IntBuffer
+
+import org.scalatest.FunSuite
+
+import scala.util.Random
+
+class SortedIntersectionSpec extends FunSuite {
+  private val random = new Random(42)
+
+  /** Sorted, duplicate-free list of length ids drawn from [0, range) */
+  private def sortedList(length: Int, range: Int): Array[Int] =
+    random.shuffle((0 until range).toVector).take(length).sorted.toArray
+
+  private def expected(a: Array[Int], b: Array[Int]): Seq[Int] = {
+    val bSet = b.toSet
+    a.filter(bSet).toSeq
+  }
+
+  test("merge intersects lists of similar size") {
+    for (_ <- 1 to 200) {
+      val a = sortedList(random.nextInt(64), 128)
+      val b = sortedList(random.nextInt(64), 128)
+      val out = new Array[Int](math.min(a.length, b.length))
+
+      val count = SortedIntersection.merge(a, a.length, b, 0, b.length, out)
+
+      assert(out.take(count).toSeq === expected(a, b))
+    }
+  }
+
+  test("merge only reads b[from..to)") {
+    val a = Array(1, 3, 5, 7, 9)
+    val b = Array(1, 2, 3, 4, 5, 6, 7, 8, 9)
+    val out = new Array[Int](a.length)
+
+    val count = SortedIntersection.merge(a, a.length, b, 2, 7, out)
+
+    assert(out.take(count).toSeq === Seq(3, 5, 7))
+  }
+
+  test("gallop finds every element of the short list in the long one") {
+    for (_ <- 1 to 50) {
+      val small = sortedList(1 + random.nextInt(32), 100000)
+      val large = sortedList(5000 + random.nextInt(5000), 100000)
+      val out = new Array[Int](small.length)
+
+      val count = SortedIntersection.gallop(small, small.length, large, 0, large.length, out)
+      assert(out.take(count).toSeq === expected(small, large))
+
+      val bufferCount = SortedIntersection.gallop(small, small.length, IntBuffer.wrap(large), 0, large.length, out)
+      assert(out.take(bufferCount).toSeq === expected(small, large))
+    }
+  }
+
+  test("gallop handles empty lists and elements past either end") {
+    val large = Array(10, 20, 30, 40)
+    val out = new Array[Int](4)
+
+    assert(SortedIntersection.gallop(Array[Int](), 0, large, 0, large.length, out) === 0)
+    assert(SortedIntersection.gallop(Array(1, 2), 2, large, 0, 0, out) === 0)
+    assert(SortedIntersection.gallop(Array(50, 60), 2, large, 0, large.length, out) === 0)
+
+    val count = SortedIntersection.gallop(Array(5, 10, 35, 40, 45), 5, large, 0, large.length, out)
+    assert(out.take(count).toSeq === Seq(10, 40))
+
+    val rangeCount = SortedIntersection.gallop(Array(10, 20, 30, 40), 4, large, 1, 3, out)
+    assert(out.take(rangeCount).toSeq === Seq(20, 30))
+  }
+
+  test("intersect gallops from whichever side is short") {
+    val long = sortedList(40 * SortedIntersection.GALLOP_RATIO, 100000)
+    // half of the short list is known to be in the long one
+    val short = (sortedList(20, 100000) ++ random.shuffle(long.toSeq).take(20)).distinct.sorted
+
+    assert(SortedIntersection.shouldGallop(short.length, long.length))
+
+    val out = new Array[Int](short.length)
+
+    val count1 = SortedIntersection.intersect(short, short.length, long, long.length, out)
+    assert(out.take(count1).toSeq === expected(short, long))
+
+    val count2 = SortedIntersection.intersect(long, long.length, short, short.length, out)
+    assert(out.take(count2).toSeq === expected(long, short))
+  }
+
+  test("intersect agrees with the naive intersection for any size ratio") {
+    for (_ <- 1 to 200) {
+      val a = sortedList(random.nextInt(2000), 4000)
+      val b = sortedList(random.nextInt(if (random.nextBoolean()) 2000 else 40), 4000)
+      val out = new Array[Int](math.min(a.length, b.length))
+
+      val count = SortedIntersection.intersect(a, a.length, b, b.length, out)
+
+      assert(out.take(count).toSeq === expected(a, b))
+    }
+  }
+
+  test("intersect may write into the first list") {
+    val lengths = Seq(
+      (10, 10000), // a short, gallop through b
+      (10000, 10), // a long, gallop through a in place
+      (500, 600))  // merge
+
+    for ((aLength, bLength) <- lengths; _ <- 1 to 20) {
+      val a = sortedList(aLength, 20000)
+      val b = sortedList(bLength, 20000)
+      val intersection = expected(a, b)
+
+      val count = SortedIntersection.intersect(a, a.length, b, b.length, a)
+
+      assert(a.take(count).toSeq === intersection)
+    }
+  }
+}